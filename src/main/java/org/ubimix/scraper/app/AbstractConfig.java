@@ -149,6 +149,16 @@ public class AbstractConfig {
      *         specified key
      */
     protected long getConfigLong(String key, int defaultValue) {
+        return getConfigLong(key, (long) defaultValue);
+    }
+
+    /**
+     * @param key the key of the property
+     * @param defaultValue the default value if the long is not defined
+     * @return a long value from the configurations corresponding to the
+     *         specified key
+     */
+    protected long getConfigLong(String key, long defaultValue) {
         String value = getConfigString(key);
         long result = defaultValue;
         try {
@@ -24,6 +24,7 @@ import org.ubimix.commons.osgi.OSGIServiceDeactivator;
 import org.ubimix.commons.strings.StringUtil;
 import org.ubimix.commons.strings.StringUtil.IVariableProvider;
 import org.ubimix.commons.uri.Uri;
+import org.ubimix.scraper.core.AppContext;
 import org.ubimix.server.mime.IMimeTypeDetector;
 import org.ubimix.server.mime.MimeTypeDetector;
 
@@ -39,6 +40,10 @@ public class Activator extends ConfigurableMultiserviceActivator {
 
     private HttpService fHttpService;
 
+    private String fMetricsPath;
+
+    private MetricsServlet fMetricsServlet = new MetricsServlet();
+
     private IMimeTypeDetector fMimeDetector;
 
     IVariableProvider fPropertyProvider = new StringUtil.IVariableProvider() {
@@ -78,6 +83,17 @@ public class Activator extends ConfigurableMultiserviceActivator {
             fProperties,
             fHttpContext);
 
+        // Download statistics are published only if they are enabled
+        String metrics = getProperty("web.metrics.enabled", "false");
+        if (Boolean.parseBoolean(metrics)) {
+            fMetricsPath = getProperty("web.metrics.path", "/metrics");
+            fHttpService.registerServlet(
+                fMetricsPath,
+                fMetricsServlet,
+                fProperties,
+                fHttpContext);
+        }
+
         for (Map.Entry<Servlet, Map<String, Object>> entry : fServlets
             .entrySet()) {
             Servlet servlet = entry.getKey();
@@ -92,6 +108,11 @@ public class Activator extends ConfigurableMultiserviceActivator {
         }
     }
 
+    @OSGIServiceActivator(min = 0)
+    public void addAppContext(AppContext context, Map<String, Object> params) {
+        fMetricsServlet.addContext(getContextName(context, params), context);
+    }
+
     @OSGIServiceActivator(min = 0)
     public void addFile(File file, Map<String, Object> params) {
         fFiles.put(file, params);
@@ -126,6 +147,10 @@ public class Activator extends ConfigurableMultiserviceActivator {
             unregisterFile(entry.getKey(), entry.getValue());
         }
         fFiles.clear();
+        if (fMetricsPath != null) {
+            fHttpService.unregister(fMetricsPath);
+            fMetricsPath = null;
+        }
         fHttpContext = null;
         if (fResourcePath != null) {
             fHttpService.unregister(fResourcePath);
@@ -145,6 +170,20 @@ public class Activator extends ConfigurableMultiserviceActivator {
         return uri;
     }
 
+    /**
+     * Returns the name used to publish statistics of the specified application
+     * context. This name is defined by the "name" service parameter.
+     */
+    private String getContextName(
+        AppContext context,
+        Map<String, Object> params) {
+        Object name = params != null ? params.get("name") : null;
+        if (name == null) {
+            name = "context-" + System.identityHashCode(context);
+        }
+        return name.toString();
+    }
+
     private String getProperty(String key, String defaultValue) {
         String value = StringUtil.resolvePropertyByKey(key, fPropertyProvider);
         if (value == null) {
@@ -181,6 +220,13 @@ public class Activator extends ConfigurableMultiserviceActivator {
         }
     }
 
+    @OSGIServiceDeactivator
+    public void removeAppContext(
+        AppContext context,
+        Map<String, Object> params) {
+        fMetricsServlet.removeContext(getContextName(context, params));
+    }
+
     @OSGIServiceDeactivator
     public void removeFile(File file, Map<String, Object> params) {
         fFiles.remove(file);
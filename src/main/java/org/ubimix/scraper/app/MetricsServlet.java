@@ -0,0 +1,141 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.app;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.ubimix.commons.json.JsonArray;
+import org.ubimix.commons.json.JsonObject;
+import org.ubimix.scraper.core.AppContext;
+import org.ubimix.scraper.core.DownloadMetrics;
+import org.ubimix.scraper.core.DownloadMetrics.HostSnapshot;
+import org.ubimix.scraper.core.DownloadMetrics.LatencySnapshot;
+
+/**
+ * This servlet returns download statistics of registered application contexts
+ * (see {@link DownloadMetrics}) as a JSON object. Statistics are grouped by
+ * context names and by hosts.
+ * 
+ * @author kotelnikov
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final String MIME_TYPE = "application/json";
+
+    private static final long serialVersionUID = 6424520913546339412L;
+
+    private Map<String, AppContext> fContexts = new TreeMap<String, AppContext>();
+
+    public MetricsServlet() {
+    }
+
+    /**
+     * Registers a new application context with the specified name.
+     * 
+     * @param name the name of the context
+     * @param context the context to add
+     */
+    public synchronized void addContext(String name, AppContext context) {
+        fContexts.put(name, context);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+        throws ServletException,
+        IOException {
+        Map<String, AppContext> contexts;
+        synchronized (this) {
+            contexts = new TreeMap<String, AppContext>(fContexts);
+        }
+        JsonObject result = new JsonObject();
+        for (Map.Entry<String, AppContext> entry : contexts.entrySet()) {
+            DownloadMetrics metrics = entry.getValue().getAdapter(
+                DownloadMetrics.class);
+            result.setValue(entry.getKey(), toJson(metrics.getSnapshot()));
+        }
+        resp.setCharacterEncoding(ENCODING);
+        resp.setContentType(MIME_TYPE);
+        resp.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = resp.getWriter();
+        out.print(result.toString());
+        out.flush();
+    }
+
+    /**
+     * Removes the application context with the specified name.
+     * 
+     * @param name the name of the context to remove
+     */
+    public synchronized void removeContext(String name) {
+        fContexts.remove(name);
+    }
+
+    private JsonObject toJson(HostSnapshot host) {
+        JsonObject json = new JsonObject();
+        json.setValue("inFlight", host.getInFlight());
+        json.setValue("hits", host.getHits());
+        json.setValue("stale", host.getStale());
+        json.setValue("notModified", host.getNotModified());
+        json.setValue("misses", host.getMisses());
+        json.setValue("blocked", host.getBlocked());
+        json.setValue("bytes", host.getBytes());
+        json.setValue("hitRatio", host.getHitRatio());
+        json.setValue("notModifiedRatio", host.getNotModifiedRatio());
+        json.setValue("missRatio", host.getMissRatio());
+        JsonObject latency = new JsonObject();
+        for (Map.Entry<String, LatencySnapshot> entry : host
+            .getLatency()
+            .entrySet()) {
+            latency.setValue(entry.getKey(), toJson(entry.getValue()));
+        }
+        json.setValue("latency", latency);
+        return json;
+    }
+
+    /**
+     * Returns a JSON object with the latency distribution. The last bucket
+     * has no upper bound, so it has no "le" field.
+     */
+    private JsonObject toJson(LatencySnapshot latency) {
+        JsonObject json = new JsonObject();
+        json.setValue("count", latency.getCount());
+        json.setValue("mean", latency.getMean());
+        json.setValue("p50", latency.getPercentile(0.5));
+        json.setValue("p90", latency.getPercentile(0.9));
+        json.setValue("p99", latency.getPercentile(0.99));
+        json.setValue("max", latency.getMax());
+        JsonArray buckets = new JsonArray();
+        long[] bounds = latency.getBounds();
+        long[] counts = latency.getCounts();
+        for (int i = 0; i < counts.length; i++) {
+            JsonObject bucket = new JsonObject();
+            if (i < bounds.length) {
+                bucket.setValue("le", bounds[i]);
+            }
+            bucket.setValue("count", counts[i]);
+            buckets.addValue(bucket);
+        }
+        json.setValue("buckets", buckets);
+        return json;
+    }
+
+    private JsonObject toJson(Map<String, HostSnapshot> hosts) {
+        JsonObject json = new JsonObject();
+        for (HostSnapshot host : hosts.values()) {
+            json.setValue(host.getHost(), toJson(host));
+        }
+        return json;
+    }
+
+}
@@ -1,6 +1,7 @@
 package org.ubimix.scraper.core;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.ubimix.commons.json.JsonArray;
@@ -8,6 +9,12 @@ import org.ubimix.commons.json.JsonObject;
 import org.ubimix.commons.uri.Uri;
 
 /**
+ * Credentials used to access protected resources. Instances of this class are
+ * read-only once they are parsed: the list of credentials is built when it is
+ * requested for the first time and it does not reflect later modifications of
+ * the underlying JSON array. To change credentials a new configuration should
+ * be parsed.
+ * 
  * @author kotelnikov
  */
 public class AccessConfig extends JsonArray implements IAccessConfig {
@@ -45,15 +52,27 @@ public class AccessConfig extends JsonArray implements IAccessConfig {
         }
     };
 
+    /**
+     * The list of credentials built when it is requested for the first time.
+     * This configuration is not modified after parsing, so the list is never
+     * rebuilt.
+     */
+    private volatile List<ICredentials> fCredentials;
+
     @Override
     public List<ICredentials> getCredentials() {
-        List<ICredentials> result = new ArrayList<ICredentials>();
-        int len = getSize();
-        for (int i = 0; i < len; i++) {
-            AccessConfig.Credentials credentials = getObject(
-                i,
-                Credentials.FACTORY);
-            result.add(credentials);
+        List<ICredentials> result = fCredentials;
+        if (result == null) {
+            result = new ArrayList<ICredentials>();
+            int len = getSize();
+            for (int i = 0; i < len; i++) {
+                AccessConfig.Credentials credentials = getObject(
+                    i,
+                    Credentials.FACTORY);
+                result.add(credentials);
+            }
+            result = Collections.unmodifiableList(result);
+            fCredentials = result;
         }
         return result;
     }
@@ -13,23 +13,159 @@ public class AppConfig extends AbstractConfig {
         super(propertyProvider);
     }
 
+    public boolean deduplicateContent() {
+        return getBoolean("deduplicateContent", false);
+    }
+
     public boolean downloadExistingResources() {
         boolean result = getBoolean("downloadExisting", true);
         return result;
     }
 
+    public long getConfigWatchInterval() {
+        return getConfigLong("configWatchInterval", 0);
+    }
+
+    public long getDownloadClientErrorDelay() {
+        return getConfigLong(
+            "downloadClientErrorDelay",
+            DownloadFailurePolicy.DEFAULT_CLIENT_ERROR_DELAY);
+    }
+
+    /**
+     * Returns the time after the last validation during which the content of
+     * a resource could still be returned; after the refresh timeout (see
+     * {@link #getDownloadRefreshTimeout()}) the resource is refreshed in
+     * background. This value is defined by the "downloadExpirationTimeout"
+     * key. By default it is the sum of the refresh and the stale timeouts.
+     * 
+     * @return the expiration timeout in milliseconds
+     */
     public long getDownloadExpirationTimeout() {
-        return getConfigLong("downloadExpirationTimeout", DateUtil.MIN * 2);
+        long timeout = getDownloadRefreshTimeout()
+            + getDownloadStaleTimeout();
+        return getConfigLong("downloadExpirationTimeout", timeout);
+    }
+
+    public long getDownloadHostBlockTime() {
+        return getConfigLong(
+            "downloadHostBlockTime",
+            DownloadFailurePolicy.DEFAULT_HOST_BLOCK_TIME);
+    }
+
+    public long getDownloadHostDelay() {
+        return getConfigLong("downloadHostDelay", 0);
+    }
+
+    public int getDownloadHostFailures() {
+        return getConfigInteger(
+            "downloadHostFailures",
+            DownloadFailurePolicy.DEFAULT_HOST_FAILURES);
+    }
+
+    public long getDownloadMaxBytesPerSecond() {
+        return getConfigLong("downloadMaxBytesPerSecond", 0);
+    }
+
+    public long getDownloadMaxFailureDelay() {
+        return getConfigLong(
+            "downloadMaxFailureDelay",
+            DownloadFailurePolicy.DEFAULT_MAX_DELAY);
+    }
+
+    public int getDownloadMaxHostConnections() {
+        return getConfigInteger(
+            "downloadMaxHostConnections",
+            DownloadScheduler.DEFAULT_HOST_CONNECTIONS);
+    }
+
+    public long getDownloadMaxRequestsPerSecond() {
+        return getConfigLong("downloadMaxRequestsPerSecond", 0);
     }
 
+    /**
+     * Returns the time during which a downloaded resource is considered as
+     * fresh. This value is defined by the "downloadRefreshTimeout" key.
+     * 
+     * @return the refresh timeout in milliseconds
+     */
     public long getDownloadRefreshTimeout() {
-        return getConfigLong("downloadExpirationTimeout", DateUtil.MIN * 2);
+        return getConfigLong(
+            "downloadRefreshTimeout",
+            DownloadAdapter.DEFAULT_REFRESH_TIMEOUT);
+    }
+
+    public long getDownloadServerErrorDelay() {
+        return getConfigLong(
+            "downloadServerErrorDelay",
+            DownloadFailurePolicy.DEFAULT_SERVER_ERROR_DELAY);
+    }
+
+    /**
+     * Returns the time after the refresh timeout during which the existing
+     * content of an expired resource is returned while the resource is
+     * refreshed in background. By default this mode is disabled. This value
+     * is not used if the expiration timeout is defined (see
+     * {@link #getDownloadExpirationTimeout()}).
+     * 
+     * @return the stale timeout in milliseconds
+     */
+    public long getDownloadStaleTimeout() {
+        return getConfigLong("downloadStaleTimeout", 0);
+    }
+
+    public int getDownloadThreads() {
+        return getConfigInteger(
+            "downloadThreads",
+            DownloadAdapter.DEFAULT_DOWNLOAD_THREADS);
     }
 
     public String getRepositoryPath() {
         return getConfigString("repositoryPath");
     }
 
+    public String getRepositoryStoreType() {
+        return getConfigString("repositoryStoreType", "files");
+    }
+
+    public long getResourceCacheSize() {
+        return getConfigLong(
+            "resourceCacheSize",
+            ResourceCache.DEFAULT_MAX_SIZE);
+    }
+
+    public long getSegmentCompactionInterval() {
+        return getConfigLong("segmentCompactionInterval", DateUtil.MIN);
+    }
+
+    public long getSegmentSize() {
+        return getConfigLong(
+            "segmentSize",
+            SegmentStore.DEFAULT_SEGMENT_SIZE);
+    }
+
+    public long getSweepFilesPerSecond() {
+        return getConfigLong(
+            "sweepFilesPerSecond",
+            ResourceSweeper.DEFAULT_FILES_PER_SECOND);
+    }
+
+    public long getSweepInterval() {
+        return getConfigLong("sweepInterval", 0);
+    }
+
+    /**
+     * Returns <code>true</code> if resources stored in the content store
+     * release their own content (see {@link ContentStore#isReleaseContent()}).
+     * It is <code>true</code> by default.
+     * 
+     * @return <code>true</code> if the content of stored resources is
+     *         truncated
+     */
+    public boolean releaseStoredContent() {
+        return getBoolean("releaseStoredContent", true);
+    }
+
     public boolean resetRepository() {
         return getBoolean("resetRepository", false);
     }
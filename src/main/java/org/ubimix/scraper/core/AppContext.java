@@ -4,6 +4,13 @@
 package org.ubimix.scraper.core;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.ubimix.commons.adapters.AdaptableObject;
 import org.ubimix.commons.adapters.AdapterFactoryUtils;
@@ -14,7 +21,6 @@ import org.ubimix.commons.uri.UriToPath;
 import org.ubimix.resources.IWrfRepository;
 import org.ubimix.resources.IWrfResource;
 import org.ubimix.resources.IWrfResourceProvider;
-import org.ubimix.resources.impl.WrfResourceRepository;
 
 /**
  * This class is the parent for all application-specific configurators.
@@ -23,8 +29,95 @@ import org.ubimix.resources.impl.WrfResourceRepository;
  */
 public class AppContext extends AdaptableObject {
 
+    /**
+     * Names of stores by resource handles. Handles are referenced weakly, so
+     * this index does not keep handles which are not used anymore. Look-ups
+     * don't take locks; entries of collected handles are removed when new
+     * handles are added.
+     * 
+     * @author kotelnikov
+     */
+    private static class StoreIndex {
+
+        /**
+         * A weak reference to a resource handle used as a key. Keys are equal
+         * if their handles are equal.
+         */
+        private static class Key extends WeakReference<IWrfResource> {
+
+            private final int fHashCode;
+
+            public Key(
+                IWrfResource resource,
+                ReferenceQueue<IWrfResource> queue) {
+                super(resource, queue);
+                fHashCode = resource.hashCode();
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                if (obj == this) {
+                    return true;
+                }
+                if (!(obj instanceof Key)) {
+                    return false;
+                }
+                Key o = (Key) obj;
+                IWrfResource resource = get();
+                return fHashCode == o.fHashCode
+                    && resource != null
+                    && resource.equals(o.get());
+            }
+
+            @Override
+            public int hashCode() {
+                return fHashCode;
+            }
+
+        }
+
+        private final ConcurrentMap<Key, String> fNames = new ConcurrentHashMap<Key, String>();
+
+        private final ReferenceQueue<IWrfResource> fQueue = new ReferenceQueue<IWrfResource>();
+
+        /**
+         * Removes entries of handles collected by the garbage collector.
+         */
+        private void expunge() {
+            Reference<? extends IWrfResource> ref;
+            while ((ref = fQueue.poll()) != null) {
+                fNames.remove(ref);
+            }
+        }
+
+        public String get(IWrfResource resource) {
+            return fNames.get(new Key(resource, null));
+        }
+
+        public void put(IWrfResource resource, String storeName) {
+            expunge();
+            fNames.put(new Key(resource, fQueue), storeName);
+        }
+
+    }
+
+    /**
+     * The watcher re-loading the configuration of this context; it is
+     * stopped when the context is shut down.
+     */
+    private ConfigWatcher fConfigWatcher;
+
+    private RepositoryCleaner fRepositoryCleaner;
+
+    private ResourceCache fResourceCache = new ResourceCache();
+
     private IWrfRepository fResourceRepository;
 
+    /**
+     * Names of stores containing resources returned by this context.
+     */
+    private final StoreIndex fStoreNames = new StoreIndex();
+
     public AppContext() {
         this("./data", false);
     }
@@ -37,9 +130,23 @@ public class AppContext extends AdaptableObject {
         fResourceRepository = repository;
     }
 
+    private AppContext(RepositoryCleaner cleaner, boolean reset) {
+        this(new CompositeAdapterFactory(), cleaner.openRepository(reset));
+        fRepositoryCleaner = cleaner;
+    }
+
+    /**
+     * Opens the repository in the specified directory. If the repository
+     * should be reset then its directory is renamed and the old content is
+     * deleted in background (see {@link RepositoryCleaner}), so this
+     * constructor does not wait the end of the deletion.
+     * 
+     * @param repositoryPath the path to the repository directory
+     * @param reset if it is <code>true</code> then all resources of the
+     *        repository are removed
+     */
     public AppContext(String repositoryPath, boolean reset) {
-        this(new CompositeAdapterFactory(), WrfResourceRepository
-            .newRepository(new File(repositoryPath), reset));
+        this(new RepositoryCleaner(new File(repositoryPath)), reset);
     }
 
     protected <T extends AppContextAdapter> AppContext addAdapter(
@@ -54,11 +161,61 @@ public class AppContext extends AdaptableObject {
         return (CompositeAdapterFactory) super.getAdapterFactory();
     }
 
+    /**
+     * Returns the watcher re-loading the configuration of this context or
+     * <code>null</code> if the configuration is not watched.
+     * 
+     * @return the configuration watcher of this context
+     */
+    public synchronized ConfigWatcher getConfigWatcher() {
+        return fConfigWatcher;
+    }
+
+    /**
+     * Returns a stream reading the content of the specified resource. If the
+     * content of the resource was moved to the content store then it is read
+     * from this store (see {@link ContentStore#getContentInput(IWrfResource)}).
+     * 
+     * @param resource the resource
+     * @return a stream reading the content of the resource
+     * @throws IOException
+     */
+    public InputStream getContentInput(IWrfResource resource)
+        throws IOException {
+        return getAdapter(ContentStore.class).getContentInput(resource);
+    }
+
+    /**
+     * Returns the resource containing the content of the specified resource.
+     * If the content of the resource was moved to the content store then this
+     * method returns the corresponding blob (see {@link ContentStore}).
+     * 
+     * @param resource the resource
+     * @return the resource containing the content
+     * @throws IOException
+     */
+    public IWrfResource getContentResource(IWrfResource resource)
+        throws IOException {
+        return getAdapter(ContentStore.class).getContentResource(resource);
+    }
+
+    /**
+     * Returns the object deleting old content of the repository in background
+     * or <code>null</code> if this context was created with an existing
+     * repository.
+     * 
+     * @return the repository cleaner
+     */
+    public RepositoryCleaner getRepositoryCleaner() {
+        return fRepositoryCleaner;
+    }
+
     public IWrfResource getResource(String storeName, Path path) {
         IWrfResourceProvider store = fResourceRepository.getResourceProvider(
             storeName,
             true);
         IWrfResource resource = store.getResource(path, true);
+        fStoreNames.put(resource, storeName);
         return resource;
     }
 
@@ -67,6 +224,13 @@ public class AppContext extends AdaptableObject {
     }
 
     public IWrfResource getResource(String storeName, Uri url, String suffix) {
+        IWrfResource targetResource = fResourceCache.get(
+            storeName,
+            url,
+            suffix);
+        if (targetResource != null) {
+            return targetResource;
+        }
         IWrfResourceProvider store = fResourceRepository.getResourceProvider(
             storeName,
             true);
@@ -77,18 +241,69 @@ public class AppContext extends AdaptableObject {
             pathBuilder.appendPath("$").appendPath(suffix);
             targetResultPath = pathBuilder.build();
         }
-        IWrfResource targetResource = store.getResource(targetResultPath, true);
+        targetResource = store.getResource(targetResultPath, true);
+        fStoreNames.put(targetResource, storeName);
+        fResourceCache.put(storeName, url, suffix, targetResource);
         return targetResource;
     }
 
+    /**
+     * Returns the cache of resource handles returned by the
+     * {@link #getResource(String, Uri, String)} method.
+     * 
+     * @return the cache of resources
+     */
+    public ResourceCache getResourceCache() {
+        return fResourceCache;
+    }
+
     public IWrfRepository getResourceRepository() {
         return fResourceRepository;
     }
 
+    /**
+     * Returns the name of the store containing the specified resource or
+     * <code>null</code> if the resource was not returned by this context.
+     * 
+     * @param resource the resource
+     * @return the name of the store containing the resource
+     */
+    public String getStoreName(IWrfResource resource) {
+        return fStoreNames.get(resource);
+    }
+
     protected void initAdapters() {
+        addAdapter(CachePolicy.class);
+        addAdapter(ContentStore.class);
         addAdapter(DownloadAdapter.class);
+        addAdapter(DownloadMetrics.class);
         addAdapter(DocAdapter.class);
         addAdapter(MapAdapter.class);
+        addAdapter(ResourceSweeper.class);
+    }
+
+    /**
+     * Sets the watcher re-loading the configuration of this context. The
+     * previous watcher (if any) is stopped.
+     * 
+     * @param watcher the new configuration watcher; it could be
+     *        <code>null</code>
+     */
+    public synchronized void setConfigWatcher(ConfigWatcher watcher) {
+        if (fConfigWatcher != null && fConfigWatcher != watcher) {
+            fConfigWatcher.stop();
+        }
+        fConfigWatcher = watcher;
+    }
+
+    /**
+     * Stops all background activities of this context: the configuration
+     * watcher, download threads and the sweeping of stores.
+     */
+    public void shutdown() {
+        setConfigWatcher(null);
+        getAdapter(DownloadAdapter.class).shutdown();
+        getAdapter(ResourceSweeper.class).stop();
     }
 
 }
@@ -1,24 +1,57 @@
 package org.ubimix.scraper.core;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.ubimix.commons.io.IOUtil;
+import org.ubimix.commons.json.JsonObject;
 import org.ubimix.commons.json.JsonValue.IJsonValueFactory;
 import org.ubimix.commons.strings.StringUtil;
 import org.ubimix.commons.strings.StringUtil.IVariableProvider;
 import org.ubimix.commons.uri.Uri;
-import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
+import org.ubimix.scraper.app.AbstractConfig;
+import org.ubimix.scraper.core.CachePolicy.CacheRule;
 import org.ubimix.scraper.core.IAccessConfig.ICredentials;
+import org.ubimix.scraper.core.ResourceSweeper.StoreLimits;
+import org.ubimix.scraper.protocol.AccessManager.CredentialInfo;
+import org.ubimix.scraper.utils.UriPrefixIndex;
 
 /**
  * @author kotelnikov
  */
 public class AppContextConfigurator {
 
+    private static final String ACCESS_CONFIG_FILE = "./config/access.json";
+
+    private static final String ACCESS_CONFIG_KEY = "accessConfig";
+
+    private static final String APP_CONFIG_KEY = "appConfig";
+
+    private static final String CACHE_CONFIG_FILE = "./config/cache.json";
+
+    private static final String CACHE_CONFIG_KEY = "cacheConfig";
+
+    private static final IJsonValueFactory<JsonObject> JSON_OBJECT_FACTORY = new IJsonValueFactory<JsonObject>() {
+        @Override
+        public JsonObject newValue(Object object) {
+            return new JsonObject().setJsonObject(object);
+        }
+    };
+
+    private static final String SEGMENTS_DIR = "segments";
+
+    private static final String STORE_TYPE_SEGMENTS = "segments";
+
+    private final static Logger log = Logger
+        .getLogger(AppContextConfigurator.class.getName());
+
     public static AppContext createAppContext() throws IOException {
         return createAppContext(new IVariableProvider() {
             @Override
@@ -30,18 +63,35 @@ public class AppContextConfigurator {
 
     public static AppContext createAppContext(IVariableProvider propertyProvider)
         throws IOException {
-        AppConfig appConfig = new AppConfig(propertyProvider);
-        IAccessConfig accessConfig = readConfig(
-            propertyProvider,
-            "accessConfig",
-            "./config/access.json",
-            AccessConfig.FACTORY);
+        AppConfig appConfig = readAppConfig(propertyProvider);
+        IAccessConfig accessConfig = readAccessConfig(propertyProvider);
+        CacheConfig cacheConfig = readCacheConfig(propertyProvider);
         AppContextConfigurator configurator = new AppContextConfigurator(
             appConfig);
-        AppContext appContext = configurator.getAppContext(accessConfig);
+        AppContext appContext = configurator.getAppContext(
+            accessConfig,
+            cacheConfig);
+        long interval = appConfig.getConfigWatchInterval();
+        if (interval > 0) {
+            ConfigWatcher watcher = newConfigWatcher(
+                appContext,
+                propertyProvider,
+                interval);
+            // The watcher is stopped with the context
+            appContext.setConfigWatcher(watcher);
+            watcher.start();
+        }
         return appContext;
     }
 
+    private static File getConfigFile(
+        IVariableProvider propertyProvider,
+        String key,
+        String defaultValue) {
+        String fileName = getProperty(propertyProvider, key, defaultValue);
+        return fileName != null ? new File(fileName) : null;
+    }
+
     private static String getProperty(
         IVariableProvider properyProvider,
         String key,
@@ -53,13 +103,107 @@ public class AppContextConfigurator {
         return result;
     }
 
+    /**
+     * Creates a new watcher re-loading the application, access and cache
+     * configurations when their files are changed. New values are applied to
+     * the specified application context (see
+     * {@link #configure(AppContext, IAccessConfig, CacheConfig)}). The
+     * returned watcher is not started.
+     * 
+     * @param appContext the application context to re-configure
+     * @param propertyProvider the provider of configuration properties
+     * @param interval the interval (in milliseconds) between two checks of
+     *        configuration files
+     * @return a new configuration watcher
+     */
+    public static ConfigWatcher newConfigWatcher(
+        final AppContext appContext,
+        final IVariableProvider propertyProvider,
+        long interval) {
+        ConfigWatcher watcher = new ConfigWatcher(
+            new ConfigWatcher.IConfigListener() {
+                @Override
+                public void onConfigChanged(Collection<File> files)
+                    throws IOException {
+                    AppConfig appConfig = readAppConfig(propertyProvider);
+                    IAccessConfig accessConfig = readAccessConfig(
+                        propertyProvider);
+                    CacheConfig cacheConfig = readCacheConfig(propertyProvider);
+                    AppContextConfigurator configurator;
+                    configurator = new AppContextConfigurator(appConfig);
+                    configurator.configure(
+                        appContext,
+                        accessConfig,
+                        cacheConfig);
+                    log.info("Configuration re-loaded from " + files + ".");
+                }
+            },
+            interval);
+        File file = getConfigFile(
+            propertyProvider,
+            ACCESS_CONFIG_KEY,
+            ACCESS_CONFIG_FILE);
+        watcher.addFile(file);
+        file = getConfigFile(propertyProvider, APP_CONFIG_KEY, null);
+        if (file != null) {
+            watcher.addFile(file);
+        }
+        file = getConfigFile(
+            propertyProvider,
+            CACHE_CONFIG_KEY,
+            CACHE_CONFIG_FILE);
+        watcher.addFile(file);
+        return watcher;
+    }
+
+    private static IAccessConfig readAccessConfig(
+        IVariableProvider propertyProvider) throws IOException {
+        File file = getConfigFile(
+            propertyProvider,
+            ACCESS_CONFIG_KEY,
+            ACCESS_CONFIG_FILE);
+        return readConfig(file, AccessConfig.FACTORY);
+    }
+
+    /**
+     * Creates a new application configuration. If the "appConfig" property
+     * defines a JSON file then values from this file override values of the
+     * given property provider.
+     */
+    private static AppConfig readAppConfig(IVariableProvider propertyProvider)
+        throws IOException {
+        IVariableProvider provider = propertyProvider;
+        File file = getConfigFile(propertyProvider, APP_CONFIG_KEY, null);
+        if (file != null && file.exists()) {
+            JsonObject json = readConfig(file, JSON_OBJECT_FACTORY);
+            provider = new AbstractConfig.CompositeVariableProvider(
+                new AbstractConfig.JsonVariableProvider(json),
+                propertyProvider);
+        }
+        return new AppConfig(provider);
+    }
+
+    /**
+     * Reads the configuration of cache rules. This configuration is optional;
+     * if the configuration file does not exist then this method returns
+     * <code>null</code>.
+     */
+    private static CacheConfig readCacheConfig(
+        IVariableProvider propertyProvider) throws IOException {
+        File file = getConfigFile(
+            propertyProvider,
+            CACHE_CONFIG_KEY,
+            CACHE_CONFIG_FILE);
+        try {
+            return readConfig(file, CacheConfig.FACTORY);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
     private static <T> T readConfig(
-        IVariableProvider propertyProvider,
-        String key,
-        String defaultValue,
+        File configFile,
         IJsonValueFactory<T> factory) throws IOException {
-        String configFileName = getProperty(propertyProvider, key, defaultValue);
-        File configFile = new File(configFileName);
         String serializedConfig = IOUtil.readString(configFile);
         T result = factory.newValue(serializedConfig);
         return result;
@@ -71,35 +215,193 @@ public class AppContextConfigurator {
         fConfig = config;
     }
 
+    /**
+     * Applies this configuration and the given access configuration to an
+     * existing application context. This method could be called for a live
+     * context; in this case new values are used by all downloads started
+     * after this call. New cache rules and download parameters are built
+     * before the context is changed; then each of them is published at once
+     * (see {@link CachePolicy#setRules(CachePolicy.RuleSet)} and
+     * {@link DownloadAdapter#setSettings(DownloadAdapter.Settings)}), so
+     * downloads never see a part of the new configuration. The repository
+     * path and the number of download threads can not be changed for an
+     * existing context.
+     * 
+     * @param appContext the context to configure
+     * @param accessConfig the access configuration
+     * @param cacheConfig the configuration of cache rules; it could be
+     *        <code>null</code>
+     */
+    public void configure(
+        AppContext appContext,
+        IAccessConfig accessConfig,
+        CacheConfig cacheConfig) {
+        CachePolicy.RuleSet rules = getCacheRules(cacheConfig);
+        DownloadAdapter.Settings settings = getDownloadSettings(accessConfig);
+
+        CachePolicy cachePolicy = appContext.getAdapter(CachePolicy.class);
+        cachePolicy.setRules(rules);
+        DownloadAdapter downloadAdapter = appContext
+            .getAdapter(DownloadAdapter.class);
+        downloadAdapter.setSettings(settings);
+        appContext.getResourceCache().setMaxSize(
+            fConfig.getResourceCacheSize());
+        configureContentStore(appContext);
+        configureSweeper(appContext, cacheConfig);
+    }
+
+    /**
+     * Configures the store of downloaded content. The "segments" repository
+     * store type packs the content in segment files (see {@link SegmentStore})
+     * and enables the content store. The segment store is opened only once;
+     * it is not changed when the configuration is re-loaded.
+     * 
+     * @param appContext the context to configure
+     */
+    private void configureContentStore(AppContext appContext) {
+        ContentStore contentStore = appContext.getAdapter(ContentStore.class);
+        String storeType = fConfig.getRepositoryStoreType();
+        boolean segments = STORE_TYPE_SEGMENTS.equals(storeType);
+        synchronized (contentStore) {
+            if (segments && contentStore.getSegmentStore() == null) {
+                File dir = new File(
+                    fConfig.getRepositoryPath(),
+                    SEGMENTS_DIR);
+                try {
+                    SegmentStore segmentStore = new SegmentStore(
+                        dir,
+                        fConfig.getSegmentSize());
+                    segmentStore.startCompaction(fConfig
+                        .getSegmentCompactionInterval());
+                    contentStore.setSegmentStore(segmentStore);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Can not open segments in "
+                        + dir
+                        + ".", e);
+                    segments = false;
+                }
+            }
+            contentStore.setEnabled(segments || fConfig.deduplicateContent());
+            contentStore.setReleaseContent(fConfig.releaseStoredContent());
+        }
+    }
+
+    /**
+     * Configures the background sweeping of stores. Limits of stores are
+     * defined by the cache configuration (see
+     * {@link CacheConfig#getStoreLimits()}); stores are swept only if the
+     * sweep interval is defined. The sweeper is started if there are limits
+     * or if unused blobs of the content store should be collected.
+     * 
+     * @param appContext the context to configure
+     * @param cacheConfig the configuration of cache rules; it could be
+     *        <code>null</code>
+     */
+    private void configureSweeper(
+        AppContext appContext,
+        CacheConfig cacheConfig) {
+        ResourceSweeper sweeper = appContext
+            .getAdapter(ResourceSweeper.class);
+        Map<String, StoreLimits> limits = cacheConfig != null ? cacheConfig
+            .getStoreLimits() : Collections.<String, StoreLimits> emptyMap();
+        synchronized (sweeper) {
+            sweeper.setRootDirectory(new File(fConfig.getRepositoryPath()));
+            sweeper.setFilesPerSecond(fConfig.getSweepFilesPerSecond());
+            sweeper.setLimits(limits);
+            long interval = fConfig.getSweepInterval();
+            sweeper.stop();
+            boolean collect = appContext
+                .getAdapter(ContentStore.class)
+                .isEnabled();
+            if (interval > 0 && (!limits.isEmpty() || collect)) {
+                sweeper.start(interval);
+            }
+        }
+    }
+
     public AppContext getAppContext(IAccessConfig accessConfig) {
+        return getAppContext(accessConfig, null);
+    }
+
+    public AppContext getAppContext(
+        IAccessConfig accessConfig,
+        CacheConfig cacheConfig) {
         String path = fConfig.getRepositoryPath();
         boolean resetRepository = fConfig.resetRepository();
         AppContext appContext = new AppContext(path, resetRepository);
-        CachedResourceAdapter.setRefreshTimeout(fConfig
-            .getDownloadRefreshTimeout());
-        CachedResourceAdapter.setExpirationTimeout(fConfig
-            .getDownloadRefreshTimeout());
-        DownloadAdapter downloadAdapter = appContext
-            .getAdapter(DownloadAdapter.class);
-        downloadAdapter.downloadExistingResources(fConfig
-            .downloadExistingResources());
-        initDownloadAdapter(downloadAdapter, accessConfig);
+        configure(appContext, accessConfig, cacheConfig);
         return appContext;
     }
 
-    protected void initDownloadAdapter(
-        DownloadAdapter downloadAdapter,
+    /**
+     * Returns cache rules defined by this configuration and by the given
+     * configuration of cache rules. The default rule is defined by the
+     * refresh timeout (see {@link AppConfig#getDownloadRefreshTimeout()}) and
+     * by the expiration timeout (see
+     * {@link AppConfig#getDownloadExpirationTimeout()}).
+     * 
+     * @param cacheConfig the configuration of cache rules; it could be
+     *        <code>null</code>
+     * @return a new set of cache rules
+     */
+    public CachePolicy.RuleSet getCacheRules(CacheConfig cacheConfig) {
+        CacheRule defaultRule = new CacheRule(
+            fConfig.getDownloadRefreshTimeout(),
+            fConfig.getDownloadExpirationTimeout());
+        if (cacheConfig == null) {
+            return new CachePolicy.RuleSet.Builder()
+                .setDefaultRule(defaultRule)
+                .build();
+        }
+        return cacheConfig.getRuleSet(defaultRule);
+    }
+
+    /**
+     * Returns download parameters defined by this configuration and by the
+     * given access configuration.
+     * 
+     * @param accessConfig the access configuration
+     * @return new download parameters
+     */
+    public DownloadAdapter.Settings getDownloadSettings(
+        IAccessConfig accessConfig) {
+        DownloadAdapter.Settings.Builder builder = new DownloadAdapter.Settings.Builder();
+        builder
+            .setDownloadExistingResources(fConfig.downloadExistingResources())
+            .setDownloadThreads(fConfig.getDownloadThreads())
+            .setMaxHostConnections(fConfig.getDownloadMaxHostConnections())
+            .setHostDelay(fConfig.getDownloadHostDelay())
+            .setMaxBytesPerSecond(fConfig.getDownloadMaxBytesPerSecond())
+            .setMaxRequestsPerSecond(fConfig.getDownloadMaxRequestsPerSecond())
+            .setClientErrorDelay(fConfig.getDownloadClientErrorDelay())
+            .setServerErrorDelay(fConfig.getDownloadServerErrorDelay())
+            .setMaxFailureDelay(fConfig.getDownloadMaxFailureDelay())
+            .setHostFailures(fConfig.getDownloadHostFailures())
+            .setHostBlockTime(fConfig.getDownloadHostBlockTime());
+        initDownloadSettings(builder, accessConfig);
+        return builder.build();
+    }
+
+    /**
+     * Adds credentials defined by the access configuration to the given
+     * download parameters. This method could be overloaded in subclasses to
+     * change other download parameters.
+     * 
+     * @param settings the builder of download parameters
+     * @param accessConfig the access configuration
+     */
+    protected void initDownloadSettings(
+        DownloadAdapter.Settings.Builder settings,
         IAccessConfig accessConfig) {
-        final Set<Uri> internalUrls = new HashSet<Uri>();
         List<ICredentials> credentials = accessConfig.getCredentials();
+        UriPrefixIndex.Builder<CredentialInfo> builder = new UriPrefixIndex.Builder<CredentialInfo>();
         for (ICredentials credential : credentials) {
             Uri url = credential.getBaseDomain();
-            internalUrls.add(url);
-            downloadAdapter.addCredentials(
-                url,
+            builder.put(url, new CredentialInfo(
                 credential.getLogin(),
-                credential.getPassword());
+                credential.getPassword()));
         }
+        settings.setCredentials(builder.build());
     }
 
 }
\ No newline at end of file
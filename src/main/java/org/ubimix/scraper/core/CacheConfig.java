@@ -0,0 +1,180 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ubimix.commons.json.JsonArray;
+import org.ubimix.commons.json.JsonObject;
+import org.ubimix.scraper.core.CachePolicy.CacheRule;
+import org.ubimix.scraper.core.ResourceSweeper.StoreLimits;
+
+/**
+ * The configuration of cache rules. Each entry of this array defines a rule
+ * for a store ("store" field), for a URL prefix ("url" field) or for a URL
+ * prefix in a store (both fields). Timeouts are defined in milliseconds by
+ * the "refreshTimeout" and "expirationTimeout" fields; if the expiration
+ * timeout is not defined then the stale period of the default rule is added
+ * to the refresh timeout of the entry. Rules of stores could
+ * also define the maximal size of the store in bytes ("quota") and the
+ * maximal age of its resources in milliseconds ("maxAge"); they are applied
+ * by the {@link ResourceSweeper}:
+ * 
+ * <pre>
+ * [
+ *   { "store" : "maps", "refreshTimeout" : 1209600000,
+ *     "quota" : 1073741824 },
+ *   { "url" : "http://www.foo.bar/", "refreshTimeout" : 60000,
+ *     "expirationTimeout" : 3600000 }
+ * ]
+ * </pre>
+ * 
+ * @author kotelnikov
+ */
+public class CacheConfig extends JsonArray {
+
+    public static class Rule extends JsonObject {
+
+        public static IJsonValueFactory<CacheConfig.Rule> FACTORY = new IJsonValueFactory<CacheConfig.Rule>() {
+            @Override
+            public CacheConfig.Rule newValue(Object object) {
+                return new Rule().setJsonObject(object);
+            }
+        };
+
+        /**
+         * Returns the rule defined by this entry. Timeouts which are not
+         * defined by this entry are inherited from the default rule: the
+         * refresh timeout and the stale period after this timeout.
+         * 
+         * @param defaultRule the rule giving default timeouts
+         * @return the rule defined by this entry
+         */
+        public CacheRule getCacheRule(CacheRule defaultRule) {
+            long refreshTimeout = getLongValue(
+                "refreshTimeout",
+                defaultRule.getRefreshTimeout());
+            long expirationTimeout = getLongValue(
+                "expirationTimeout",
+                refreshTimeout + defaultRule.getStaleTimeout());
+            return new CacheRule(refreshTimeout, expirationTimeout);
+        }
+
+        private long getLongValue(String key, long defaultValue) {
+            String value = getString(key);
+            long result = defaultValue;
+            if (value != null) {
+                try {
+                    result = (long) Double.parseDouble(value.trim());
+                } catch (NumberFormatException e) {
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the maximal age (in milliseconds) of resources of the store
+         * or 0 if the age is not limited (see {@link ResourceSweeper}).
+         * 
+         * @return the maximal age of resources
+         */
+        public long getMaxAge() {
+            return getLongValue("maxAge", 0);
+        }
+
+        /**
+         * Returns the maximal size of the store in bytes or 0 if the size is
+         * not limited (see {@link ResourceSweeper}).
+         * 
+         * @return the quota of the store
+         */
+        public long getQuota() {
+            return getLongValue("quota", 0);
+        }
+
+        public String getStore() {
+            return getString("store");
+        }
+
+        public String getUrl() {
+            return getString("url");
+        }
+    }
+
+    public static IJsonValueFactory<CacheConfig> FACTORY = new IJsonValueFactory<CacheConfig>() {
+        @Override
+        public CacheConfig newValue(Object object) {
+            return new CacheConfig().setJsonObject(object);
+        }
+    };
+
+    /**
+     * The list of rules built when it is requested for the first time.
+     */
+    private volatile List<Rule> fRules;
+
+    /**
+     * Returns a new rule set containing the given default rule and all rules
+     * of this configuration.
+     * 
+     * @param defaultRule the default rule
+     * @return a new rule set
+     */
+    public CachePolicy.RuleSet getRuleSet(CacheRule defaultRule) {
+        CachePolicy.RuleSet.Builder builder = new CachePolicy.RuleSet.Builder();
+        builder.setDefaultRule(defaultRule);
+        for (Rule rule : getRules()) {
+            CacheRule cacheRule = rule.getCacheRule(defaultRule);
+            String store = rule.getStore();
+            String url = rule.getUrl();
+            if (url != null) {
+                builder.setUrlRule(store, url, cacheRule);
+            } else if (store != null) {
+                builder.setStoreRule(store, cacheRule);
+            }
+        }
+        return builder.build();
+    }
+
+    public List<Rule> getRules() {
+        List<Rule> result = fRules;
+        if (result == null) {
+            result = new ArrayList<Rule>();
+            int len = getSize();
+            for (int i = 0; i < len; i++) {
+                result.add(getObject(i, Rule.FACTORY));
+            }
+            result = Collections.unmodifiableList(result);
+            fRules = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns limits of stores defined by rules with the "quota" or "maxAge"
+     * fields.
+     * 
+     * @return store names with their limits
+     */
+    public Map<String, StoreLimits> getStoreLimits() {
+        Map<String, StoreLimits> result = new HashMap<String, StoreLimits>();
+        for (Rule rule : getRules()) {
+            String store = rule.getStore();
+            if (store == null || rule.getUrl() != null) {
+                continue;
+            }
+            long quota = rule.getQuota();
+            long maxAge = rule.getMaxAge();
+            if (quota > 0 || maxAge > 0) {
+                result.put(store, new StoreLimits(quota, maxAge));
+            }
+        }
+        return result;
+    }
+
+}
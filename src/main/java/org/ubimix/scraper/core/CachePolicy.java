@@ -0,0 +1,384 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
+import org.ubimix.scraper.utils.UriPrefixIndex;
+
+/**
+ * This adapter defines how long downloaded resources of an application
+ * context are considered as fresh. Each resource gets a {@link CacheRule}
+ * defined by the first matching level:
+ * <ol>
+ * <li>a rule for a URL prefix in the store of the resource;</li>
+ * <li>a rule for a URL prefix in all stores;</li>
+ * <li>a rule for the store of the resource;</li>
+ * <li>the default rule.</li>
+ * </ol>
+ * <p>
+ * Rules are kept in an immutable {@link RuleSet} replaced as a whole, so new
+ * rules could be applied to a live context without locking readers.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class CachePolicy extends AppContextAdapter {
+
+    /**
+     * Caching parameters of resources.
+     * 
+     * @author kotelnikov
+     */
+    public static class CacheRule {
+
+        private final long fExpirationTimeout;
+
+        private final long fRefreshTimeout;
+
+        /**
+         * @param refreshTimeout the time (in milliseconds) after the last
+         *        validation during which the resource is returned without
+         *        network requests
+         * @param expirationTimeout the time (in milliseconds) after the last
+         *        validation during which the existing content could be
+         *        returned while the resource is refreshed in background; if
+         *        this value is less or equal to the refresh timeout then
+         *        expired resources are always loaded synchronously
+         */
+        public CacheRule(long refreshTimeout, long expirationTimeout) {
+            fRefreshTimeout = Math.max(0, refreshTimeout);
+            fExpirationTimeout = Math.max(fRefreshTimeout, expirationTimeout);
+        }
+
+        public long getExpirationTimeout() {
+            return fExpirationTimeout;
+        }
+
+        public long getRefreshTimeout() {
+            return fRefreshTimeout;
+        }
+
+        /**
+         * Returns the time after the refresh timeout during which the existing
+         * content of an expired resource could be returned.
+         * 
+         * @return the stale period in milliseconds
+         */
+        public long getStaleTimeout() {
+            return fExpirationTimeout - fRefreshTimeout;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheRule[refresh="
+                + fRefreshTimeout
+                + ", expiration="
+                + fExpirationTimeout
+                + "]";
+        }
+
+    }
+
+    /**
+     * An immutable set of cache rules.
+     * 
+     * @author kotelnikov
+     */
+    public static class RuleSet {
+
+        /**
+         * Builders are used to create new rule sets.
+         * 
+         * @author kotelnikov
+         */
+        public static class Builder {
+
+            private CacheRule fDefaultRule = DEFAULT_RULE;
+
+            private Map<String, CacheRule> fStoreRules = new HashMap<String, CacheRule>();
+
+            private Map<String, UriPrefixIndex.Builder<CacheRule>> fUrlRules = new HashMap<String, UriPrefixIndex.Builder<CacheRule>>();
+
+            public Builder() {
+            }
+
+            public Builder(RuleSet rules) {
+                fDefaultRule = rules.fDefaultRule;
+                fStoreRules.putAll(rules.fStoreRules);
+                for (Map.Entry<String, UriPrefixIndex<CacheRule>> entry : rules.fUrlRules
+                    .entrySet()) {
+                    UriPrefixIndex<CacheRule> index = entry.getValue();
+                    fUrlRules.put(
+                        entry.getKey(),
+                        new UriPrefixIndex.Builder<CacheRule>(index));
+                }
+            }
+
+            public RuleSet build() {
+                Map<String, UriPrefixIndex<CacheRule>> urlRules = new HashMap<String, UriPrefixIndex<CacheRule>>();
+                for (Map.Entry<String, UriPrefixIndex.Builder<CacheRule>> entry : fUrlRules
+                    .entrySet()) {
+                    urlRules.put(entry.getKey(), entry.getValue().build());
+                }
+                return new RuleSet(fDefaultRule, fStoreRules, urlRules);
+            }
+
+            public Builder setDefaultRule(CacheRule rule) {
+                fDefaultRule = rule;
+                return this;
+            }
+
+            /**
+             * Sets the rule for all resources of the specified store.
+             * 
+             * @param storeName the name of the store
+             * @param rule the rule for resources of the store
+             * @return this builder
+             */
+            public Builder setStoreRule(String storeName, CacheRule rule) {
+                fStoreRules.put(storeName, rule);
+                return this;
+            }
+
+            /**
+             * Sets the rule for resources with URLs starting with the
+             * specified prefix (see {@link UriPrefixIndex}).
+             * 
+             * @param storeName the name of the store; if this value is
+             *        <code>null</code> then the rule is used for all stores
+             * @param urlPrefix the URL prefix
+             * @param rule the rule for resources with this prefix
+             * @return this builder
+             */
+            public Builder setUrlRule(
+                String storeName,
+                String urlPrefix,
+                CacheRule rule) {
+                String key = storeName != null ? storeName : ALL_STORES;
+                UriPrefixIndex.Builder<CacheRule> builder = fUrlRules.get(key);
+                if (builder == null) {
+                    builder = new UriPrefixIndex.Builder<CacheRule>();
+                    fUrlRules.put(key, builder);
+                }
+                builder.put(urlPrefix, rule);
+                return this;
+            }
+
+        }
+
+        private final CacheRule fDefaultRule;
+
+        private final Map<String, CacheRule> fStoreRules;
+
+        private final Map<String, UriPrefixIndex<CacheRule>> fUrlRules;
+
+        private RuleSet(
+            CacheRule defaultRule,
+            Map<String, CacheRule> storeRules,
+            Map<String, UriPrefixIndex<CacheRule>> urlRules) {
+            fDefaultRule = defaultRule;
+            fStoreRules = Collections
+                .unmodifiableMap(new HashMap<String, CacheRule>(storeRules));
+            fUrlRules = Collections.unmodifiableMap(urlRules);
+        }
+
+        public CacheRule getDefaultRule() {
+            return fDefaultRule;
+        }
+
+        /**
+         * Returns the rule for the resource with the specified store and URL.
+         * 
+         * @param storeName the name of the store containing the resource; it
+         *        could be <code>null</code>
+         * @param url the URL of the resource
+         * @return the rule for the resource
+         */
+        public CacheRule getRule(String storeName, Uri url) {
+            CacheRule rule = null;
+            if (url != null && !fUrlRules.isEmpty()) {
+                String str = url.toString();
+                if (storeName != null) {
+                    rule = getUrlRule(storeName, str);
+                }
+                if (rule == null) {
+                    rule = getUrlRule(ALL_STORES, str);
+                }
+            }
+            if (rule == null && storeName != null) {
+                rule = fStoreRules.get(storeName);
+            }
+            return rule != null ? rule : fDefaultRule;
+        }
+
+        private CacheRule getUrlRule(String key, String url) {
+            UriPrefixIndex<CacheRule> index = fUrlRules.get(key);
+            return index != null ? index.get(url) : null;
+        }
+
+    }
+
+    /**
+     * The key of URL rules used for all stores.
+     */
+    private static final String ALL_STORES = "";
+
+    /**
+     * The rule used by default.
+     */
+    public static final CacheRule DEFAULT_RULE = new CacheRule(
+        DownloadAdapter.DEFAULT_REFRESH_TIMEOUT,
+        DownloadAdapter.DEFAULT_REFRESH_TIMEOUT);
+
+    private volatile RuleSet fRules = new RuleSet.Builder().build();
+
+    public CachePolicy(AppContext appContext) {
+        super(appContext);
+    }
+
+    /**
+     * Returns the current time. This method could be overloaded in subclasses
+     * (for example for tests).
+     * 
+     * @return the current time in milliseconds
+     */
+    protected long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the rule for the resource with the specified store and URL.
+     * 
+     * @param storeName the name of the store containing the resource; it
+     *        could be <code>null</code>
+     * @param url the URL of the resource
+     * @return the rule for the resource
+     */
+    public CacheRule getRule(String storeName, Uri url) {
+        return fRules.getRule(storeName, url);
+    }
+
+    /**
+     * Returns all rules of this policy.
+     * 
+     * @return the current rules
+     */
+    public RuleSet getRules() {
+        return fRules;
+    }
+
+    /**
+     * Returns the time of the last download or validation of the resource.
+     * Resources stored before validation times were recorded (see
+     * {@link CacheUtils#VALIDATED}) use the modification time of their cache
+     * properties.
+     * 
+     * @param cacheAdapter the cache adapter of the resource
+     * @return the validation time or -1 if this time is unknown
+     */
+    public long getValidationTime(CachedResourceAdapter cacheAdapter) {
+        long validationTime = CacheUtils.getValidationTime(cacheAdapter);
+        if (validationTime < 0) {
+            long lastModified = cacheAdapter.getLastModified();
+            validationTime = lastModified > 0 ? lastModified : -1;
+        }
+        return validationTime;
+    }
+
+    /**
+     * Returns <code>true</code> if the resource with the given cache adapter
+     * should be downloaded or re-validated. A resource is expired if it was
+     * not validated during the refresh period of the specified rule (see
+     * {@link #getValidationTime(CachedResourceAdapter)}).
+     * 
+     * @param rule the rule of the resource
+     * @param cacheAdapter the cache adapter of the resource
+     * @return <code>true</code> if the resource is expired
+     */
+    public boolean isExpired(
+        CacheRule rule,
+        CachedResourceAdapter cacheAdapter) {
+        long validationTime = getValidationTime(cacheAdapter);
+        return validationTime < 0
+            || getCurrentTime() - validationTime > rule.getRefreshTimeout();
+    }
+
+    /**
+     * Returns <code>true</code> if the resource with the given cache adapter
+     * is expired but its existing content still could be returned while the
+     * resource is refreshed in background.
+     * 
+     * @param rule the rule of the resource
+     * @param cacheAdapter the cache adapter of the resource
+     * @return <code>true</code> if the resource is stale
+     */
+    public boolean isStale(
+        CacheRule rule,
+        CachedResourceAdapter cacheAdapter) {
+        if (rule.getStaleTimeout() <= 0) {
+            return false;
+        }
+        long validationTime = getValidationTime(cacheAdapter);
+        if (validationTime < 0) {
+            return false;
+        }
+        long age = getCurrentTime() - validationTime;
+        return age > rule.getRefreshTimeout()
+            && age <= rule.getExpirationTimeout();
+    }
+
+    /**
+     * Replaces the default rule of this policy.
+     * 
+     * @param rule the new default rule
+     */
+    public synchronized void setDefaultRule(CacheRule rule) {
+        fRules = new RuleSet.Builder(fRules).setDefaultRule(rule).build();
+    }
+
+    /**
+     * Replaces all rules of this policy.
+     * 
+     * @param rules the new rules
+     */
+    public synchronized void setRules(RuleSet rules) {
+        fRules = rules;
+    }
+
+    /**
+     * Sets the rule for all resources of the specified store.
+     * 
+     * @param storeName the name of the store
+     * @param rule the rule for resources of the store
+     */
+    public synchronized void setStoreRule(String storeName, CacheRule rule) {
+        fRules = new RuleSet.Builder(fRules)
+            .setStoreRule(storeName, rule)
+            .build();
+    }
+
+    /**
+     * Sets the rule for resources with URLs starting with the specified
+     * prefix.
+     * 
+     * @param storeName the name of the store; if this value is
+     *        <code>null</code> then the rule is used for all stores
+     * @param urlPrefix the URL prefix
+     * @param rule the rule for resources with this prefix
+     */
+    public synchronized void setUrlRule(
+        String storeName,
+        String urlPrefix,
+        CacheRule rule) {
+        fRules = new RuleSet.Builder(fRules)
+            .setUrlRule(storeName, urlPrefix, rule)
+            .build();
+    }
+
+}
@@ -0,0 +1,228 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
+import org.ubimix.scraper.core.ContentStreamer.ContentInfo;
+
+/**
+ * Utility methods giving access to properties stored in the
+ * {@link CachedResourceAdapter} of resources. Protocol handlers store response
+ * headers in these properties; this class adds some application-specific
+ * properties (like the time of the last validation of a resource).
+ * 
+ * @author kotelnikov
+ */
+public class CacheUtils {
+
+    /**
+     * The digest of the resource content (see {@link ContentStreamer}).
+     */
+    public static final String CONTENT_DIGEST = "X-Content-Digest";
+
+    /**
+     * The length of the resource content in bytes.
+     */
+    public static final String CONTENT_LENGTH = "X-Content-Length";
+
+    /**
+     * The digest of the content stored in the content store (see
+     * {@link ContentStore}) instead of the resource itself.
+     */
+    public static final String CONTENT_REF = "X-Content-Ref";
+
+    /**
+     * The entity tag returned by the server for the resource.
+     */
+    public static final String ETAG = "ETag";
+
+    /**
+     * The modification time of the resource returned by the server.
+     */
+    public static final String LAST_MODIFIED = "Last-Modified";
+
+    /**
+     * The digest of the raw content used to build a derived resource (for
+     * example the XML version of an HTML page).
+     */
+    public static final String SOURCE_DIGEST = "X-Source-Digest";
+
+    /**
+     * The identifier of the transformation used to build a derived resource.
+     */
+    public static final String TRANSFORMATION = "X-Transformation";
+
+    /**
+     * The time (in milliseconds) when the content of the resource was
+     * downloaded or successfully validated for the last time.
+     */
+    public static final String VALIDATED = "X-Validated";
+
+    /**
+     * Returns the digest of the resource content.
+     * 
+     * @param cache the cache adapter of the resource
+     * @return the digest of the content or <code>null</code> if it is unknown
+     */
+    public static String getContentDigest(CachedResourceAdapter cache) {
+        return getProperty(cache, CONTENT_DIGEST);
+    }
+
+    /**
+     * Returns a long value of the specified property.
+     * 
+     * @param cache the cache adapter containing properties
+     * @param name the name of the property
+     * @param defaultValue the value returned if the property is not defined
+     * @return a long value of the specified property
+     */
+    public static long getLong(
+        CachedResourceAdapter cache,
+        String name,
+        long defaultValue) {
+        String value = getProperty(cache, name);
+        long result = defaultValue;
+        if (value != null) {
+            try {
+                result = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the value of the specified property. Property names are not case
+     * sensitive (like names of HTTP headers).
+     * 
+     * @param cache the cache adapter containing properties
+     * @param name the name of the property
+     * @return the value of the property or <code>null</code> if there is no
+     *         such a property
+     */
+    public static String getProperty(CachedResourceAdapter cache, String name) {
+        Map<String, String> properties = cache.getProperties();
+        if (properties == null) {
+            return null;
+        }
+        String result = properties.get(name);
+        if (result == null) {
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                if (name.equalsIgnoreCase(entry.getKey())) {
+                    result = entry.getValue();
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the time of the last download or validation of the resource.
+     * 
+     * @param cache the cache adapter of the resource
+     * @return the time of the last validation of the resource or -1 if this
+     *         time is unknown
+     */
+    public static long getValidationTime(CachedResourceAdapter cache) {
+        return getLong(cache, VALIDATED, -1);
+    }
+
+    /**
+     * Stores the length and the digest of the resource content.
+     * 
+     * @param cache the cache adapter of the resource
+     * @param info information about the content
+     */
+    public static void setContentInfo(
+        CachedResourceAdapter cache,
+        ContentInfo info) {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put(CONTENT_DIGEST, info.getDigest());
+        values.put(CONTENT_LENGTH, Long.toString(info.getLength()));
+        setProperties(cache, values);
+    }
+
+    /**
+     * Sets a new long value of the specified property.
+     * 
+     * @param cache the cache adapter containing properties
+     * @param name the name of the property
+     * @param value the new value of the property
+     */
+    public static void setLong(
+        CachedResourceAdapter cache,
+        String name,
+        long value) {
+        setProperty(cache, name, Long.toString(value));
+    }
+
+    /**
+     * Sets new property values. Properties with <code>null</code> values are
+     * removed.
+     * 
+     * @param cache the cache adapter containing properties
+     * @param values the new values of properties
+     */
+    public static void setProperties(
+        CachedResourceAdapter cache,
+        Map<String, String> values) {
+        Map<String, String> properties = new HashMap<String, String>();
+        Map<String, String> oldProperties = cache.getProperties();
+        if (oldProperties != null) {
+            for (Map.Entry<String, String> entry : oldProperties.entrySet()) {
+                String key = entry.getKey();
+                boolean replaced = false;
+                for (String name : values.keySet()) {
+                    if (name.equalsIgnoreCase(key)) {
+                        replaced = true;
+                        break;
+                    }
+                }
+                if (!replaced) {
+                    properties.put(key, entry.getValue());
+                }
+            }
+        }
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (entry.getValue() != null) {
+                properties.put(entry.getKey(), entry.getValue());
+            }
+        }
+        cache.setProperties(properties);
+    }
+
+    /**
+     * Sets a new value of the specified property. If the value is
+     * <code>null</code> then the property is removed.
+     * 
+     * @param cache the cache adapter containing properties
+     * @param name the name of the property
+     * @param value the new value of the property
+     */
+    public static void setProperty(
+        CachedResourceAdapter cache,
+        String name,
+        String value) {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put(name, value);
+        setProperties(cache, values);
+    }
+
+    /**
+     * Sets the time of the last download or validation of the resource.
+     * 
+     * @param cache the cache adapter of the resource
+     * @param time the validation time
+     */
+    public static void setValidationTime(
+        CachedResourceAdapter cache,
+        long time) {
+        setLong(cache, VALIDATED, time);
+    }
+
+}
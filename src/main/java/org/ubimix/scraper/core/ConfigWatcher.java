@@ -0,0 +1,194 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This object watches configuration files and notifies a listener when some
+ * of them are changed. Files are checked periodically in a background daemon
+ * thread by their modification time and size, so several changes of the
+ * same file done between two checks are reported only once.
+ * 
+ * @author kotelnikov
+ */
+public class ConfigWatcher {
+
+    /**
+     * Listeners of this type are notified about modified configuration files.
+     * 
+     * @author kotelnikov
+     */
+    public interface IConfigListener {
+
+        /**
+         * This method is called in the watcher thread when some of watched
+         * files are changed, created or removed.
+         * 
+         * @param files the modified files
+         * @throws Exception if the new configuration can not be applied
+         */
+        void onConfigChanged(Collection<File> files) throws Exception;
+    }
+
+    /**
+     * The state of a watched file.
+     */
+    private static class FileState {
+
+        private final boolean fExists;
+
+        private final long fLastModified;
+
+        private final long fLength;
+
+        public FileState(File file) {
+            fExists = file.exists();
+            fLastModified = file.lastModified();
+            fLength = file.length();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof FileState)) {
+                return false;
+            }
+            FileState o = (FileState) obj;
+            return fExists == o.fExists
+                && fLastModified == o.fLastModified
+                && fLength == o.fLength;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (fLastModified ^ fLength);
+        }
+
+    }
+
+    /**
+     * The default interval between two checks of watched files.
+     */
+    public static final long DEFAULT_INTERVAL = 5 * 1000;
+
+    private final static Logger log = Logger.getLogger(ConfigWatcher.class
+        .getName());
+
+    private Map<File, FileState> fFiles = new LinkedHashMap<File, FileState>();
+
+    private long fInterval;
+
+    private IConfigListener fListener;
+
+    private Thread fThread;
+
+    public ConfigWatcher(IConfigListener listener) {
+        this(listener, DEFAULT_INTERVAL);
+    }
+
+    public ConfigWatcher(IConfigListener listener, long interval) {
+        fListener = listener;
+        fInterval = Math.max(1, interval);
+    }
+
+    /**
+     * Adds a new file to watch. The current state of the file is used as the
+     * initial one, so only changes done after this call are reported.
+     * 
+     * @param file the file to watch
+     */
+    public synchronized void addFile(File file) {
+        file = file.getAbsoluteFile();
+        fFiles.put(file, new FileState(file));
+    }
+
+    /**
+     * Checks all watched files and notifies the listener if some of them were
+     * changed since the previous check. Errors of the listener are logged.
+     * 
+     * @return <code>true</code> if some files were changed
+     */
+    public boolean checkFiles() {
+        List<File> changed = new ArrayList<File>();
+        synchronized (this) {
+            for (Map.Entry<File, FileState> entry : fFiles.entrySet()) {
+                File file = entry.getKey();
+                FileState state = new FileState(file);
+                if (!state.equals(entry.getValue())) {
+                    entry.setValue(state);
+                    changed.add(file);
+                }
+            }
+        }
+        if (changed.isEmpty()) {
+            return false;
+        }
+        try {
+            fListener.onConfigChanged(changed);
+        } catch (Throwable t) {
+            log.log(Level.WARNING, "Can not apply modified configuration "
+                + changed
+                + ".", t);
+        }
+        return true;
+    }
+
+    public long getInterval() {
+        return fInterval;
+    }
+
+    /**
+     * Returns <code>true</code> if the watcher thread is running.
+     * 
+     * @return <code>true</code> if this watcher is started
+     */
+    public synchronized boolean isStarted() {
+        return fThread != null;
+    }
+
+    /**
+     * Starts the thread periodically checking watched files.
+     */
+    public synchronized void start() {
+        if (fThread != null) {
+            return;
+        }
+        fThread = new Thread("config-watcher") {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    try {
+                        Thread.sleep(fInterval);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    checkFiles();
+                }
+            }
+        };
+        fThread.setDaemon(true);
+        fThread.start();
+    }
+
+    /**
+     * Stops the thread checking watched files.
+     */
+    public synchronized void stop() {
+        if (fThread != null) {
+            fThread.interrupt();
+            fThread = null;
+        }
+    }
+
+}
@@ -0,0 +1,541 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.ubimix.commons.uri.Path;
+import org.ubimix.resources.IContentAdapter;
+import org.ubimix.resources.IWrfResource;
+import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
+import org.ubimix.scraper.core.ContentStreamer.ContentInfo;
+
+/**
+ * This adapter stores downloaded content only once for all resources with the
+ * same bytes. Content is kept in a dedicated store of the repository in
+ * resources ("blobs") named by the digest of their content. A resource with
+ * stored content gets the reference to the blob (the
+ * {@link CacheUtils#CONTENT_REF} property). By default the content of the
+ * resource is released (truncated), so each body is kept only once (see
+ * {@link #setReleaseContent(boolean)}). All readers have to use the
+ * {@link #getContentResource(IWrfResource)} or
+ * {@link #getContentInput(IWrfResource)} methods (or the corresponding
+ * methods of the {@link AppContext}); the {@link DocAdapter} reads HTML pages
+ * and XSL stylesheets and the {@link MapAdapter} returns resources in this
+ * way.
+ * <p>
+ * The content of stored resources should be read from the resource returned
+ * by the {@link #getContentResource(IWrfResource)} method. A reference is used
+ * only while it is equal to the digest of the resource, so when a new content
+ * is written in the resource the reference is ignored until the new content
+ * is stored as well.
+ * </p>
+ * <p>
+ * If a {@link SegmentStore} is defined then blobs are packed in its segment
+ * files instead of separate resources of the repository, and released
+ * resources keep only their properties and an empty content file. The
+ * {@link #getContentInput(IWrfResource)} method reads the content directly
+ * from segments. The {@link #getContentResource(IWrfResource)} method restores
+ * the blob resource from segments only when a resource object is required
+ * (for example by the {@link DocAdapter} to parse HTML pages); restored blobs
+ * are removed by the {@link ResourceSweeper} (see
+ * {@link #removeRestoredBlob(String, List)}).
+ * </p>
+ * <p>
+ * Blobs are not removed when resources referring to them are removed or
+ * re-written; unused blobs are collected by the {@link ResourceSweeper} (see
+ * {@link #beginCollection()}).
+ * </p>
+ * <p>
+ * This mode is disabled by default.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class ContentStore extends AppContextAdapter {
+
+    /**
+     * The default name of the store containing blobs.
+     */
+    public static final String DEFAULT_STORE_NAME = "blobs";
+
+    private static final int LOCK_COUNT = 32;
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(ContentStreamer.DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Digest algorithm '"
+                + ContentStreamer.DIGEST_ALGORITHM
+                + "' is not available.", e);
+        }
+    }
+
+    /**
+     * This lock is used to wait for stores started before a collection.
+     */
+    private final ReadWriteLock fCollectionLock = new ReentrantReadWriteLock();
+
+    private volatile boolean fEnabled;
+
+    /**
+     * Locks used to avoid simultaneous writing of the same blob.
+     */
+    private final Object[] fLocks = new Object[LOCK_COUNT];
+
+    private volatile boolean fReleaseContent = true;
+
+    private volatile SegmentStore fSegmentStore;
+
+    /**
+     * Digests of content stored during the current collection or
+     * <code>null</code> if there is no collection.
+     */
+    private volatile Set<String> fStoredDigests;
+
+    private volatile String fStoreName = DEFAULT_STORE_NAME;
+
+    public ContentStore(AppContext appContext) {
+        super(appContext);
+        for (int i = 0; i < fLocks.length; i++) {
+            fLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Starts a collection of unused blobs. Digests of all content stored
+     * until the end of the collection (see {@link #endCollection()}) are
+     * recorded, so blobs of this content are not removed by the
+     * {@link #removeBlob(String, List)} method. This method waits for all
+     * stores started before the collection, so references written by these
+     * stores are already visible.
+     * 
+     * @return <code>true</code> if the collection is started and
+     *         <code>false</code> if another collection is in progress
+     */
+    public boolean beginCollection() {
+        Set<String> digests = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        fCollectionLock.writeLock().lock();
+        try {
+            if (fStoredDigests != null) {
+                return false;
+            }
+            fStoredDigests = digests;
+            return true;
+        } finally {
+            fCollectionLock.writeLock().unlock();
+        }
+    }
+
+    private void checkDigest(
+        IWrfResource resource,
+        String expected,
+        String actual) throws IOException {
+        if (!expected.equals(actual)) {
+            throw new IOException("The content of the resource "
+                + resource.getPath()
+                + " does not correspond to its digest.");
+        }
+    }
+
+    /**
+     * Finishes the current collection of unused blobs.
+     */
+    public void endCollection() {
+        fStoredDigests = null;
+    }
+
+    /**
+     * Returns the blob resource for the content with the specified digest.
+     * Blobs are split in sub-folders by the first characters of their digests.
+     * 
+     * @param digest the digest of the content
+     * @return the blob resource
+     */
+    public IWrfResource getBlob(String digest) {
+        Path path = new Path.Builder(digest.substring(0, 2))
+            .appendPath(digest.substring(2, 4))
+            .appendPath(digest)
+            .build();
+        return fContext.getResource(fStoreName, path);
+    }
+
+    /**
+     * Returns a stream reading the content of the specified resource. If the
+     * content is stored in segments then it is read directly from the segment
+     * store.
+     * 
+     * @param resource the resource
+     * @return a stream reading the content of the resource
+     * @throws IOException
+     */
+    public InputStream getContentInput(IWrfResource resource)
+        throws IOException {
+        SegmentStore segmentStore = fSegmentStore;
+        if (segmentStore != null) {
+            CachedResourceAdapter cache = resource
+                .getAdapter(CachedResourceAdapter.class);
+            String reference = getReference(cache);
+            if (reference != null) {
+                InputStream input = segmentStore.getInput(reference);
+                if (input != null) {
+                    return input;
+                }
+            }
+        }
+        IWrfResource contentResource = getContentResource(resource);
+        return contentResource
+            .getAdapter(IContentAdapter.class)
+            .getContentInput();
+    }
+
+    /**
+     * Returns the resource containing the content of the specified resource.
+     * It is the referenced blob if the content of the resource was stored in
+     * this store and the resource itself otherwise. If blobs are kept in
+     * segments then the blob resource is restored from segments; the
+     * {@link #getContentInput(IWrfResource)} method should be preferred when
+     * only a stream is required.
+     * 
+     * @param resource the resource
+     * @return the resource containing the content
+     * @throws IOException if the blob can not be restored from segments
+     */
+    public IWrfResource getContentResource(IWrfResource resource)
+        throws IOException {
+        CachedResourceAdapter cache = resource
+            .getAdapter(CachedResourceAdapter.class);
+        String reference = getReference(cache);
+        if (reference == null) {
+            return resource;
+        }
+        IWrfResource blob = getBlob(reference);
+        CachedResourceAdapter blobCache = blob
+            .getAdapter(CachedResourceAdapter.class);
+        if (reference.equals(CacheUtils.getContentDigest(blobCache))) {
+            return blob;
+        }
+        SegmentStore segmentStore = fSegmentStore;
+        if (segmentStore != null) {
+            fCollectionLock.readLock().lock();
+            try {
+                if (restoreBlob(blob, reference, segmentStore)) {
+                    return blob;
+                }
+            } finally {
+                fCollectionLock.readLock().unlock();
+            }
+        }
+        return resource;
+    }
+
+    private Object getLock(String digest) {
+        int hash = digest.hashCode();
+        return fLocks[(hash ^ (hash >>> 16)) & (fLocks.length - 1)];
+    }
+
+    /**
+     * Returns the digest of the blob referenced by the resource with the given
+     * cache adapter or <code>null</code> if there is no valid reference.
+     * 
+     * @param cache the cache adapter of the resource
+     * @return the digest of the referenced blob
+     */
+    public String getReference(CachedResourceAdapter cache) {
+        String reference = CacheUtils.getProperty(
+            cache,
+            CacheUtils.CONTENT_REF);
+        String digest = CacheUtils.getContentDigest(cache);
+        return reference != null && reference.equals(digest)
+            ? reference
+            : null;
+    }
+
+    public SegmentStore getSegmentStore() {
+        return fSegmentStore;
+    }
+
+    public String getStoreName() {
+        return fStoreName;
+    }
+
+    public boolean isEnabled() {
+        return fEnabled;
+    }
+
+    /**
+     * Returns <code>true</code> if the content of stored resources is
+     * truncated.
+     * 
+     * @return <code>true</code> if stored resources release their content
+     */
+    public boolean isReleaseContent() {
+        return fReleaseContent;
+    }
+
+    /**
+     * Removes the unused blob with the specified digest from the segment
+     * store and deletes the given files of the blob resource. This method
+     * should be called only during a collection (see
+     * {@link #beginCollection()}); the blob is not removed if its content was
+     * stored since the beginning of the collection.
+     * 
+     * @param digest the digest of the blob
+     * @param files files of the blob resource in the repository
+     * @return <code>true</code> if the blob is removed
+     * @throws IOException if the blob can not be removed from segments
+     */
+    public boolean removeBlob(String digest, List<File> files)
+        throws IOException {
+        synchronized (getLock(digest)) {
+            Set<String> storedDigests = fStoredDigests;
+            if (storedDigests != null && storedDigests.contains(digest)) {
+                return false;
+            }
+            SegmentStore segmentStore = fSegmentStore;
+            if (segmentStore != null) {
+                segmentStore.remove(digest);
+            }
+            for (File file : files) {
+                file.delete();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Deletes the given files of the blob resource restored from segments
+     * (see {@link #getContentResource(IWrfResource)}). The content itself is
+     * kept in the segment store. This method should be called only during a
+     * collection (see {@link #beginCollection()}); the blob is not removed if
+     * it was restored or stored since the beginning of the collection.
+     * 
+     * @param digest the digest of the blob
+     * @param files files of the blob resource in the repository
+     * @return <code>true</code> if the files of the blob are removed
+     */
+    public boolean removeRestoredBlob(String digest, List<File> files) {
+        synchronized (getLock(digest)) {
+            Set<String> storedDigests = fStoredDigests;
+            if (storedDigests != null && storedDigests.contains(digest)) {
+                return false;
+            }
+            SegmentStore segmentStore = fSegmentStore;
+            if (segmentStore == null || !segmentStore.contains(digest)) {
+                return false;
+            }
+            for (File file : files) {
+                file.delete();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes the value with the given digest from segments in the blob
+     * resource if this blob does not exist yet.
+     * 
+     * @return <code>true</code> if the blob contains the content
+     */
+    private boolean restoreBlob(
+        IWrfResource blob,
+        String digest,
+        SegmentStore segmentStore) throws IOException {
+        Set<String> storedDigests = fStoredDigests;
+        synchronized (getLock(digest)) {
+            if (storedDigests != null) {
+                // Protects the restored blob from the current collection
+                storedDigests.add(digest);
+            }
+            CachedResourceAdapter blobCache = blob
+                .getAdapter(CachedResourceAdapter.class);
+            if (digest.equals(CacheUtils.getContentDigest(blobCache))) {
+                return true;
+            }
+            InputStream input = segmentStore.getInput(digest);
+            if (input == null) {
+                return false;
+            }
+            ContentInfo info;
+            try {
+                info = ContentStreamer.write(input, blob
+                    .getAdapter(IContentAdapter.class));
+            } finally {
+                input.close();
+            }
+            checkDigest(blob, digest, info.getDigest());
+            CacheUtils.setContentInfo(blobCache, info);
+            return true;
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        fEnabled = enabled;
+    }
+
+    /**
+     * Defines if the content of stored resources should be truncated. This
+     * mode is enabled by default; it should be disabled only if some readers
+     * get the content directly from resources instead of this store.
+     * 
+     * @param release if it is <code>true</code> then stored resources
+     *        release their content
+     */
+    public void setReleaseContent(boolean release) {
+        fReleaseContent = release;
+    }
+
+    /**
+     * Sets the segment store used to keep blobs. If it is <code>null</code>
+     * then blobs are stored as resources of the repository.
+     * 
+     * @param segmentStore the segment store
+     */
+    public void setSegmentStore(SegmentStore segmentStore) {
+        fSegmentStore = segmentStore;
+    }
+
+    public void setStoreName(String storeName) {
+        fStoreName = storeName;
+    }
+
+    /**
+     * Writes the content of the resource in the blob resource with the given
+     * digest if this blob does not exist yet.
+     */
+    private void storeBlob(IWrfResource resource, String digest)
+        throws IOException {
+        IWrfResource blob = getBlob(digest);
+        CachedResourceAdapter blobCache = blob
+            .getAdapter(CachedResourceAdapter.class);
+        synchronized (getLock(digest)) {
+            if (digest.equals(CacheUtils.getContentDigest(blobCache))) {
+                return;
+            }
+            IContentAdapter content = resource
+                .getAdapter(IContentAdapter.class);
+            IContentAdapter blobContent = blob
+                .getAdapter(IContentAdapter.class);
+            InputStream input = content.getContentInput();
+            ContentInfo info;
+            try {
+                info = ContentStreamer.write(input, blobContent);
+            } finally {
+                input.close();
+            }
+            checkDigest(resource, digest, info.getDigest());
+            // The blob is valid only when its digest is defined
+            CacheUtils.setContentInfo(blobCache, info);
+        }
+    }
+
+    /**
+     * Copies the content of the specified resource to the blob with the same
+     * digest and adds a reference to this blob to the resource. If stored
+     * resources release their content (see {@link #isReleaseContent()}) then
+     * the content of the resource is truncated. The blob is written only if
+     * it does not exist yet. The digest of
+     * the content should be already defined in the resource properties (see
+     * {@link CacheUtils#setContentInfo(CachedResourceAdapter, ContentInfo)}).
+     * 
+     * @param resource the resource to store
+     * @return <code>true</code> if the content of the resource is stored in
+     *         this store
+     * @throws IOException if the content can not be copied or if it does not
+     *         correspond to its digest
+     */
+    public boolean storeContent(IWrfResource resource) throws IOException {
+        if (!fEnabled) {
+            return false;
+        }
+        CachedResourceAdapter cache = resource
+            .getAdapter(CachedResourceAdapter.class);
+        String digest = CacheUtils.getContentDigest(cache);
+        if (digest == null || digest.length() < 4) {
+            return false;
+        }
+        fCollectionLock.readLock().lock();
+        try {
+            return storeContent(resource, cache, digest);
+        } finally {
+            fCollectionLock.readLock().unlock();
+        }
+    }
+
+    private boolean storeContent(
+        IWrfResource resource,
+        CachedResourceAdapter cache,
+        String digest) throws IOException {
+        Set<String> storedDigests = fStoredDigests;
+        if (storedDigests != null) {
+            // Protects the blob from the current collection
+            synchronized (getLock(digest)) {
+                storedDigests.add(digest);
+            }
+        }
+        if (getReference(cache) != null) {
+            return true;
+        }
+        IContentAdapter content = resource.getAdapter(IContentAdapter.class);
+        if (!content.exists()) {
+            return false;
+        }
+        SegmentStore segmentStore = fSegmentStore;
+        if (segmentStore != null) {
+            storeSegment(resource, digest, segmentStore);
+        } else {
+            storeBlob(resource, digest);
+        }
+        CacheUtils.setProperty(cache, CacheUtils.CONTENT_REF, digest);
+        if (fReleaseContent) {
+            content.getContentOutput().close();
+        }
+        return true;
+    }
+
+    /**
+     * Writes the content of the resource in the segment store if there is no
+     * value with the given digest yet.
+     */
+    private void storeSegment(
+        IWrfResource resource,
+        String digest,
+        SegmentStore segmentStore) throws IOException {
+        synchronized (getLock(digest)) {
+            if (segmentStore.contains(digest)) {
+                return;
+            }
+            IContentAdapter content = resource
+                .getAdapter(IContentAdapter.class);
+            DigestInputStream input = new DigestInputStream(
+                content.getContentInput(),
+                newDigest());
+            try {
+                segmentStore.put(digest, input);
+            } finally {
+                input.close();
+            }
+            String actual = ContentStreamer.toHex(input
+                .getMessageDigest()
+                .digest());
+            if (!digest.equals(actual)) {
+                segmentStore.remove(digest);
+            }
+            checkDigest(resource, digest, actual);
+        }
+    }
+
+}
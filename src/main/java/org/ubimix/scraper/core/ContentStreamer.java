@@ -0,0 +1,294 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.ubimix.resources.IContentAdapter;
+
+/**
+ * This class copies resource content through NIO channels using a fixed-size
+ * buffer reused by each thread. While the content is copied it computes the
+ * length and the digest of the transferred bytes. So the memory used by one
+ * copy operation does not depend on the size of the content.
+ * 
+ * @author kotelnikov
+ */
+public class ContentStreamer {
+
+    /**
+     * Information about copied content: the number of bytes and the digest.
+     * 
+     * @author kotelnikov
+     */
+    public static class ContentInfo {
+
+        private String fDigest;
+
+        private long fLength;
+
+        public ContentInfo(long length, String digest) {
+            fLength = length;
+            fDigest = digest;
+        }
+
+        /**
+         * Returns the hex-encoded digest of the content.
+         * 
+         * @return the digest of the content
+         */
+        public String getDigest() {
+            return fDigest;
+        }
+
+        /**
+         * Returns the length of the content in bytes.
+         * 
+         * @return the length of the content
+         */
+        public long getLength() {
+            return fLength;
+        }
+
+        @Override
+        public String toString() {
+            return fDigest + " (" + fLength + " bytes)";
+        }
+    }
+
+    /**
+     * This stream computes the length and the digest of all bytes written to
+     * the underlying stream. Written bytes are taken from the given token
+     * bucket, so the speed of writing is limited by the rate of this bucket.
+     * It is used to meter content written by code which reads the source
+     * stream itself (like protocol handlers).
+     * 
+     * @author kotelnikov
+     */
+    public static class MeteredOutputStream extends DigestOutputStream {
+
+        private long fLength;
+
+        private final TokenBucket fLimiter;
+
+        /**
+         * @param output the underlying stream
+         * @param limiter the bucket limiting the number of bytes per second;
+         *        it could be <code>null</code>
+         * @throws IOException if the digest algorithm is not available
+         */
+        public MeteredOutputStream(OutputStream output, TokenBucket limiter)
+            throws IOException {
+            super(output, newDigest());
+            fLimiter = limiter;
+        }
+
+        /**
+         * Returns the length and the digest of all written bytes. This method
+         * resets the digest, so it should be called only once, when all the
+         * content is written.
+         * 
+         * @return information about written content
+         */
+        public ContentInfo getContentInfo() {
+            return new ContentInfo(fLength, toHex(getMessageDigest()
+                .digest()));
+        }
+
+        private void meter(int len) throws IOException {
+            fLength += len;
+            if (fLimiter != null) {
+                fLimiter.acquire(len);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            meter(len);
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            meter(1);
+            super.write(b);
+        }
+
+    }
+
+    /**
+     * Buffers used to copy content. Each thread has its own buffer.
+     */
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * The size of the buffer used to copy content.
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The algorithm used to compute digests of the content.
+     */
+    public static final String DIGEST_ALGORITHM = "SHA-1";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Copies all bytes from the specified input stream to the output stream
+     * and returns the length and the digest of the copied content. If the
+     * output stream is <code>null</code> then the content is just read and
+     * the digest is computed. Streams are not closed by this method.
+     * 
+     * @param input the input stream
+     * @param output the output stream; it could be <code>null</code>
+     * @return information about copied content
+     * @throws IOException
+     */
+    public static ContentInfo copy(InputStream input, OutputStream output)
+        throws IOException {
+        return copy(input, output, null);
+    }
+
+    /**
+     * Copies all bytes from the specified input stream to the output stream
+     * and returns the length and the digest of the copied content. Each block
+     * of read bytes is taken from the given token bucket, so the copy speed is
+     * limited by the rate of this bucket. Streams are not closed by this
+     * method.
+     * 
+     * @param input the input stream
+     * @param output the output stream; it could be <code>null</code>
+     * @param limiter the bucket limiting the number of bytes per second; it
+     *        could be <code>null</code>
+     * @return information about copied content
+     * @throws IOException
+     */
+    public static ContentInfo copy(
+        InputStream input,
+        OutputStream output,
+        TokenBucket limiter) throws IOException {
+        MessageDigest digest = newDigest();
+        ReadableByteChannel in = Channels.newChannel(input);
+        WritableByteChannel out = output != null ? Channels
+            .newChannel(output) : null;
+        ByteBuffer buf = BUFFER.get();
+        buf.clear();
+        long length = 0;
+        while (in.read(buf) >= 0) {
+            buf.flip();
+            int len = buf.remaining();
+            if (len == 0) {
+                buf.clear();
+                continue;
+            }
+            length += len;
+            if (limiter != null) {
+                limiter.acquire(len);
+            }
+            digest.update(buf.duplicate());
+            while (out != null && buf.hasRemaining()) {
+                out.write(buf);
+            }
+            buf.clear();
+        }
+        return new ContentInfo(length, toHex(digest.digest()));
+    }
+
+    /**
+     * Reads the content of the specified adapter and returns its length and
+     * its digest.
+     * 
+     * @param content the adapter giving access to the content
+     * @return information about the content
+     * @throws IOException
+     */
+    public static ContentInfo digest(IContentAdapter content)
+        throws IOException {
+        InputStream input = content.getContentInput();
+        try {
+            return copy(input, null);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Digest algorithm '"
+                + DIGEST_ALGORITHM
+                + "' is not available.", e);
+        }
+    }
+
+    /**
+     * Returns a hex-encoded representation of the given bytes.
+     * 
+     * @param bytes the bytes to encode
+     * @return a hex string
+     */
+    public static String toHex(byte[] bytes) {
+        char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xFF;
+            result[i * 2] = HEX[b >> 4];
+            result[i * 2 + 1] = HEX[b & 0x0F];
+        }
+        return new String(result);
+    }
+
+    /**
+     * Writes the content of the given input stream to the specified content
+     * adapter. The input stream is not closed by this method.
+     * 
+     * @param input the stream with the content to write
+     * @param content the target content adapter
+     * @return information about written content
+     * @throws IOException
+     */
+    public static ContentInfo write(InputStream input, IContentAdapter content)
+        throws IOException {
+        return write(input, content, null);
+    }
+
+    /**
+     * Writes the content of the given input stream to the specified content
+     * adapter. The number of bytes written per second is limited by the given
+     * token bucket. The input stream is not closed by this method.
+     * 
+     * @param input the stream with the content to write
+     * @param content the target content adapter
+     * @param limiter the bucket limiting the number of bytes per second; it
+     *        could be <code>null</code>
+     * @return information about written content
+     * @throws IOException
+     */
+    public static ContentInfo write(
+        InputStream input,
+        IContentAdapter content,
+        TokenBucket limiter) throws IOException {
+        OutputStream output = content.getContentOutput();
+        try {
+            return copy(input, output, limiter);
+        } finally {
+            output.close();
+        }
+    }
+
+}
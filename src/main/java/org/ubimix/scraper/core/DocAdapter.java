@@ -4,19 +4,42 @@
 package org.ubimix.scraper.core;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 
 import org.ubimix.commons.uri.Uri;
 import org.ubimix.commons.xml.XmlException;
 import org.ubimix.commons.xml.XmlWrapper;
+import org.ubimix.commons.xml.XmlWrapper.XmlContext;
 import org.ubimix.commons.xml.atom.AtomFeed;
+import org.ubimix.resources.IContentAdapter;
 import org.ubimix.resources.IWrfResource;
 import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
 import org.ubimix.resources.adapters.html.HTMLAdapter;
 import org.ubimix.resources.adapters.xml.XmlAdapter;
 import org.ubimix.scraper.protocol.HttpStatusCode;
-import org.ubimix.scraper.transformer.CompositeTransformer;
 import org.ubimix.scraper.transformer.IDocumentTransformer;
-import org.ubimix.scraper.transformer.XslBasedDocumentTransformer;
+import org.ubimix.scraper.utils.UriPrefixIndex;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
 
 /**
  * @author kotelnikov
@@ -27,13 +50,163 @@ public class DocAdapter extends AppContextAdapter {
         XmlWrapper transform(XmlWrapper xhtml) throws XmlException, IOException;
     }
 
-    private CompositeTransformer fDocumentTransformer = new CompositeTransformer();
+    /**
+     * A document to transform: the URL of the document, the resource with
+     * the raw (HTML) content and the resource where the result is written.
+     */
+    public static class TransformItem {
+
+        private final IWrfResource fAtomResource;
+
+        private final IWrfResource fRawResource;
+
+        private final Uri fUrl;
+
+        public TransformItem(
+            Uri url,
+            IWrfResource rawResource,
+            IWrfResource atomResource) {
+            fUrl = url;
+            fRawResource = rawResource;
+            fAtomResource = atomResource;
+        }
+
+        public IWrfResource getAtomResource() {
+            return fAtomResource;
+        }
+
+        public IWrfResource getRawResource() {
+            return fRawResource;
+        }
+
+        public Uri getUrl() {
+            return fUrl;
+        }
+
+        @Override
+        public String toString() {
+            return "TransformItem[" + fUrl + "]";
+        }
+
+    }
+
+    /**
+     * A loaded stylesheet with its compiled version.
+     */
+    private static class XslTemplates {
+
+        private final TemplatesCache.Entry fEntry;
+
+        private final XmlWrapper fXsl;
+
+        public XslTemplates(XmlWrapper xsl, TemplatesCache.Entry entry) {
+            fXsl = xsl;
+            fEntry = entry;
+        }
+
+        public TemplatesCache.Entry getEntry() {
+            return fEntry;
+        }
+
+        public XmlWrapper getXsl() {
+            return fXsl;
+        }
+
+    }
+
+    private final static Logger log = Logger.getLogger(DocAdapter.class
+        .getName());
+
+    /**
+     * The identifier of the HTML to XHTML conversion. It should be changed
+     * when the conversion produces different results for the same content.
+     */
+    public static final String XHTML_TRANSFORMATION = "xhtml:1";
+
+    private volatile IDocumentTransformer fDefaultTransformer;
+
+    private final TemplatesCache fTemplatesCache = new TemplatesCache();
+
+    /**
+     * Registered document transformers by their base URLs. This index is
+     * immutable; it is replaced by a new version when a transformer is
+     * registered, so registrations do not block transformations.
+     */
+    private volatile UriPrefixIndex<IDocumentTransformer> fTransformers = new UriPrefixIndex.Builder<IDocumentTransformer>()
+        .build();
 
     public DocAdapter(AppContext appContext) {
         super(appContext);
     }
 
+    /**
+     * Returns the identifier of the XHTML to Atom transformation of the
+     * specified document. It depends on the type of the transformer selected
+     * for the document (see {@link #getDocumentTransformer(Uri)}); for XSL
+     * transformers it depends on the digest of their stylesheets as well. So
+     * the identifier changes when another transformer is registered for the
+     * document or when a new version of its stylesheet is loaded.
+     * 
+     * @param url the URL of the document
+     * @return the identifier of the transformation of the document
+     */
+    public String getAtomTransformationId(Uri url) {
+        IDocumentTransformer transformer = getDocumentTransformer(url);
+        return "atom:"
+            + XHTML_TRANSFORMATION
+            + "|"
+            + getTransformerId(transformer);
+    }
+
+    /**
+     * Returns the transformer registered for the longest base URL of the
+     * specified document or the default transformer if there is no such
+     * base URL. The cost of this method depends on the number of segments of
+     * the URL, not on the number of registered transformers.
+     * 
+     * @param url the URL of the document
+     * @return the transformer of the document
+     */
+    public IDocumentTransformer getDocumentTransformer(Uri url) {
+        IDocumentTransformer transformer = fTransformers.get(url);
+        return transformer != null ? transformer : fDefaultTransformer;
+    }
+
+    public TemplatesCache getTemplatesCache() {
+        return fTemplatesCache;
+    }
+
+    private String getTransformerId(IDocumentTransformer transformer) {
+        if (transformer == null) {
+            return "";
+        }
+        if (transformer instanceof TemplatesDocumentTransformer) {
+            String xslUri = ((TemplatesDocumentTransformer) transformer)
+                .getXslUri();
+            TemplatesCache.Entry entry = fTemplatesCache.getEntry(xslUri);
+            String digest = entry != null ? entry.getDigest() : "";
+            return "xsl:" + xslUri + "#" + digest;
+        }
+        return transformer.getClass().getName();
+    }
+
+    /**
+     * Loads the XSL stylesheet with the specified URI. If the content of the
+     * stylesheet was changed then the new version is compiled in the cache of
+     * templates (see {@link #getTemplatesCache()}).
+     * 
+     * @param xslUri the URI of the stylesheet
+     * @return the stylesheet
+     * @throws IOException
+     * @throws XmlException
+     */
     public XmlWrapper loadXsl(Uri xslUri) throws IOException, XmlException {
+        return loadXslTemplates(xslUri).getXsl();
+    }
+
+    private XslTemplates loadXslTemplates(Uri xslUri)
+        throws IOException,
+        XmlException {
         IWrfResource xslResource = fContext.getResource("tmp", xslUri, null);
         HttpStatusCode status = fContext
             .getAdapter(DownloadAdapter.class)
@@ -44,28 +217,123 @@ public class DocAdapter extends AppContextAdapter {
                 + "' could not be loaded. Status: "
                 + status);
         }
-        XmlAdapter xslAdapter = xslResource.getAdapter(XmlAdapter.class);
-        XmlWrapper xsl = xslAdapter.getWrapper();
-        return xsl;
+        CachedResourceAdapter xslCache = xslResource
+            .getAdapter(CachedResourceAdapter.class);
+        String digest = CacheUtils.getContentDigest(xslCache);
+        if (digest == null) {
+            digest = "lastModified:" + xslCache.getLastModified();
+        }
+        XmlWrapper xsl = readXml(xslUri, fContext.getContentInput(xslResource));
+        TemplatesCache.Entry entry = fTemplatesCache.getEntry(
+            xslUri.toString(),
+            digest,
+            xsl);
+        return new XslTemplates(xsl, entry);
+    }
+
+    /**
+     * Returns <code>true</code> if the XML resource should be re-built from
+     * the raw resource. Resources are re-built if the XML resource does not
+     * exist, if the transformation was changed or if the content of the raw
+     * resource was changed. The content is compared by digests; the
+     * modification times are compared only if the digest of the raw content
+     * is unknown.
+     */
+    private boolean needsUpdates(
+        CachedResourceAdapter rawCache,
+        CachedResourceAdapter xmlCache,
+        String transformationId) {
+        long rawResourceModificationTime = rawCache.getLastModified();
+        long xmlModificationTime = xmlCache.getLastModified();
+        if (rawResourceModificationTime < 0 || xmlModificationTime < 0) {
+            return true;
+        }
+        String transformation = CacheUtils.getProperty(
+            xmlCache,
+            CacheUtils.TRANSFORMATION);
+        if (!transformationId.equals(transformation)) {
+            return true;
+        }
+        String rawDigest = CacheUtils.getContentDigest(rawCache);
+        if (rawDigest != null) {
+            String sourceDigest = CacheUtils.getProperty(
+                xmlCache,
+                CacheUtils.SOURCE_DIGEST);
+            return !rawDigest.equals(sourceDigest);
+        }
+        return xmlModificationTime < rawResourceModificationTime;
+    }
+
+    private XmlException newNoTransformerException(Uri url) {
+        return new XmlException("There is no transformer for the document "
+            + url
+            + ".");
+    }
+
+    /**
+     * Parses the XML document from the given stream. The stream is closed by
+     * this method.
+     */
+    private XmlWrapper readXml(Uri uri, InputStream input)
+        throws IOException,
+        XmlException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory
+                .newInstance();
+            factory.setNamespaceAware(true);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            Document doc = builder.parse(input, uri.toString());
+            return XmlContext.build().wrap(doc);
+        } catch (ParserConfigurationException e) {
+            throw new XmlException("Can not parse the document " + uri + ".", e);
+        } catch (SAXException e) {
+            throw new XmlException("Can not parse the document " + uri + ".", e);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Removes the identifiers of the transformation and of the source content
+     * from the properties of the XML resource.
+     */
+    private void resetTransformation(CachedResourceAdapter xmlCache) {
+        String transformation = CacheUtils.getProperty(
+            xmlCache,
+            CacheUtils.TRANSFORMATION);
+        String sourceDigest = CacheUtils.getProperty(
+            xmlCache,
+            CacheUtils.SOURCE_DIGEST);
+        if (transformation == null && sourceDigest == null) {
+            return;
+        }
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(CacheUtils.SOURCE_DIGEST, null);
+        properties.put(CacheUtils.TRANSFORMATION, null);
+        CacheUtils.setProperties(xmlCache, properties);
     }
 
-    public void setDefaultDocumentTransformer(
+    public synchronized void setDefaultDocumentTransformer(
         IDocumentTransformer defaultTransformer) {
-        fDocumentTransformer.setDefaultTransformer(defaultTransformer);
+        fDefaultTransformer = defaultTransformer;
     }
 
-    public void setDocumentTransformer(
+    public synchronized void setDocumentTransformer(
         Uri url,
-        XslBasedDocumentTransformer transformer) {
-        fDocumentTransformer.addTransformer(url, transformer);
+        IDocumentTransformer transformer) {
+        fTransformers = new UriPrefixIndex.Builder<IDocumentTransformer>(
+            fTransformers).put(url, transformer).build();
     }
 
     public void setXslTransformation(Uri urlBase, Uri xslUri)
         throws IOException,
         XmlException {
-        XmlWrapper xsl = loadXsl(xslUri);
-        XslBasedDocumentTransformer transformer = new XslBasedDocumentTransformer(
-            xsl);
+        XslTemplates templates = loadXslTemplates(xslUri);
+        TemplatesDocumentTransformer transformer = new TemplatesDocumentTransformer(
+            fTemplatesCache,
+            templates.getEntry().getUri(),
+            templates.getEntry().getDigest(),
+            templates.getXsl());
         setDocumentTransformer(urlBase, transformer);
     }
 
@@ -73,35 +341,72 @@ public class DocAdapter extends AppContextAdapter {
         Uri resourceUri,
         IWrfResource rawResource,
         IWrfResource xmlResource) throws IOException, XmlException {
-        toXml(resourceUri, rawResource, xmlResource, null);
+        toXml(
+            resourceUri,
+            rawResource,
+            xmlResource,
+            null,
+            null,
+            XHTML_TRANSFORMATION);
     }
 
+    /**
+     * Converts the raw resource to XML and applies the given transformation.
+     * The XML resource keeps the digest of the raw content and the identifier
+     * of the transformation used to build it, so it is re-built only when one
+     * of them is changed. If a streaming transformer is defined then it
+     * writes its results directly to the XML resource instead of the DOM
+     * transformation. The identifiers are removed before writing and set
+     * again only after a successful transformation, so a partially written
+     * resource is always re-built. If the transformation does not return a
+     * document then an {@link XmlException} is thrown and the XML resource is
+     * not updated.
+     */
     private void toXml(
         Uri resourceUri,
         IWrfResource rawResource,
         IWrfResource xmlResource,
-        IXmlTransformation transformation) throws IOException, XmlException {
+        IXmlTransformation transformation,
+        IStreamingDocumentTransformer streamingTransformer,
+        String transformationId) throws IOException, XmlException {
         CachedResourceAdapter rawCache = rawResource
             .getAdapter(CachedResourceAdapter.class);
         CachedResourceAdapter xmlCache = xmlResource
             .getAdapter(CachedResourceAdapter.class);
-        long rawResourceModificationTime = rawCache.getLastModified();
-        long atomModificationTime = xmlCache.getLastModified();
-        boolean needUpdates = rawResourceModificationTime < 0
-            || atomModificationTime < 0
-            || atomModificationTime < rawResourceModificationTime;
-        if (needUpdates) {
-            HTMLAdapter htmlAdapter = rawResource.getAdapter(HTMLAdapter.class);
+        if (needsUpdates(rawCache, xmlCache, transformationId)) {
+            resetTransformation(xmlCache);
+            IWrfResource contentResource = fContext
+                .getContentResource(rawResource);
+            HTMLAdapter htmlAdapter = contentResource
+                .getAdapter(HTMLAdapter.class);
             XmlWrapper doc = htmlAdapter.getWrapper();
-            if (transformation != null) {
-                doc = transformation.transform(doc);
-            }
-            if (doc != null) {
+            if (streamingTransformer != null) {
+                writeXml(resourceUri, doc, xmlResource, streamingTransformer);
+            } else {
+                if (transformation != null) {
+                    doc = transformation.transform(doc);
+                }
+                if (doc == null) {
+                    throw new XmlException("The transformation of the document "
+                        + resourceUri
+                        + " returned no result.");
+                }
                 XmlAdapter xmlAdapter = xmlResource
                     .getAdapter(XmlAdapter.class);
                 xmlAdapter.setDocument(doc);
-                xmlCache.copyPropertiesFrom(rawCache);
             }
+            xmlCache.copyPropertiesFrom(rawCache);
+            // Content properties of the raw resource are not valid for the XML
+            // resource
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put(CacheUtils.CONTENT_DIGEST, null);
+            properties.put(CacheUtils.CONTENT_LENGTH, null);
+            properties.put(CacheUtils.CONTENT_REF, null);
+            properties.put(
+                CacheUtils.SOURCE_DIGEST,
+                CacheUtils.getContentDigest(rawCache));
+            properties.put(CacheUtils.TRANSFORMATION, transformationId);
+            CacheUtils.setProperties(xmlCache, properties);
         }
     }
 
@@ -109,7 +414,7 @@ public class DocAdapter extends AppContextAdapter {
         final Uri resourceUri,
         IWrfResource rawResource,
         IWrfResource atomResource) throws IOException, XmlException {
-        toXml(resourceUri, rawResource, atomResource, new IXmlTransformation() {
+        IXmlTransformation transformation = new IXmlTransformation() {
             @Override
             public XmlWrapper transform(XmlWrapper xhtml)
                 throws XmlException,
@@ -117,16 +422,140 @@ public class DocAdapter extends AppContextAdapter {
                 AtomFeed atomDoc = transformToAtom(resourceUri, xhtml);
                 return atomDoc;
             }
-        });
+        };
+        IStreamingDocumentTransformer streamingTransformer = null;
+        IDocumentTransformer transformer = getDocumentTransformer(resourceUri);
+        if (transformer == null) {
+            throw newNoTransformerException(resourceUri);
+        }
+        if (transformer instanceof IStreamingDocumentTransformer) {
+            streamingTransformer = (IStreamingDocumentTransformer) transformer;
+        }
+        toXml(
+            resourceUri,
+            rawResource,
+            atomResource,
+            transformation,
+            streamingTransformer,
+            getAtomTransformationId(resourceUri));
     }
 
+    /**
+     * Transforms the specified documents to Atom in parallel. Each document
+     * is parsed, transformed and written by the
+     * {@link #transformToAtom(Uri, IWrfResource, IWrfResource)} method in one
+     * of the threads of this batch; the number of threads and the number of
+     * pending documents are bounded, so the list of items could be long. The
+     * failure of one document does not stop others.
+     * 
+     * @param items documents to transform
+     * @param threads the maximal number of documents transformed at the same
+     *        time; if it is less than 1 then the number of available
+     *        processors is used
+     * @return a map of failed items with the corresponding errors; this map
+     *         is empty if all documents were transformed
+     * @throws InterruptedException if the current thread is interrupted; in
+     *         this case not started transformations are cancelled
+     */
+    public Map<TransformItem, Exception> transformToAtom(
+        Collection<TransformItem> items,
+        int threads) throws InterruptedException {
+        if (threads < 1) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        final Map<TransformItem, Exception> errors = Collections
+            .synchronizedMap(new LinkedHashMap<TransformItem, Exception>());
+        final AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            threads,
+            threads,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(threads * 2),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "transform-"
+                        + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            },
+            // The caller executes items when the queue is full
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            for (final TransformItem item : items) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            transformToAtom(
+                                item.getUrl(),
+                                item.getRawResource(),
+                                item.getAtomResource());
+                        } catch (Exception e) {
+                            log.log(Level.FINE, "Can not transform '"
+                                + item.getUrl()
+                                + "'.", e);
+                            errors.put(item, e);
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        return errors;
+    }
+
+    /**
+     * Transforms the specified XHTML document to Atom with the transformer
+     * selected for its URL (see {@link #getDocumentTransformer(Uri)}).
+     * 
+     * @param resourceUri the URL of the document
+     * @param xml the document to transform
+     * @return the resulting feed
+     * @throws XmlException if there is no transformer for the document or if
+     *         the document can not be transformed
+     * @throws IOException
+     */
     public AtomFeed transformToAtom(Uri resourceUri, XmlWrapper xml)
         throws XmlException,
         IOException {
-        AtomFeed atomDoc = fDocumentTransformer.transformDocument(
-            resourceUri,
-            xml);
+        IDocumentTransformer transformer = getDocumentTransformer(resourceUri);
+        if (transformer == null) {
+            throw newNoTransformerException(resourceUri);
+        }
+        AtomFeed atomDoc = transformer.transformDocument(resourceUri, xml);
         return atomDoc;
     }
 
+    /**
+     * Transforms the document and writes the results directly to the content
+     * of the XML resource.
+     */
+    private void writeXml(
+        Uri resourceUri,
+        XmlWrapper doc,
+        IWrfResource xmlResource,
+        IStreamingDocumentTransformer transformer)
+        throws IOException,
+        XmlException {
+        IContentAdapter content = xmlResource.getAdapter(IContentAdapter.class);
+        OutputStream output = content.getContentOutput();
+        try {
+            transformer.transformDocument(
+                resourceUri,
+                new DOMSource(doc.getDocument()),
+                new StreamResult(output));
+        } finally {
+            output.close();
+        }
+    }
+
 }
@@ -4,22 +4,70 @@
 package org.ubimix.scraper.core;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import org.ubimix.commons.uri.Path;
 import org.ubimix.commons.uri.Uri;
 import org.ubimix.resources.IContentAdapter;
 import org.ubimix.resources.IWrfResource;
 import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
-import org.ubimix.scraper.protocol.AccessManager;
+import org.ubimix.resources.adapters.cache.DateUtil;
+import org.ubimix.scraper.core.CachePolicy.CacheRule;
+import org.ubimix.scraper.core.ContentStreamer.ContentInfo;
+import org.ubimix.scraper.core.ContentStreamer.MeteredOutputStream;
 import org.ubimix.scraper.protocol.AccessManager.CredentialInfo;
 import org.ubimix.scraper.protocol.CompositeProtocolHandler;
 import org.ubimix.scraper.protocol.HttpStatusCode;
 import org.ubimix.scraper.protocol.ProtocolHandlerUtils;
+import org.ubimix.scraper.utils.UriPrefixIndex;
 
 /**
  * @author kotelnikov
  */
 public class DownloadAdapter extends AppContextAdapter {
 
+    /**
+     * Instances of this type are notified about results of asynchronous
+     * downloads (see {@link DownloadAdapter#loadResources(Map, IDownloadListener)}
+     * and {@link DownloadFuture#addListener(IDownloadListener)}). Methods of
+     * this interface are called from download threads.
+     * 
+     * @author kotelnikov
+     */
+    public interface IDownloadListener {
+
+        /**
+         * This method is called when a resource could not be loaded.
+         * 
+         * @param url the URL of the resource
+         * @param resource the target resource
+         * @param error the download error
+         */
+        void onError(Uri url, IWrfResource resource, Throwable error);
+
+        /**
+         * This method is called when the download of a resource is finished.
+         * 
+         * @param url the URL of the loaded resource
+         * @param resource the resource containing downloaded content
+         * @param statusCode the status of the download operation
+         */
+        void onLoad(Uri url, IWrfResource resource, HttpStatusCode statusCode);
+    }
+
     /**
      * @author kotelnikov
      */
@@ -35,12 +83,423 @@ public class DownloadAdapter extends AppContextAdapter {
         Uri transform(Uri uri);
     }
 
-    private AccessManager fAccessManager = new AccessManager();
+    /**
+     * Keys of this type identify downloads which are in progress. Each key
+     * contains a URL and the store and path of the target resource. Handles of
+     * resources are not compared, because the same resource could be
+     * returned by different handles. If the store of the resource is unknown
+     * then the handle itself is used.
+     * 
+     * @author kotelnikov
+     */
+    private static class LoadKey {
+
+        private final String fPath;
+
+        private final IWrfResource fResource;
+
+        private final String fStoreName;
+
+        private final String fUrl;
+
+        public LoadKey(Uri url, String storeName, IWrfResource resource) {
+            fUrl = url.toString();
+            fStoreName = storeName;
+            fPath = String.valueOf(resource.getPath());
+            fResource = storeName == null ? resource : null;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof LoadKey)) {
+                return false;
+            }
+            LoadKey o = (LoadKey) obj;
+            return fUrl.equals(o.fUrl)
+                && fPath.equals(o.fPath)
+                && equals(fStoreName, o.fStoreName)
+                && equals(fResource, o.fResource);
+        }
+
+        private boolean equals(Object first, Object second) {
+            return first != null ? first.equals(second) : second == null;
+        }
+
+        @Override
+        public int hashCode() {
+            return (fUrl.hashCode() * 31 + fPath.hashCode()) * 31
+                + (fStoreName != null ? fStoreName.hashCode() : 0);
+        }
+
+    }
+
+    /**
+     * This wrapper is given to protocol handlers instead of the downloaded
+     * resource. The content written by a handler goes directly to the content
+     * of the resource through a {@link MeteredOutputStream}, so the length
+     * and the digest of the downloaded content are computed and the download
+     * speed is limited while the content is written. The stored content is
+     * not read again after the download.
+     * 
+     * @author kotelnikov
+     */
+    private static class MeteredResource implements IWrfResource {
+
+        private final IContentAdapter fContent;
+
+        private final TokenBucket fLimiter;
+
+        private MeteredOutputStream fOutput;
+
+        private final IWrfResource fResource;
+
+        public MeteredResource(IWrfResource resource, TokenBucket limiter) {
+            fResource = resource;
+            fLimiter = limiter;
+            final IContentAdapter content = resource
+                .getAdapter(IContentAdapter.class);
+            fContent = new IContentAdapter() {
+                @Override
+                public void delete() {
+                    content.delete();
+                }
+
+                @Override
+                public boolean exists() {
+                    return content.exists();
+                }
+
+                @Override
+                public InputStream getContentInput() throws IOException {
+                    return content.getContentInput();
+                }
+
+                @Override
+                public OutputStream getContentOutput() throws IOException {
+                    fOutput = new MeteredOutputStream(
+                        content.getContentOutput(),
+                        fLimiter);
+                    return fOutput;
+                }
+
+                @Override
+                public void writeContent(InputStream input)
+                    throws IOException {
+                    ContentStreamer.write(input, this);
+                }
+            };
+        }
+
+        @Override
+        public <T> T getAdapter(Class<T> type) {
+            if (type == IContentAdapter.class) {
+                return type.cast(fContent);
+            }
+            return fResource.getAdapter(type);
+        }
+
+        /**
+         * Returns the length and the digest of the content written by the
+         * protocol handler or <code>null</code> if the content was not
+         * written.
+         * 
+         * @return information about the written content
+         */
+        public ContentInfo getContentInfo() {
+            return fOutput != null ? fOutput.getContentInfo() : null;
+        }
+
+        @Override
+        public Path getPath() {
+            return fResource.getPath();
+        }
+
+    }
+
+    /**
+     * An immutable set of download parameters. Parameters are replaced as a
+     * whole (see {@link DownloadAdapter#setSettings(Settings)}), so each
+     * download uses values from the same configuration, even if the adapter
+     * is re-configured while the download is running.
+     * 
+     * @author kotelnikov
+     */
+    public static class Settings {
+
+        /**
+         * Builders are used to create new settings.
+         * 
+         * @author kotelnikov
+         */
+        public static class Builder {
+
+            private long fClientErrorDelay = DownloadFailurePolicy.DEFAULT_CLIENT_ERROR_DELAY;
+
+            private UriPrefixIndex<CredentialInfo> fCredentials = new UriPrefixIndex.Builder<CredentialInfo>()
+                .build();
+
+            private boolean fDownloadExistingResources;
+
+            private int fDownloadThreads = DEFAULT_DOWNLOAD_THREADS;
+
+            private long fHostBlockTime = DownloadFailurePolicy.DEFAULT_HOST_BLOCK_TIME;
+
+            private long fHostDelay;
+
+            private int fHostFailures = DownloadFailurePolicy.DEFAULT_HOST_FAILURES;
+
+            private long fMaxBytesPerSecond;
+
+            private long fMaxFailureDelay = DownloadFailurePolicy.DEFAULT_MAX_DELAY;
+
+            private int fMaxHostConnections = DownloadScheduler.DEFAULT_HOST_CONNECTIONS;
+
+            private long fMaxRequestsPerSecond;
+
+            private long fServerErrorDelay = DownloadFailurePolicy.DEFAULT_SERVER_ERROR_DELAY;
+
+            public Builder() {
+            }
 
-    private boolean fDownloadExistingResources;
+            public Builder(Settings settings) {
+                fClientErrorDelay = settings.fClientErrorDelay;
+                fCredentials = settings.fCredentials;
+                fDownloadExistingResources = settings.fDownloadExistingResources;
+                fDownloadThreads = settings.fDownloadThreads;
+                fHostBlockTime = settings.fHostBlockTime;
+                fHostDelay = settings.fHostDelay;
+                fHostFailures = settings.fHostFailures;
+                fMaxBytesPerSecond = settings.fMaxBytesPerSecond;
+                fMaxFailureDelay = settings.fMaxFailureDelay;
+                fMaxHostConnections = settings.fMaxHostConnections;
+                fMaxRequestsPerSecond = settings.fMaxRequestsPerSecond;
+                fServerErrorDelay = settings.fServerErrorDelay;
+            }
+
+            public Settings build() {
+                return new Settings(this);
+            }
+
+            public Builder setClientErrorDelay(long delay) {
+                fClientErrorDelay = delay;
+                return this;
+            }
+
+            public Builder setCredentials(
+                UriPrefixIndex<CredentialInfo> credentials) {
+                fCredentials = credentials;
+                return this;
+            }
+
+            public Builder setDownloadExistingResources(boolean download) {
+                fDownloadExistingResources = download;
+                return this;
+            }
+
+            public Builder setDownloadThreads(int threads) {
+                fDownloadThreads = Math.max(1, threads);
+                return this;
+            }
+
+            public Builder setHostBlockTime(long time) {
+                fHostBlockTime = time;
+                return this;
+            }
+
+            public Builder setHostDelay(long delay) {
+                fHostDelay = Math.max(0, delay);
+                return this;
+            }
+
+            public Builder setHostFailures(int failures) {
+                fHostFailures = Math.max(1, failures);
+                return this;
+            }
+
+            public Builder setMaxBytesPerSecond(long bytes) {
+                fMaxBytesPerSecond = Math.max(0, bytes);
+                return this;
+            }
+
+            public Builder setMaxFailureDelay(long delay) {
+                fMaxFailureDelay = delay;
+                return this;
+            }
+
+            public Builder setMaxHostConnections(int maxConnections) {
+                fMaxHostConnections = Math.max(1, maxConnections);
+                return this;
+            }
+
+            public Builder setMaxRequestsPerSecond(long requests) {
+                fMaxRequestsPerSecond = Math.max(0, requests);
+                return this;
+            }
+
+            public Builder setServerErrorDelay(long delay) {
+                fServerErrorDelay = delay;
+                return this;
+            }
+
+        }
+
+        private final long fClientErrorDelay;
+
+        private final UriPrefixIndex<CredentialInfo> fCredentials;
+
+        private final boolean fDownloadExistingResources;
+
+        private final int fDownloadThreads;
+
+        private final long fHostBlockTime;
+
+        private final long fHostDelay;
+
+        private final int fHostFailures;
+
+        private final long fMaxBytesPerSecond;
+
+        private final long fMaxFailureDelay;
+
+        private final int fMaxHostConnections;
+
+        private final long fMaxRequestsPerSecond;
+
+        private final long fServerErrorDelay;
+
+        private Settings(Builder builder) {
+            fClientErrorDelay = builder.fClientErrorDelay;
+            fCredentials = builder.fCredentials;
+            fDownloadExistingResources = builder.fDownloadExistingResources;
+            fDownloadThreads = builder.fDownloadThreads;
+            fHostBlockTime = builder.fHostBlockTime;
+            fHostDelay = builder.fHostDelay;
+            fHostFailures = builder.fHostFailures;
+            fMaxBytesPerSecond = builder.fMaxBytesPerSecond;
+            fMaxFailureDelay = builder.fMaxFailureDelay;
+            fMaxHostConnections = builder.fMaxHostConnections;
+            fMaxRequestsPerSecond = builder.fMaxRequestsPerSecond;
+            fServerErrorDelay = builder.fServerErrorDelay;
+        }
+
+        public boolean downloadExistingResources() {
+            return fDownloadExistingResources;
+        }
+
+        public long getClientErrorDelay() {
+            return fClientErrorDelay;
+        }
+
+        public UriPrefixIndex<CredentialInfo> getCredentials() {
+            return fCredentials;
+        }
+
+        public int getDownloadThreads() {
+            return fDownloadThreads;
+        }
+
+        public long getHostBlockTime() {
+            return fHostBlockTime;
+        }
+
+        public long getHostDelay() {
+            return fHostDelay;
+        }
+
+        public int getHostFailures() {
+            return fHostFailures;
+        }
+
+        public long getMaxBytesPerSecond() {
+            return fMaxBytesPerSecond;
+        }
+
+        public long getMaxFailureDelay() {
+            return fMaxFailureDelay;
+        }
+
+        public int getMaxHostConnections() {
+            return fMaxHostConnections;
+        }
+
+        public long getMaxRequestsPerSecond() {
+            return fMaxRequestsPerSecond;
+        }
+
+        public long getServerErrorDelay() {
+            return fServerErrorDelay;
+        }
+
+    }
+
+    /**
+     * The default number of threads used to load resources in batches.
+     */
+    public static final int DEFAULT_DOWNLOAD_THREADS = 8;
+
+    /**
+     * The default time (in milliseconds) during which a downloaded or
+     * re-validated resource is considered as fresh.
+     */
+    public static final long DEFAULT_REFRESH_TIMEOUT = DateUtil.MIN * 2;
+
+    private final static Logger log = Logger.getLogger(DownloadAdapter.class
+        .getName());
+
+    /**
+     * This bucket limits the number of bytes per second downloaded by all
+     * threads.
+     */
+    private final TokenBucket fByteLimiter = new TokenBucket();
+
+    /**
+     * This policy blocks repeated downloads of failing URLs and hosts.
+     */
+    private DownloadFailurePolicy fFailurePolicy = new DownloadFailurePolicy();
+
+    /**
+     * Downloads which are in progress. This map is used to share results of
+     * one download between all callers requesting the same URL and resource
+     * at the same time.
+     */
+    private ConcurrentMap<LoadKey, Future<HttpStatusCode>> fLoads = new ConcurrentHashMap<LoadKey, Future<HttpStatusCode>>();
 
     private CompositeProtocolHandler fProtocolHandler = new CompositeProtocolHandler();
 
+    /**
+     * This bucket limits the number of requests per second sent by all
+     * threads.
+     */
+    private final TokenBucket fRequestLimiter = new TokenBucket();
+
+    /**
+     * Resources which are refreshed in background.
+     */
+    private ConcurrentMap<LoadKey, Boolean> fRefreshes = new ConcurrentHashMap<LoadKey, Boolean>();
+
+    /**
+     * This object is used to re-validate expired resources with conditional
+     * requests.
+     */
+    private HttpRevalidator fRevalidator = new HttpRevalidator(
+        fProtocolHandler);
+
+    /**
+     * The scheduler used to load resources in batches. It is created when the
+     * first batch is submitted.
+     */
+    private DownloadScheduler fScheduler;
+
+    /**
+     * Download parameters. These parameters are immutable; they are replaced
+     * as a whole when the adapter is re-configured, so downloads don't need
+     * locks to read them.
+     */
+    private volatile Settings fSettings = new Settings.Builder().build();
+
     public DownloadAdapter(AppContext appContext) {
         super(appContext);
         ProtocolHandlerUtils.registerDefaultProtocols(fProtocolHandler);
@@ -61,56 +520,757 @@ public class DownloadAdapter extends AppContextAdapter {
 
     /**
      * This method is used to associate credentials with all resources starting
-     * with the specified base URL.
+     * with the specified base URL. Each call re-builds the index of
+     * credentials, so {@link #setCredentials(UriPrefixIndex)} should be used
+     * to set a big number of credentials at once.
      * 
      * @param baseUrl the basic URL associated with the specified credentials
      * @param login the login used to access resources
      * @param pwd the password associated with the specified login
      */
-    public void addCredentials(Uri baseUrl, String login, String pwd) {
-        fAccessManager.setCredentials(baseUrl, new CredentialInfo(login, pwd));
+    public synchronized void addCredentials(
+        Uri baseUrl,
+        String login,
+        String pwd) {
+        UriPrefixIndex<CredentialInfo> credentials = new UriPrefixIndex.Builder<CredentialInfo>(
+            fSettings.getCredentials())
+            .put(baseUrl, new CredentialInfo(login, pwd))
+            .build();
+        setCredentials(credentials);
     }
 
     public boolean downloadExistingResources() {
-        return fDownloadExistingResources;
+        return fSettings.downloadExistingResources();
     }
 
-    public void downloadExistingResources(boolean download) {
-        fDownloadExistingResources = download;
+    public synchronized void downloadExistingResources(boolean download) {
+        setSettings(new Settings.Builder(fSettings)
+            .setDownloadExistingResources(download)
+            .build());
     }
 
-    public HttpStatusCode loadResource(Uri url, IWrfResource resource)
+    /**
+     * Loads the specified resource. This method is called by
+     * {@link #loadResource(Uri, IWrfResource)} only once for simultaneous
+     * requests to the same URL and resource.
+     * 
+     * @param url the URL of the resource to load
+     * @param resource the resource where the downloaded content is stored
+     * @return the status of the download
+     * @throws IOException
+     */
+    protected HttpStatusCode doLoadResource(Uri url, IWrfResource resource)
         throws IOException {
         HttpStatusCode statusCode = HttpStatusCode.STATUS_404;
         if (url != null) {
-            boolean download = downloadExistingResources()
-                || !resource.getAdapter(IContentAdapter.class).exists();
+            Settings settings = fSettings;
+            IContentAdapter content = resource
+                .getAdapter(IContentAdapter.class);
+            boolean exists = content.exists();
+            boolean download = settings.downloadExistingResources() || !exists;
             CachedResourceAdapter cacheAdapter = resource
                 .getAdapter(CachedResourceAdapter.class);
+            DownloadMetrics metrics = getMetrics();
             if (!download) {
                 int code = cacheAdapter.getStatusCode();
                 statusCode = HttpStatusCode.getStatusCode(code);
-            } else if (!cacheAdapter.isExpired()) {
+                metrics.onCacheHit(url);
+            } else if (!isExpired(getCacheRule(url, resource), cacheAdapter)) {
                 statusCode = HttpStatusCode.STATUS_304; /* NOT_MODIFIED */
+                metrics.onCacheHit(url);
             } else {
-                CredentialInfo credentials = fAccessManager != null
-                    ? fAccessManager.getCredentials(url)
-                    : null;
+                CredentialInfo credentials = settings.getCredentials().get(url);
                 String login = null;
                 String password = null;
                 if (credentials != null) {
                     login = credentials.getLogin();
                     password = credentials.getPassword();
                 }
-                statusCode = fProtocolHandler.handleRequest(
-                    url,
-                    login,
-                    password,
-                    resource);
-                cacheAdapter.setStatusCode(statusCode.getStatusCode());
+                statusCode = fFailurePolicy.getBlockedStatus(url);
+                if (statusCode != null) {
+                    metrics.onBlocked(url);
+                    return statusCode;
+                }
+                fRequestLimiter.acquire(1);
+                long startTime = metrics.onDownloadStart(url);
+                int code = -1;
+                long bytes = 0;
+                try {
+                    // Downloaded bytes are metered and digested while they
+                    // are written to the resource
+                    MeteredResource target = new MeteredResource(
+                        resource,
+                        fByteLimiter);
+                    HttpStatusCode revalidated = null;
+                    try {
+                        if (exists) {
+                            revalidated = revalidate(
+                                url,
+                                login,
+                                password,
+                                target);
+                        }
+                        statusCode = revalidated != null
+                            ? revalidated
+                            : fProtocolHandler.handleRequest(
+                                url,
+                                login,
+                                password,
+                                target);
+                    } catch (IOException e) {
+                        fFailurePolicy.onError(url);
+                        throw e;
+                    }
+                    // Not modified resources are already validated
+                    if (revalidated != HttpStatusCode.STATUS_304) {
+                        cacheAdapter.setStatusCode(statusCode.getStatusCode());
+                        CacheUtils.setValidationTime(
+                            cacheAdapter,
+                            System.currentTimeMillis());
+                        ContentInfo info = target.getContentInfo();
+                        if (info != null && statusCode.isOkOrNotModified()) {
+                            CacheUtils.setContentInfo(cacheAdapter, info);
+                            bytes = info.getLength();
+                        }
+                    }
+                    code = statusCode.getStatusCode();
+                    if (statusCode != HttpStatusCode.STATUS_304
+                        && statusCode.isOkOrNotModified()) {
+                        storeContent(url, resource);
+                    }
+                } finally {
+                    metrics.onDownloadEnd(url, startTime, code, bytes);
+                }
+                fFailurePolicy.onStatus(url, code);
             }
         }
         return statusCode;
     }
 
+    /**
+     * Returns the policy defining how long resources of the application
+     * context are considered as fresh.
+     * 
+     * @return the cache policy of the application context
+     */
+    public CachePolicy getCachePolicy() {
+        return fContext.getAdapter(CachePolicy.class);
+    }
+
+    /**
+     * Returns the store keeping content shared by resources.
+     * 
+     * @return the content store of the application context
+     */
+    public ContentStore getContentStore() {
+        return fContext.getAdapter(ContentStore.class);
+    }
+
+    /**
+     * Returns the cache rule for the specified resource.
+     * 
+     * @param url the URL of the resource
+     * @param resource the resource
+     * @return the cache rule for the resource
+     */
+    protected CacheRule getCacheRule(Uri url, IWrfResource resource) {
+        String storeName = fContext.getStoreName(resource);
+        return getCachePolicy().getRule(storeName, url);
+    }
+
+    /**
+     * Returns the index of credentials used to access resources.
+     * 
+     * @return the index of credentials by URL prefixes
+     */
+    public UriPrefixIndex<CredentialInfo> getCredentials() {
+        return fSettings.getCredentials();
+    }
+
+    /**
+     * Returns the maximal number of threads used to load resources in
+     * batches.
+     * 
+     * @return the maximal number of download threads
+     */
+    public int getDownloadThreads() {
+        return fSettings.getDownloadThreads();
+    }
+
+    /**
+     * Returns the policy used to block repeated downloads of failing URLs and
+     * hosts.
+     * 
+     * @return the download failure policy
+     */
+    public DownloadFailurePolicy getFailurePolicy() {
+        return fFailurePolicy;
+    }
+
+    /**
+     * Returns the minimal delay between two downloads from the same host.
+     * 
+     * @return the minimal delay (in milliseconds) between two downloads from
+     *         the same host
+     */
+    public long getHostDelay() {
+        return fSettings.getHostDelay();
+    }
+
+    private LoadKey getLoadKey(Uri url, IWrfResource resource) {
+        String storeName = fContext.getStoreName(resource);
+        return new LoadKey(url, storeName, resource);
+    }
+
+    /**
+     * Returns the maximal number of bytes per second downloaded by all
+     * threads.
+     * 
+     * @return the maximal download speed in bytes per second or zero if the
+     *         speed is not limited
+     */
+    public long getMaxBytesPerSecond() {
+        return fSettings.getMaxBytesPerSecond();
+    }
+
+    /**
+     * Returns the maximal number of simultaneous downloads from the same host.
+     * 
+     * @return the maximal number of simultaneous downloads from one host
+     */
+    public int getMaxHostConnections() {
+        return fSettings.getMaxHostConnections();
+    }
+
+    /**
+     * Returns the adapter collecting download statistics of the application
+     * context.
+     * 
+     * @return the download metrics
+     */
+    public DownloadMetrics getMetrics() {
+        return fContext.getAdapter(DownloadMetrics.class);
+    }
+
+    /**
+     * Returns the maximal number of requests per second sent by all threads.
+     * 
+     * @return the maximal number of requests per second or zero if the number
+     *         of requests is not limited
+     */
+    public long getMaxRequestsPerSecond() {
+        return fSettings.getMaxRequestsPerSecond();
+    }
+
+    /**
+     * Returns the time during which a downloaded or re-validated resource is
+     * considered as fresh. This value is defined by the default rule of the
+     * cache policy (see {@link #getCachePolicy()}).
+     * 
+     * @return the refresh timeout in milliseconds
+     */
+    public long getRefreshTimeout() {
+        return getCachePolicy().getRules().getDefaultRule().getRefreshTimeout();
+    }
+
+    /**
+     * Returns the scheduler used to load resources in batches. The scheduler
+     * is created when this method is called for the first time.
+     * 
+     * @return the scheduler used to load resources in batches
+     */
+    protected synchronized DownloadScheduler getScheduler() {
+        if (fScheduler == null) {
+            Settings settings = fSettings;
+            fScheduler = new DownloadScheduler(
+                settings.getDownloadThreads(),
+                settings.getMaxHostConnections(),
+                settings.getHostDelay());
+        }
+        return fScheduler;
+    }
+
+    /**
+     * Returns the current download parameters of this adapter.
+     * 
+     * @return the current download parameters
+     */
+    public Settings getSettings() {
+        return fSettings;
+    }
+
+    /**
+     * Returns the time after expiration during which the existing content of
+     * a resource is returned while the resource is refreshed in background.
+     * 
+     * This value is defined by the default rule of the cache policy.
+     * 
+     * @return the stale timeout in milliseconds
+     */
+    public long getStaleTimeout() {
+        return getCachePolicy().getRules().getDefaultRule().getStaleTimeout();
+    }
+
+    /**
+     * Returns the status code from the specified download future.
+     * 
+     * @param url the URL of the loaded resource
+     * @param future the future containing download results
+     * @return the status of the download
+     * @throws IOException
+     */
+    private HttpStatusCode getStatusCode(Uri url, Future<HttpStatusCode> future)
+        throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download of the resource '"
+                + url
+                + "' was interrupted.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(
+                "Can not load the resource '" + url + "'.",
+                cause);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the resource with the specified cache
+     * adapter should be downloaded or re-validated according to the given
+     * cache rule.
+     * 
+     * @param rule the cache rule of the resource
+     * @param cacheAdapter the cache adapter of the resource
+     * @return <code>true</code> if the resource is expired
+     */
+    protected boolean isExpired(
+        CacheRule rule,
+        CachedResourceAdapter cacheAdapter) {
+        return getCachePolicy().isExpired(rule, cacheAdapter);
+    }
+
+    /**
+     * Returns <code>true</code> if the existing content of the specified
+     * resource could be returned to the caller while the resource is
+     * refreshed in background. A resource is stale if it is expired, if it
+     * was validated less than the expiration timeout of its cache rule ago
+     * and if its content exists.
+     * 
+     * @param url the URL of the resource
+     * @param resource the resource to check
+     * @return <code>true</code> if the specified resource is stale
+     */
+    protected boolean isStale(Uri url, IWrfResource resource) {
+        CacheRule rule = getCacheRule(url, resource);
+        CachedResourceAdapter cacheAdapter = resource
+            .getAdapter(CachedResourceAdapter.class);
+        return getCachePolicy().isStale(rule, cacheAdapter)
+            && resource.getAdapter(IContentAdapter.class).exists();
+    }
+
+    /**
+     * Loads the resource with the specified URL. If the same URL and resource
+     * are already loaded by another thread then this method does not start a
+     * new download; it waits for the results of the running one. If existing
+     * resources are downloaded again (see
+     * {@link #downloadExistingResources(boolean)}), the stale timeout is
+     * defined (see {@link #setStaleTimeout(long)}) and the resource is expired
+     * for less than this timeout then the existing content is returned
+     * immediately with its stored status code and the resource is refreshed
+     * in background.
+     * 
+     * @param url the URL of the resource to load
+     * @param resource the resource where the downloaded content is stored
+     * @return the status of the download
+     * @throws IOException
+     */
+    public HttpStatusCode loadResource(Uri url, IWrfResource resource)
+        throws IOException {
+        if (url == null) {
+            return HttpStatusCode.STATUS_404;
+        }
+        if (downloadExistingResources() && isStale(url, resource)) {
+            getMetrics().onStaleHit(url);
+            refreshResource(url, resource);
+            CachedResourceAdapter cacheAdapter = resource
+                .getAdapter(CachedResourceAdapter.class);
+            return HttpStatusCode.getStatusCode(cacheAdapter.getStatusCode());
+        }
+        return loadSharedResource(url, resource);
+    }
+
+    /**
+     * Starts an asynchronous download of the specified resource and returns
+     * immediately. The resource is loaded by the
+     * {@link #loadResource(Uri, IWrfResource)} method in one of download
+     * threads, with the same per-host restrictions as batch downloads.
+     * 
+     * @param url the URL of the resource to load
+     * @param resource the resource where the downloaded content is stored
+     * @return a future object giving access to the status of the download
+     */
+    public DownloadFuture loadResourceAsync(Uri url, IWrfResource resource) {
+        return loadResourceAsync(url, resource, null);
+    }
+
+    /**
+     * Starts an asynchronous download of the specified resource and returns
+     * immediately. The given listener is notified when the download is
+     * finished.
+     * 
+     * @param url the URL of the resource to load
+     * @param resource the resource where the downloaded content is stored
+     * @param listener an optional listener notified about the end of the
+     *        download; it could be <code>null</code>
+     * @return a future object giving access to the status of the download
+     */
+    public DownloadFuture loadResourceAsync(
+        final Uri url,
+        final IWrfResource resource,
+        IDownloadListener listener) {
+        DownloadFuture future = new DownloadFuture(
+            url,
+            resource,
+            new Callable<HttpStatusCode>() {
+                @Override
+                public HttpStatusCode call() throws Exception {
+                    return loadResource(url, resource);
+                }
+            });
+        if (listener != null) {
+            future.addListener(listener);
+        }
+        String host = DownloadScheduler.getHostKey(url);
+        getScheduler().execute(host, future);
+        return future;
+    }
+
+    /**
+     * Loads all resources from the specified map in parallel. Keys of the map
+     * are URLs of resources to load and values - the corresponding target
+     * resources. Each resource is loaded using the
+     * {@link #loadResource(Uri, IWrfResource)} method in one of download
+     * threads. Downloads are grouped by hosts; the number of simultaneous
+     * downloads and the delay between downloads from the same host are
+     * restricted (see {@link #setMaxHostConnections(int)} and
+     * {@link #setHostDelay(long)}). All downloads of the batch are queued at
+     * once and the queues are not bounded (see {@link DownloadScheduler}), so
+     * very big batches should be split by the caller.
+     * 
+     * @param resources a map of URLs and the corresponding resources to load
+     * @param listener an optional listener notified about each finished
+     *        download; it could be <code>null</code>
+     * @return a map of URLs with the corresponding download results
+     */
+    public Map<Uri, Future<HttpStatusCode>> loadResources(
+        Map<Uri, IWrfResource> resources,
+        IDownloadListener listener) {
+        Map<Uri, Future<HttpStatusCode>> result = new LinkedHashMap<Uri, Future<HttpStatusCode>>();
+        for (Map.Entry<Uri, IWrfResource> entry : resources.entrySet()) {
+            Uri url = entry.getKey();
+            IWrfResource resource = entry.getValue();
+            DownloadFuture future = loadResourceAsync(url, resource, listener);
+            result.put(url, future);
+        }
+        return result;
+    }
+
+    /**
+     * Loads resources with the specified URLs in parallel and stores them in
+     * the given store.
+     * 
+     * @param storeName the name of the store where loaded resources are saved
+     * @param urls URLs of resources to load
+     * @return a map of URLs with the corresponding download results
+     */
+    public Map<Uri, Future<HttpStatusCode>> loadResources(
+        String storeName,
+        Collection<Uri> urls) {
+        return loadResources(storeName, urls, null);
+    }
+
+    /**
+     * Loads resources with the specified URLs in parallel and stores them in
+     * the given store.
+     * 
+     * @param storeName the name of the store where loaded resources are saved
+     * @param urls URLs of resources to load
+     * @param listener an optional listener notified about each finished
+     *        download; it could be <code>null</code>
+     * @return a map of URLs with the corresponding download results
+     */
+    public Map<Uri, Future<HttpStatusCode>> loadResources(
+        String storeName,
+        Collection<Uri> urls,
+        IDownloadListener listener) {
+        Map<Uri, IWrfResource> resources = new LinkedHashMap<Uri, IWrfResource>();
+        for (Uri url : urls) {
+            IWrfResource resource = fContext.getResource(storeName, url);
+            resources.put(url, resource);
+        }
+        return loadResources(resources, listener);
+    }
+
+    /**
+     * Loads the specified resource. Simultaneous calls of this method with the
+     * same URL and resource share the same download, even if they use
+     * different handles of the resource.
+     * 
+     * @param url the URL of the resource to load
+     * @param resource the resource where the downloaded content is stored
+     * @return the status of the download
+     * @throws IOException
+     */
+    protected HttpStatusCode loadSharedResource(
+        final Uri url,
+        final IWrfResource resource) throws IOException {
+        LoadKey key = getLoadKey(url, resource);
+        FutureTask<HttpStatusCode> task = new FutureTask<HttpStatusCode>(
+            new Callable<HttpStatusCode>() {
+                @Override
+                public HttpStatusCode call() throws Exception {
+                    return doLoadResource(url, resource);
+                }
+            });
+        Future<HttpStatusCode> future = fLoads.putIfAbsent(key, task);
+        if (future == null) {
+            future = task;
+            try {
+                task.run();
+            } finally {
+                fLoads.remove(key, task);
+            }
+        }
+        return getStatusCode(url, future);
+    }
+
+    /**
+     * Schedules a background refresh of the specified resource. If a refresh
+     * of the same resource is already scheduled then this method does
+     * nothing.
+     * 
+     * @param url the URL of the resource to refresh
+     * @param resource the resource to refresh
+     */
+    protected void refreshResource(final Uri url, final IWrfResource resource) {
+        final LoadKey key = getLoadKey(url, resource);
+        if (fRefreshes.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+        String host = DownloadScheduler.getHostKey(url);
+        getScheduler().submit(host, new Callable<HttpStatusCode>() {
+            @Override
+            public HttpStatusCode call() throws Exception {
+                try {
+                    return loadSharedResource(url, resource);
+                } catch (Exception e) {
+                    log.log(Level.FINE, "Can not refresh the resource '"
+                        + url
+                        + "'.", e);
+                    throw e;
+                } finally {
+                    fRefreshes.remove(key);
+                }
+            }
+        });
+    }
+
+    /**
+     * Re-validates an expired resource using a conditional request sent by
+     * the protocol handler. Returns the 304 status code if the content of the
+     * resource was not changed, the status of the response if the resource
+     * was downloaded again or <code>null</code> if the resource could not be
+     * re-validated and it should be downloaded with a regular request.
+     * 
+     * @param url the URL of the resource
+     * @param login the login used to access the resource
+     * @param password the password used to access the resource
+     * @param resource the resource to validate
+     * @return the status code of the response or <code>null</code> if the
+     *         resource should be downloaded with a regular request
+     * @throws IOException
+     */
+    protected HttpStatusCode revalidate(
+        Uri url,
+        String login,
+        String password,
+        IWrfResource resource) throws IOException {
+        return fRevalidator.revalidate(url, login, password, resource);
+    }
+
+    /**
+     * Replaces all credentials used to access resources. The new index is
+     * used by all downloads started after this call.
+     * 
+     * @param credentials the new index of credentials by URL prefixes
+     */
+    public synchronized void setCredentials(
+        UriPrefixIndex<CredentialInfo> credentials) {
+        setSettings(new Settings.Builder(fSettings)
+            .setCredentials(credentials)
+            .build());
+    }
+
+    /**
+     * Sets the maximal number of threads used to load resources in batches.
+     * This value is taken into account only before the first batch is
+     * submitted.
+     * 
+     * @param threads the maximal number of download threads
+     */
+    public synchronized void setDownloadThreads(int threads) {
+        setSettings(new Settings.Builder(fSettings)
+            .setDownloadThreads(threads)
+            .build());
+    }
+
+    /**
+     * Sets the minimal delay between two downloads from the same host.
+     * 
+     * @param delay the minimal delay in milliseconds
+     */
+    public synchronized void setHostDelay(long delay) {
+        setSettings(new Settings.Builder(fSettings)
+            .setHostDelay(delay)
+            .build());
+    }
+
+    /**
+     * Sets the maximal number of bytes per second downloaded by all threads.
+     * 
+     * @param bytes the maximal download speed in bytes per second; the zero
+     *        value removes the limit
+     */
+    public synchronized void setMaxBytesPerSecond(long bytes) {
+        setSettings(new Settings.Builder(fSettings)
+            .setMaxBytesPerSecond(bytes)
+            .build());
+    }
+
+    /**
+     * Sets the maximal number of simultaneous downloads from the same host.
+     * 
+     * @param maxConnections the maximal number of simultaneous downloads from
+     *        one host
+     */
+    public synchronized void setMaxHostConnections(int maxConnections) {
+        setSettings(new Settings.Builder(fSettings)
+            .setMaxHostConnections(maxConnections)
+            .build());
+    }
+
+    /**
+     * Sets the maximal number of requests per second sent by all threads.
+     * 
+     * @param requests the maximal number of requests per second; the zero
+     *        value removes the limit
+     */
+    public synchronized void setMaxRequestsPerSecond(long requests) {
+        setSettings(new Settings.Builder(fSettings)
+            .setMaxRequestsPerSecond(requests)
+            .build());
+    }
+
+    /**
+     * Sets the time during which a downloaded or re-validated resource is
+     * considered as fresh. This method changes the default rule of the cache
+     * policy.
+     * 
+     * @param timeout the refresh timeout in milliseconds
+     */
+    public void setRefreshTimeout(long timeout) {
+        CachePolicy policy = getCachePolicy();
+        synchronized (policy) {
+            CacheRule rule = policy.getRules().getDefaultRule();
+            policy.setDefaultRule(new CacheRule(timeout, timeout
+                + rule.getStaleTimeout()));
+        }
+    }
+
+    /**
+     * Replaces all download parameters of this adapter. New parameters are
+     * published at once and used by all downloads started after this call.
+     * Rate limits, scheduler and failure policy parameters are then copied to
+     * the objects applying them. The number of download threads is taken into
+     * account only before the first batch is submitted.
+     * 
+     * @param settings the new download parameters
+     */
+    public synchronized void setSettings(Settings settings) {
+        fSettings = settings;
+        fByteLimiter.setRate(settings.getMaxBytesPerSecond());
+        fRequestLimiter.setRate(settings.getMaxRequestsPerSecond());
+        if (fScheduler != null) {
+            fScheduler.setMaxHostConnections(settings.getMaxHostConnections());
+            fScheduler.setHostDelay(settings.getHostDelay());
+        }
+        fFailurePolicy.setClientErrorDelay(settings.getClientErrorDelay());
+        fFailurePolicy.setServerErrorDelay(settings.getServerErrorDelay());
+        fFailurePolicy.setMaxDelay(settings.getMaxFailureDelay());
+        fFailurePolicy.setHostFailures(settings.getHostFailures());
+        fFailurePolicy.setHostBlockTime(settings.getHostBlockTime());
+    }
+
+    /**
+     * Sets the time after expiration during which the existing content of a
+     * resource is returned while the resource is refreshed in background. The
+     * zero value disables this mode. This method changes the default rule of
+     * the cache policy.
+     * 
+     * @param timeout the stale timeout in milliseconds
+     */
+    public void setStaleTimeout(long timeout) {
+        CachePolicy policy = getCachePolicy();
+        synchronized (policy) {
+            CacheRule rule = policy.getRules().getDefaultRule();
+            long refreshTimeout = rule.getRefreshTimeout();
+            policy.setDefaultRule(new CacheRule(refreshTimeout, refreshTimeout
+                + Math.max(0, timeout)));
+        }
+    }
+
+    /**
+     * Stops all download threads. Already started downloads are finished; all
+     * queued downloads are cancelled.
+     */
+    public synchronized void shutdown() {
+        if (fScheduler != null) {
+            fScheduler.shutdown();
+            fScheduler = null;
+        }
+    }
+
+    /**
+     * Moves the downloaded content of the resource to the content store if
+     * this store is enabled (see {@link #getContentStore()}). Errors are
+     * logged; in this case the resource keeps its own content.
+     * 
+     * @param url the URL of the resource
+     * @param resource the downloaded resource
+     */
+    protected void storeContent(Uri url, IWrfResource resource) {
+        ContentStore contentStore = getContentStore();
+        if (!contentStore.isEnabled()) {
+            return;
+        }
+        try {
+            contentStore.storeContent(resource);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Can not store the content of the resource '"
+                + url
+                + "'.", e);
+        }
+    }
+
 }
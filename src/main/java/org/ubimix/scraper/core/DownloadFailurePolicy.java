@@ -0,0 +1,298 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.resources.adapters.cache.DateUtil;
+import org.ubimix.scraper.protocol.HttpStatusCode;
+
+/**
+ * This policy is used to avoid repeated downloads of failing resources. It
+ * keeps a "negative cache" of failed URLs and blocks new downloads of these
+ * URLs for a period growing exponentially with each new failure. Client
+ * errors (4xx status codes) and server errors (5xx status codes or I/O
+ * errors) have different initial delays. Consecutive server errors are also
+ * counted for each host; when the number of such errors reaches the
+ * configured limit then all downloads from this host are blocked for some
+ * time (the "circuit" of the host is open).
+ * 
+ * @author kotelnikov
+ */
+public class DownloadFailurePolicy {
+
+    /**
+     * Information about failures of one URL or one host.
+     * 
+     * @author kotelnikov
+     */
+    private static class FailureInfo {
+
+        private final int fFailures;
+
+        private final long fRetryTime;
+
+        private final int fStatusCode;
+
+        public FailureInfo(int failures, int statusCode, long retryTime) {
+            fFailures = failures;
+            fStatusCode = statusCode;
+            fRetryTime = retryTime;
+        }
+
+    }
+
+    /**
+     * The default initial delay for URLs returning client errors (4xx).
+     */
+    public static final long DEFAULT_CLIENT_ERROR_DELAY = DateUtil.MIN * 10;
+
+    /**
+     * The default time during which a failing host is blocked.
+     */
+    public static final long DEFAULT_HOST_BLOCK_TIME = DateUtil.MIN * 5;
+
+    /**
+     * The default number of consecutive server errors blocking a host.
+     */
+    public static final int DEFAULT_HOST_FAILURES = 10;
+
+    /**
+     * The default maximal delay between two attempts to load a failing URL.
+     */
+    public static final long DEFAULT_MAX_DELAY = DateUtil.DAY;
+
+    /**
+     * The default initial delay for URLs returning server errors (5xx).
+     */
+    public static final long DEFAULT_SERVER_ERROR_DELAY = 30 * 1000;
+
+    /**
+     * The status code used for I/O errors and for blocked hosts.
+     */
+    public static final int SERVICE_UNAVAILABLE = 503;
+
+    /**
+     * The maximal number of URLs in the negative cache. When this limit is
+     * reached then entries with the passed retry time are removed.
+     */
+    private static final int MAX_URL_ENTRIES = 100000;
+
+    private volatile long fClientErrorDelay = DEFAULT_CLIENT_ERROR_DELAY;
+
+    private volatile long fHostBlockTime = DEFAULT_HOST_BLOCK_TIME;
+
+    private volatile int fHostFailures = DEFAULT_HOST_FAILURES;
+
+    private ConcurrentMap<String, FailureInfo> fHosts = new ConcurrentHashMap<String, FailureInfo>();
+
+    private volatile long fMaxDelay = DEFAULT_MAX_DELAY;
+
+    private volatile long fServerErrorDelay = DEFAULT_SERVER_ERROR_DELAY;
+
+    private ConcurrentMap<String, FailureInfo> fUrls = new ConcurrentHashMap<String, FailureInfo>();
+
+    public DownloadFailurePolicy() {
+    }
+
+    /**
+     * Increments the number of failures of the specified URL or host and
+     * sets the new retry time. The counter is changed with an atomic
+     * compare-and-set loop, so failures reported by concurrent downloads are
+     * all counted.
+     * 
+     * @param map the map of failures
+     * @param key the URL or the host key
+     * @param statusCode the status code of the failure
+     * @param now the current time
+     * @param baseDelay the delay after the first failure
+     * @param backoff if it is <code>true</code> then the delay grows with
+     *        the number of failures
+     */
+    private void addFailure(
+        ConcurrentMap<String, FailureInfo> map,
+        String key,
+        int statusCode,
+        long now,
+        long baseDelay,
+        boolean backoff) {
+        while (true) {
+            FailureInfo info = map.get(key);
+            int failures = info != null ? info.fFailures + 1 : 1;
+            long delay = backoff ? getDelay(baseDelay, failures) : baseDelay;
+            FailureInfo newInfo = new FailureInfo(
+                failures,
+                statusCode,
+                now + delay);
+            if (info == null
+                ? map.putIfAbsent(key, newInfo) == null
+                : map.replace(key, info, newInfo)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Removes entries with the passed retry time from the negative cache of
+     * URLs.
+     */
+    private void cleanup(long now) {
+        Iterator<Map.Entry<String, FailureInfo>> iterator = fUrls
+            .entrySet()
+            .iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, FailureInfo> entry = iterator.next();
+            if (entry.getValue().fRetryTime <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the status code which should be returned instead of a real
+     * download of the specified URL or <code>null</code> if this URL could be
+     * downloaded now. The returned status code is the code of the last failure
+     * of the URL or the 503 code if the host of the URL is blocked.
+     * 
+     * @param url the URL to check
+     * @return the status code for a blocked URL or <code>null</code> if the
+     *         URL could be downloaded
+     */
+    public HttpStatusCode getBlockedStatus(Uri url) {
+        long now = getCurrentTime();
+        FailureInfo info = fHosts.get(DownloadScheduler.getHostKey(url));
+        if (info != null
+            && info.fFailures >= fHostFailures
+            && info.fRetryTime > now) {
+            return HttpStatusCode.getStatusCode(SERVICE_UNAVAILABLE);
+        }
+        info = fUrls.get(url.toString());
+        if (info != null && info.fRetryTime > now) {
+            return HttpStatusCode.getStatusCode(info.fStatusCode);
+        }
+        return null;
+    }
+
+    public long getClientErrorDelay() {
+        return fClientErrorDelay;
+    }
+
+    /**
+     * Returns the current time. This method could be overloaded in subclasses
+     * (for example for tests).
+     * 
+     * @return the current time in milliseconds
+     */
+    protected long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the delay before the next attempt to load a resource after the
+     * specified number of failures.
+     * 
+     * @param baseDelay the delay after the first failure
+     * @param failures the number of consecutive failures
+     * @return the delay before the next download attempt
+     */
+    protected long getDelay(long baseDelay, int failures) {
+        int shift = Math.min(Math.max(failures - 1, 0), 30);
+        long delay = baseDelay << shift;
+        if (delay < 0 || delay > fMaxDelay) {
+            delay = fMaxDelay;
+        }
+        return delay;
+    }
+
+    public long getHostBlockTime() {
+        return fHostBlockTime;
+    }
+
+    public int getHostFailures() {
+        return fHostFailures;
+    }
+
+    public long getMaxDelay() {
+        return fMaxDelay;
+    }
+
+    public long getServerErrorDelay() {
+        return fServerErrorDelay;
+    }
+
+    /**
+     * This method should be called when a download of the specified URL
+     * failed with an I/O error.
+     * 
+     * @param url the URL of the failed resource
+     */
+    public void onError(Uri url) {
+        onStatus(url, SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * This method should be called when a download of the specified URL is
+     * finished with the given status code. Successful downloads remove the URL
+     * from the negative cache and reset the failure counter of the host.
+     * 
+     * @param url the URL of the loaded resource
+     * @param statusCode the status of the download
+     */
+    public void onStatus(Uri url, int statusCode) {
+        String key = url.toString();
+        String host = DownloadScheduler.getHostKey(url);
+        long now = getCurrentTime();
+        if (statusCode < 400) {
+            fUrls.remove(key);
+            fHosts.remove(host);
+            return;
+        }
+        boolean serverError = statusCode >= 500;
+        if (fUrls.size() >= MAX_URL_ENTRIES) {
+            cleanup(now);
+        }
+        addFailure(fUrls, key, statusCode, now, serverError
+            ? fServerErrorDelay
+            : fClientErrorDelay, true);
+        if (serverError) {
+            addFailure(fHosts, host, statusCode, now, fHostBlockTime, false);
+        } else {
+            // The host responds, so it is alive.
+            fHosts.remove(host);
+        }
+    }
+
+    /**
+     * Removes all URLs and hosts from this policy.
+     */
+    public void reset() {
+        fUrls.clear();
+        fHosts.clear();
+    }
+
+    public void setClientErrorDelay(long delay) {
+        fClientErrorDelay = delay;
+    }
+
+    public void setHostBlockTime(long time) {
+        fHostBlockTime = time;
+    }
+
+    public void setHostFailures(int failures) {
+        fHostFailures = Math.max(1, failures);
+    }
+
+    public void setMaxDelay(long delay) {
+        fMaxDelay = delay;
+    }
+
+    public void setServerErrorDelay(long delay) {
+        fServerErrorDelay = delay;
+    }
+
+}
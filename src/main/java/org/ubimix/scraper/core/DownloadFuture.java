@@ -0,0 +1,132 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.resources.IWrfResource;
+import org.ubimix.scraper.core.DownloadAdapter.IDownloadListener;
+import org.ubimix.scraper.protocol.HttpStatusCode;
+
+/**
+ * The result of an asynchronous download. In addition to the standard
+ * {@link java.util.concurrent.Future} methods this object notifies registered
+ * listeners when the download is finished. So callers don't need to block a
+ * thread waiting for results.
+ * <p>
+ * Only the callers are asynchronous: the download itself still occupies one
+ * worker thread of the {@link DownloadScheduler} during the whole request,
+ * because protocol handlers use blocking I/O. The number of simultaneous
+ * downloads is limited by the number of scheduler threads, not by the number
+ * of open connections.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class DownloadFuture extends FutureTask<HttpStatusCode> {
+
+    private final static Logger log = Logger.getLogger(DownloadFuture.class
+        .getName());
+
+    private List<IDownloadListener> fListeners = new ArrayList<IDownloadListener>();
+
+    private IWrfResource fResource;
+
+    private Uri fUrl;
+
+    public DownloadFuture(
+        Uri url,
+        IWrfResource resource,
+        Callable<HttpStatusCode> callable) {
+        super(callable);
+        fUrl = url;
+        fResource = resource;
+    }
+
+    /**
+     * Adds a new listener notified when the download is finished. If the
+     * download is already finished then the listener is notified immediately
+     * in the current thread.
+     * 
+     * @param listener the listener to add
+     * @return this object
+     */
+    public DownloadFuture addListener(IDownloadListener listener) {
+        boolean notify;
+        synchronized (fListeners) {
+            notify = isDone();
+            if (!notify) {
+                fListeners.add(listener);
+            }
+        }
+        if (notify) {
+            notifyListener(listener);
+        }
+        return this;
+    }
+
+    /**
+     * @see java.util.concurrent.FutureTask#done()
+     */
+    @Override
+    protected void done() {
+        List<IDownloadListener> listeners;
+        synchronized (fListeners) {
+            listeners = new ArrayList<IDownloadListener>(fListeners);
+            fListeners.clear();
+        }
+        for (IDownloadListener listener : listeners) {
+            notifyListener(listener);
+        }
+    }
+
+    /**
+     * Returns the resource where the downloaded content is stored.
+     * 
+     * @return the target resource of the download
+     */
+    public IWrfResource getResource() {
+        return fResource;
+    }
+
+    /**
+     * Returns the URL of the downloaded resource.
+     * 
+     * @return the URL of the downloaded resource
+     */
+    public Uri getUrl() {
+        return fUrl;
+    }
+
+    private void notifyListener(IDownloadListener listener) {
+        try {
+            HttpStatusCode statusCode;
+            try {
+                statusCode = get();
+            } catch (ExecutionException e) {
+                listener.onError(fUrl, fResource, e.getCause());
+                return;
+            } catch (CancellationException e) {
+                listener.onError(fUrl, fResource, e);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                listener.onError(fUrl, fResource, e);
+                return;
+            }
+            listener.onLoad(fUrl, fResource, statusCode);
+        } catch (Throwable t) {
+            log.log(Level.WARNING, "Download listener failed.", t);
+        }
+    }
+
+}
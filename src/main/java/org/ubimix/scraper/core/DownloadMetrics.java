@@ -0,0 +1,529 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.scraper.protocol.HttpStatusCode;
+
+/**
+ * This adapter collects statistics about downloads of an application context.
+ * For each host it counts resources returned from the cache (hits),
+ * re-validated resources (304) and really downloaded resources (misses), the
+ * number of stale resources returned while they are refreshed in background,
+ * the number of downloaded bytes and the number of downloads in progress. For each
+ * host and each class of status codes ("2xx", "3xx", "4xx", "5xx" and "error"
+ * for I/O errors) it keeps a histogram of download times. All counters are
+ * updated without locks; the {@link #getSnapshot()} method returns an
+ * immutable copy of the current values.
+ * 
+ * @author kotelnikov
+ */
+public class DownloadMetrics extends AppContextAdapter {
+
+    /**
+     * Mutable counters of one host.
+     * 
+     * @author kotelnikov
+     */
+    private static class HostCounters {
+
+        private final AtomicLong fBlocked = new AtomicLong();
+
+        private final AtomicLong fBytes = new AtomicLong();
+
+        private final AtomicLong fHits = new AtomicLong();
+
+        private final AtomicInteger fInFlight = new AtomicInteger();
+
+        private final ConcurrentMap<String, LatencyHistogram> fLatency = new ConcurrentHashMap<String, LatencyHistogram>();
+
+        private final AtomicLong fMisses = new AtomicLong();
+
+        private final AtomicLong fNotModified = new AtomicLong();
+
+        private final AtomicLong fStale = new AtomicLong();
+
+        public LatencyHistogram getHistogram(String statusClass) {
+            LatencyHistogram histogram = fLatency.get(statusClass);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                LatencyHistogram prev = fLatency.putIfAbsent(
+                    statusClass,
+                    histogram);
+                if (prev != null) {
+                    histogram = prev;
+                }
+            }
+            return histogram;
+        }
+
+        public HostSnapshot getSnapshot(String host) {
+            Map<String, LatencySnapshot> latency = new TreeMap<String, LatencySnapshot>();
+            for (Map.Entry<String, LatencyHistogram> entry : fLatency
+                .entrySet()) {
+                latency.put(entry.getKey(), entry.getValue().getSnapshot());
+            }
+            return new HostSnapshot(
+                host,
+                fInFlight.get(),
+                fHits.get(),
+                fStale.get(),
+                fNotModified.get(),
+                fMisses.get(),
+                fBlocked.get(),
+                fBytes.get(),
+                latency);
+        }
+
+    }
+
+    /**
+     * An immutable copy of counters of one host.
+     * 
+     * @author kotelnikov
+     */
+    public static class HostSnapshot {
+
+        private final long fBlocked;
+
+        private final long fBytes;
+
+        private final long fHits;
+
+        private final String fHost;
+
+        private final int fInFlight;
+
+        private final Map<String, LatencySnapshot> fLatency;
+
+        private final long fMisses;
+
+        private final long fNotModified;
+
+        private final long fStale;
+
+        public HostSnapshot(
+            String host,
+            int inFlight,
+            long hits,
+            long stale,
+            long notModified,
+            long misses,
+            long blocked,
+            long bytes,
+            Map<String, LatencySnapshot> latency) {
+            fHost = host;
+            fInFlight = inFlight;
+            fHits = hits;
+            fStale = stale;
+            fNotModified = notModified;
+            fMisses = misses;
+            fBlocked = blocked;
+            fBytes = bytes;
+            fLatency = Collections.unmodifiableMap(latency);
+        }
+
+        /**
+         * Returns the number of requests blocked by the failure policy (see
+         * {@link DownloadFailurePolicy}).
+         * 
+         * @return the number of blocked requests
+         */
+        public long getBlocked() {
+            return fBlocked;
+        }
+
+        /**
+         * Returns the number of downloaded bytes.
+         * 
+         * @return the number of downloaded bytes
+         */
+        public long getBytes() {
+            return fBytes;
+        }
+
+        /**
+         * Returns the share of resources returned from the cache without
+         * network requests.
+         * 
+         * @return the cache hit ratio (a value between 0 and 1)
+         */
+        public double getHitRatio() {
+            return getRatio(fHits);
+        }
+
+        /**
+         * Returns the number of resources returned from the cache without
+         * network requests.
+         * 
+         * @return the number of cache hits
+         */
+        public long getHits() {
+            return fHits;
+        }
+
+        public String getHost() {
+            return fHost;
+        }
+
+        /**
+         * Returns the number of downloads in progress.
+         * 
+         * @return the number of downloads in progress
+         */
+        public int getInFlight() {
+            return fInFlight;
+        }
+
+        /**
+         * Returns download time histograms by status classes ("2xx", "3xx",
+         * "4xx", "5xx" and "error").
+         * 
+         * @return download time histograms by status classes
+         */
+        public Map<String, LatencySnapshot> getLatency() {
+            return fLatency;
+        }
+
+        /**
+         * Returns the share of resources downloaded from the network.
+         * 
+         * @return the cache miss ratio (a value between 0 and 1)
+         */
+        public double getMissRatio() {
+            return getRatio(fMisses);
+        }
+
+        /**
+         * Returns the number of resources downloaded from the network.
+         * 
+         * @return the number of cache misses
+         */
+        public long getMisses() {
+            return fMisses;
+        }
+
+        /**
+         * Returns the number of re-validated resources (the 304 status code).
+         * 
+         * @return the number of re-validated resources
+         */
+        public long getNotModified() {
+            return fNotModified;
+        }
+
+        /**
+         * Returns the share of re-validated resources.
+         * 
+         * @return the ratio of re-validated resources (a value between 0 and
+         *         1)
+         */
+        public double getNotModifiedRatio() {
+            return getRatio(fNotModified);
+        }
+
+        private double getRatio(long value) {
+            long total = fHits + fNotModified + fMisses;
+            return total > 0 ? (double) value / total : 0;
+        }
+
+        /**
+         * Returns the number of stale resources returned to callers while
+         * they are refreshed in background. The background refresh itself is
+         * counted as a re-validated or downloaded resource, so stale
+         * responses are not included in the hit, miss and re-validation
+         * ratios.
+         * 
+         * @return the number of stale responses
+         */
+        public long getStale() {
+            return fStale;
+        }
+
+    }
+
+    /**
+     * A histogram of download times with fixed bucket bounds.
+     * 
+     * @author kotelnikov
+     */
+    private static class LatencyHistogram {
+
+        private final AtomicLongArray fCounts = new AtomicLongArray(
+            BOUNDS.length + 1);
+
+        private final AtomicLong fMax = new AtomicLong();
+
+        private final AtomicLong fTotal = new AtomicLong();
+
+        public LatencySnapshot getSnapshot() {
+            long[] counts = new long[fCounts.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = fCounts.get(i);
+            }
+            return new LatencySnapshot(counts, fTotal.get(), fMax.get());
+        }
+
+        public void record(long time) {
+            int idx = Arrays.binarySearch(BOUNDS, time);
+            if (idx < 0) {
+                idx = -idx - 1;
+            }
+            fCounts.incrementAndGet(idx);
+            fTotal.addAndGet(time);
+            while (true) {
+                long max = fMax.get();
+                if (time <= max || fMax.compareAndSet(max, time)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * An immutable copy of a download time histogram. All times are in
+     * milliseconds.
+     * 
+     * @author kotelnikov
+     */
+    public static class LatencySnapshot {
+
+        private final long fCount;
+
+        private final long[] fCounts;
+
+        private final long fMax;
+
+        private final long fTotal;
+
+        public LatencySnapshot(long[] counts, long total, long max) {
+            fCounts = counts;
+            fTotal = total;
+            fMax = max;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            fCount = count;
+        }
+
+        /**
+         * Returns upper bounds of histogram buckets. The last bucket does not
+         * have an upper bound.
+         * 
+         * @return upper bounds of histogram buckets
+         */
+        public long[] getBounds() {
+            return BOUNDS.clone();
+        }
+
+        /**
+         * Returns the number of recorded downloads.
+         * 
+         * @return the number of recorded downloads
+         */
+        public long getCount() {
+            return fCount;
+        }
+
+        /**
+         * Returns the number of downloads in each bucket of this histogram.
+         * 
+         * @return the number of downloads in each bucket
+         */
+        public long[] getCounts() {
+            return fCounts.clone();
+        }
+
+        public long getMax() {
+            return fMax;
+        }
+
+        /**
+         * Returns the average download time.
+         * 
+         * @return the average download time
+         */
+        public double getMean() {
+            return fCount > 0 ? (double) fTotal / fCount : 0;
+        }
+
+        /**
+         * Returns an estimation of the specified percentile of download times.
+         * The returned value is the upper bound of the bucket containing the
+         * percentile.
+         * 
+         * @param percentile the percentile (a value between 0 and 1)
+         * @return an estimation of the percentile
+         */
+        public long getPercentile(double percentile) {
+            if (fCount == 0) {
+                return 0;
+            }
+            long limit = (long) Math.ceil(fCount * percentile);
+            long count = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                count += fCounts[i];
+                if (count >= limit && count > 0) {
+                    return Math.min(BOUNDS[i], fMax);
+                }
+            }
+            return fMax;
+        }
+
+        public long getTotal() {
+            return fTotal;
+        }
+
+    }
+
+    /**
+     * Upper bounds (in milliseconds) of buckets of download time histograms.
+     */
+    private static final long[] BOUNDS = {
+        1,
+        2,
+        5,
+        10,
+        25,
+        50,
+        100,
+        250,
+        500,
+        1000,
+        2500,
+        5000,
+        10000,
+        30000,
+        60000 };
+
+    /**
+     * Returns the class of the specified status code: "2xx", "3xx", "4xx",
+     * "5xx" or "error" for negative values (I/O errors).
+     * 
+     * @param statusCode the status code
+     * @return the class of the status code
+     */
+    public static String getStatusClass(int statusCode) {
+        if (statusCode < 100 || statusCode >= 600) {
+            return "error";
+        }
+        return (statusCode / 100) + "xx";
+    }
+
+    private final ConcurrentMap<String, HostCounters> fHosts = new ConcurrentHashMap<String, HostCounters>();
+
+    public DownloadMetrics(AppContext appContext) {
+        super(appContext);
+    }
+
+    private HostCounters getCounters(Uri url) {
+        String host = DownloadScheduler.getHostKey(url);
+        HostCounters counters = fHosts.get(host);
+        if (counters == null) {
+            counters = new HostCounters();
+            HostCounters prev = fHosts.putIfAbsent(host, counters);
+            if (prev != null) {
+                counters = prev;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * Returns an immutable copy of all counters by hosts.
+     * 
+     * @return counters of all hosts sorted by host names
+     */
+    public Map<String, HostSnapshot> getSnapshot() {
+        Map<String, HostSnapshot> result = new TreeMap<String, HostSnapshot>();
+        for (Map.Entry<String, HostCounters> entry : fHosts.entrySet()) {
+            String host = entry.getKey();
+            result.put(host, entry.getValue().getSnapshot(host));
+        }
+        return result;
+    }
+
+    /**
+     * This method should be called when a download is blocked by the failure
+     * policy.
+     * 
+     * @param url the URL of the blocked resource
+     */
+    public void onBlocked(Uri url) {
+        getCounters(url).fBlocked.incrementAndGet();
+    }
+
+    /**
+     * This method should be called when a resource is returned from the cache
+     * without network requests.
+     * 
+     * @param url the URL of the resource
+     */
+    public void onCacheHit(Uri url) {
+        getCounters(url).fHits.incrementAndGet();
+    }
+
+    /**
+     * This method should be called when a download is finished.
+     * 
+     * @param url the URL of the downloaded resource
+     * @param startTime the time returned by the
+     *        {@link #onDownloadStart(Uri)} method
+     * @param statusCode the status of the download or -1 for I/O errors
+     * @param bytes the number of downloaded bytes
+     */
+    public void onDownloadEnd(
+        Uri url,
+        long startTime,
+        int statusCode,
+        long bytes) {
+        long time = (System.nanoTime() - startTime) / 1000000;
+        HostCounters counters = getCounters(url);
+        counters.fInFlight.decrementAndGet();
+        if (statusCode == HttpStatusCode.STATUS_304.getStatusCode()) {
+            counters.fNotModified.incrementAndGet();
+        } else {
+            counters.fMisses.incrementAndGet();
+        }
+        if (bytes > 0) {
+            counters.fBytes.addAndGet(bytes);
+        }
+        counters.getHistogram(getStatusClass(statusCode)).record(time);
+    }
+
+    /**
+     * This method should be called when a stale resource is returned to the
+     * caller and it is refreshed in background.
+     * 
+     * @param url the URL of the resource
+     */
+    public void onStaleHit(Uri url) {
+        getCounters(url).fStale.incrementAndGet();
+    }
+
+    /**
+     * This method should be called when a download is started. The returned
+     * value should be passed to the
+     * {@link #onDownloadEnd(Uri, long, int, long)} method.
+     * 
+     * @param url the URL of the resource to download
+     * @return the start time of the download
+     */
+    public long onDownloadStart(Uri url) {
+        getCounters(url).fInFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+}
@@ -0,0 +1,351 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ubimix.commons.uri.Uri;
+
+/**
+ * This scheduler is used to execute download tasks with "politeness"
+ * restrictions. Each host (URL authority) has its own queue of tasks. For each
+ * host this scheduler limits the number of simultaneously executed tasks and
+ * the minimal delay between two starts. Worker threads take tasks from host
+ * queues in a round-robin order, so one slow host does not block downloads
+ * from all other hosts.
+ * <p>
+ * Host queues are not bounded: all submitted tasks are kept in memory until
+ * they are executed or cancelled. If one host is slow (or the delay between
+ * its downloads is big) then its queue grows with each submitted task. Callers
+ * submitting very big batches should split them and submit the next part only
+ * when a part of the previous one is finished (see {@link #getQueueSize()}).
+ * </p>
+ * <p>
+ * Each running task blocks one worker thread until its download is finished:
+ * protocol handlers read responses with blocking I/O, so there is one thread
+ * per fetch in flight. The total number of parallel downloads can not exceed
+ * the number of worker threads, whatever the per-host limits are.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class DownloadScheduler {
+
+    /**
+     * Queue of tasks associated with one host.
+     * 
+     * @author kotelnikov
+     */
+    private static class HostQueue {
+
+        private final String fHost;
+
+        private int fInFlight;
+
+        private long fLastStart;
+
+        private final LinkedList<FutureTask<?>> fTasks = new LinkedList<FutureTask<?>>();
+
+        public HostQueue(String host) {
+            fHost = host;
+        }
+
+    }
+
+    /**
+     * The default maximal number of simultaneous downloads from one host.
+     */
+    public static final int DEFAULT_HOST_CONNECTIONS = 2;
+
+    private final static Logger log = Logger.getLogger(DownloadScheduler.class
+        .getName());
+
+    /**
+     * Returns a key of the host for the specified URL. This key is used to
+     * group download tasks in host queues. It is the authority part of the
+     * given URL (host name with the port number).
+     * 
+     * @param url the URL for which the host key should be returned
+     * @return the host key for the specified URL
+     */
+    public static String getHostKey(Uri url) {
+        String str = url != null ? url.toString() : "";
+        int start = str.indexOf("://");
+        start = start >= 0 ? start + 3 : 0;
+        int end = start;
+        int len = str.length();
+        while (end < len) {
+            char ch = str.charAt(end);
+            if (ch == '/' || ch == '?' || ch == '#') {
+                break;
+            }
+            end++;
+        }
+        String host = str.substring(start, end);
+        int idx = host.lastIndexOf('@');
+        if (idx >= 0) {
+            host = host.substring(idx + 1);
+        }
+        return host.toLowerCase();
+    }
+
+    private long fHostDelay;
+
+    /**
+     * Host queues in the round-robin order.
+     */
+    private final List<HostQueue> fHostList = new ArrayList<HostQueue>();
+
+    private final Map<String, HostQueue> fHosts = new HashMap<String, HostQueue>();
+
+    private int fMaxHostConnections;
+
+    /**
+     * The position in the host list used to search for the next task.
+     */
+    private int fNextHostIdx;
+
+    private boolean fStopped;
+
+    /**
+     * @param threads the number of worker threads
+     * @param maxHostConnections the maximal number of tasks simultaneously
+     *        executed for the same host
+     * @param hostDelay the minimal delay (in milliseconds) between two starts
+     *        of tasks for the same host
+     */
+    public DownloadScheduler(
+        int threads,
+        int maxHostConnections,
+        long hostDelay) {
+        fMaxHostConnections = Math.max(1, maxHostConnections);
+        fHostDelay = Math.max(0, hostDelay);
+        threads = Math.max(1, threads);
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, "download-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Adds a new task to the queue of the specified host.
+     * 
+     * @param host the host key; see {@link #getHostKey(Uri)}
+     * @param task the task to execute
+     */
+    public synchronized void execute(String host, FutureTask<?> task) {
+        if (fStopped) {
+            task.cancel(false);
+            return;
+        }
+        HostQueue queue = fHosts.get(host);
+        if (queue == null) {
+            queue = new HostQueue(host);
+            fHosts.put(host, queue);
+            fHostList.add(queue);
+        }
+        queue.fTasks.add(task);
+        notifyAll();
+    }
+
+    /**
+     * This method is called when a task for the specified host is finished.
+     */
+    private synchronized void finishTask(HostQueue queue) {
+        queue.fInFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Returns the minimal delay between two starts of tasks for one host.
+     * 
+     * @return the minimal delay (in milliseconds) between two downloads from
+     *         the same host
+     */
+    public synchronized long getHostDelay() {
+        return fHostDelay;
+    }
+
+    /**
+     * Returns the maximal number of tasks executed simultaneously for one
+     * host.
+     * 
+     * @return the maximal number of simultaneous downloads for one host
+     */
+    public synchronized int getMaxHostConnections() {
+        return fMaxHostConnections;
+    }
+
+    /**
+     * Returns the number of tasks waiting for execution.
+     * 
+     * @return the number of queued tasks
+     */
+    public synchronized int getQueueSize() {
+        int result = 0;
+        for (HostQueue queue : fHostList) {
+            result += queue.fTasks.size();
+        }
+        return result;
+    }
+
+    /**
+     * Removes host queues without tasks. A queue is kept while the delay after
+     * its last start is not expired, so this delay is respected for tasks
+     * added just after the end of previous ones.
+     */
+    private void removeIdleQueues(long now) {
+        for (int i = fHostList.size() - 1; i >= 0; i--) {
+            HostQueue queue = fHostList.get(i);
+            if (queue.fInFlight == 0
+                && queue.fTasks.isEmpty()
+                && now - queue.fLastStart >= fHostDelay) {
+                removeQueue(queue);
+            }
+        }
+    }
+
+    private void removeQueue(HostQueue queue) {
+        int idx = fHostList.indexOf(queue);
+        if (idx >= 0) {
+            fHostList.remove(idx);
+            if (idx < fNextHostIdx) {
+                fNextHostIdx--;
+            }
+        }
+        fHosts.remove(queue.fHost);
+    }
+
+    private void runWorker() {
+        while (true) {
+            HostQueue queue;
+            FutureTask<?> task;
+            synchronized (this) {
+                queue = takeQueue();
+                if (queue == null) {
+                    return;
+                }
+                task = queue.fTasks.removeFirst();
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.log(Level.WARNING, "Download task failed.", t);
+            } finally {
+                finishTask(queue);
+            }
+        }
+    }
+
+    /**
+     * Sets a new minimal delay between two starts of tasks for one host.
+     * 
+     * @param hostDelay the minimal delay in milliseconds
+     */
+    public synchronized void setHostDelay(long hostDelay) {
+        fHostDelay = Math.max(0, hostDelay);
+        notifyAll();
+    }
+
+    /**
+     * Sets the maximal number of tasks executed simultaneously for one host.
+     * 
+     * @param maxHostConnections the maximal number of simultaneous downloads
+     */
+    public synchronized void setMaxHostConnections(int maxHostConnections) {
+        fMaxHostConnections = Math.max(1, maxHostConnections);
+        notifyAll();
+    }
+
+    /**
+     * Stops all worker threads. Tasks which are already running are finished.
+     * All queued tasks are cancelled.
+     */
+    public synchronized void shutdown() {
+        fStopped = true;
+        for (HostQueue queue : fHostList) {
+            for (FutureTask<?> task : queue.fTasks) {
+                task.cancel(false);
+            }
+            queue.fTasks.clear();
+        }
+        fHostList.clear();
+        fHosts.clear();
+        notifyAll();
+    }
+
+    /**
+     * Adds a new task to the queue of the specified host.
+     * 
+     * @param host the host key; see {@link #getHostKey(Uri)}
+     * @param task the task to execute
+     * @return a future object giving access to results of the task
+     */
+    public <T> Future<T> submit(String host, Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        execute(host, future);
+        return future;
+    }
+
+    /**
+     * Waits until one of the host queues contains a task which could be
+     * started. Host queues are checked in the round-robin order. This method
+     * should be called in a synchronized block.
+     * 
+     * @return a host queue with a task to execute or <code>null</code> if this
+     *         scheduler was stopped
+     */
+    private HostQueue takeQueue() {
+        while (!fStopped) {
+            long now = System.currentTimeMillis();
+            removeIdleQueues(now);
+            long wait = -1;
+            int size = fHostList.size();
+            for (int i = 0; i < size; i++) {
+                int idx = (fNextHostIdx + i) % size;
+                HostQueue queue = fHostList.get(idx);
+                if (queue.fTasks.isEmpty()
+                    || queue.fInFlight >= fMaxHostConnections) {
+                    continue;
+                }
+                long delay = queue.fLastStart + fHostDelay - now;
+                if (delay > 0) {
+                    wait = wait < 0 ? delay : Math.min(wait, delay);
+                    continue;
+                }
+                fNextHostIdx = (idx + 1) % size;
+                queue.fInFlight++;
+                queue.fLastStart = now;
+                return queue;
+            }
+            try {
+                if (wait > 0) {
+                    wait(wait);
+                } else {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,146 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.resources.IWrfResource;
+import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
+import org.ubimix.scraper.protocol.CompositeProtocolHandler;
+import org.ubimix.scraper.protocol.HttpStatusCode;
+
+/**
+ * This class is used to re-validate expired resources using conditional HTTP
+ * requests. Requests are sent by the {@link CompositeProtocolHandler} used
+ * for all other downloads, so they use the same proxy, cookie and user agent
+ * settings. The HTTP protocol handler sends the validators ("ETag" and
+ * "Last-Modified" values) stored in the {@link CachedResourceAdapter} of a
+ * resource in the "If-None-Match" and "If-Modified-Since" headers. If the
+ * server responds with the 304 status (Not Modified) then the resource is
+ * marked as validated and its content is not downloaded again. If the
+ * resource was changed then the protocol handler writes the new content
+ * directly to the resource, so changed resources are not requested twice.
+ * <p>
+ * Headers of a 304 response are merged with the stored properties of the
+ * resource. A 200 response replaces all stored properties.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class HttpRevalidator {
+
+    /**
+     * Headers of 304 responses which are not merged with the stored
+     * properties, because they describe the (empty) response itself and not
+     * the stored content.
+     */
+    private static final Set<String> SKIPPED_HEADERS = new HashSet<String>(
+        Arrays.asList("content-length", "transfer-encoding"));
+
+    /**
+     * The handler sending conditional requests.
+     */
+    private final CompositeProtocolHandler fProtocolHandler;
+
+    /**
+     * @param protocolHandler the handler used to send conditional requests
+     */
+    public HttpRevalidator(CompositeProtocolHandler protocolHandler) {
+        fProtocolHandler = protocolHandler;
+    }
+
+    /**
+     * Returns <code>true</code> if the resource with the specified URL and
+     * cache properties could be re-validated by this object.
+     * 
+     * @param url the URL of the resource
+     * @param cache the cache adapter of the resource
+     * @return <code>true</code> if the resource could be re-validated
+     */
+    public boolean canRevalidate(Uri url, CachedResourceAdapter cache) {
+        String str = url.toString().toLowerCase();
+        if (!str.startsWith("http://") && !str.startsWith("https://")) {
+            return false;
+        }
+        return CacheUtils.getProperty(cache, CacheUtils.ETAG) != null
+            || CacheUtils.getProperty(cache, CacheUtils.LAST_MODIFIED) != null;
+    }
+
+    /**
+     * Merges headers of a 304 response with the stored properties of the
+     * resource. Headers describing the response body are ignored. The status
+     * code of the stored content is kept.
+     */
+    private void mergeHeaders(
+        CachedResourceAdapter cache,
+        Map<String, String> stored,
+        int statusCode) {
+        Map<String, String> properties = new HashMap<String, String>();
+        Map<String, String> headers = cache.getProperties();
+        if (headers != null) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                String key = entry.getKey();
+                if (!SKIPPED_HEADERS.contains(key.toLowerCase())) {
+                    properties.put(key, entry.getValue());
+                }
+            }
+        }
+        properties.put(CacheUtils.VALIDATED, Long.toString(System
+            .currentTimeMillis()));
+        cache.setProperties(stored);
+        CacheUtils.setProperties(cache, properties);
+        cache.setStatusCode(statusCode);
+    }
+
+    /**
+     * Sends a conditional request to the server. If the resource was not
+     * modified then this method merges response headers with the cache
+     * properties, updates the validation time of the resource and returns the
+     * 304 status code. Otherwise the response is handled by the protocol
+     * handler as a regular download: the new content of the resource (the
+     * 200 status code) is written to the resource and response headers
+     * replace all cache properties. This method returns <code>null</code>
+     * only if the resource has no validators; such resources should be
+     * downloaded using the regular protocol handlers.
+     * 
+     * @param url the URL of the resource to validate
+     * @param login the login used to access the resource; it could be
+     *        <code>null</code>
+     * @param password the password used to access the resource
+     * @param resource the resource to validate
+     * @return the status code returned by the server or <code>null</code> if
+     *         the resource could not be re-validated
+     * @throws IOException
+     */
+    public HttpStatusCode revalidate(
+        Uri url,
+        String login,
+        String password,
+        IWrfResource resource) throws IOException {
+        CachedResourceAdapter cache = resource
+            .getAdapter(CachedResourceAdapter.class);
+        if (!canRevalidate(url, cache)) {
+            return null;
+        }
+        Map<String, String> stored = new HashMap<String, String>(cache
+            .getProperties());
+        int statusCode = cache.getStatusCode();
+        HttpStatusCode result = fProtocolHandler.handleRequest(
+            url,
+            login,
+            password,
+            resource);
+        if (result == HttpStatusCode.STATUS_304) {
+            mergeHeaders(cache, stored, statusCode);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,39 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.IOException;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.commons.xml.XmlException;
+import org.ubimix.scraper.transformer.IDocumentTransformer;
+
+/**
+ * Document transformers implementing this interface could write their results
+ * directly to a stream (or to any other {@link Result}) instead of building
+ * the resulting document in memory. The {@link DocAdapter} uses this mode to
+ * write Atom feeds incrementally to the target resources.
+ * 
+ * @author kotelnikov
+ */
+public interface IStreamingDocumentTransformer extends IDocumentTransformer {
+
+    /**
+     * Transforms the specified document and writes the results to the given
+     * output.
+     * 
+     * @param url the URL of the transformed document
+     * @param input the document to transform
+     * @param output the output receiving the resulting feed
+     * @throws XmlException
+     * @throws IOException
+     */
+    void transformDocument(Uri url, Source input, Result output)
+        throws XmlException,
+        IOException;
+
+}
@@ -87,7 +87,7 @@ public class MapAdapter extends AppContextAdapter {
                 Path path = new Path.Builder(fPathPrefix)
                     .appendPath(tilePath)
                     .build();
-                fResults.put(path, resource);
+                fResults.put(path, fContext.getContentResource(resource));
             } catch (IOException e) {
                 handleError("Can not load a tile " + tile + ".", e);
             }
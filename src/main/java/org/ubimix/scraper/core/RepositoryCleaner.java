@@ -0,0 +1,252 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ubimix.resources.IWrfRepository;
+import org.ubimix.resources.impl.WrfResourceRepository;
+
+/**
+ * This object resets repositories without blocking application start. The
+ * repository directory is atomically renamed to a "trash" directory (a sibling
+ * directory with the {@link #TRASH_SUFFIX} suffix) and a new empty repository
+ * is used immediately. Trash directories are deleted in a background daemon
+ * thread.
+ * <p>
+ * All trash directories of the repository are deleted when the cleaner is
+ * started, so deletions interrupted by a crash or a shutdown are resumed at the
+ * next start. The progress of the deletion is logged and available with the
+ * {@link #getDeletedFiles()} and {@link #isFinished()} methods.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class RepositoryCleaner {
+
+    private final static Logger log = Logger.getLogger(RepositoryCleaner.class
+        .getName());
+
+    /**
+     * Progress is logged each time when this number of files is deleted.
+     */
+    private static final int PROGRESS_STEP = 10000;
+
+    /**
+     * The suffix added to names of renamed repository directories.
+     */
+    public static final String TRASH_SUFFIX = ".trash-";
+
+    private final AtomicLong fDeletedFiles = new AtomicLong();
+
+    private final File fDir;
+
+    private final AtomicLong fFailedFiles = new AtomicLong();
+
+    private Thread fThread;
+
+    public RepositoryCleaner(File dir) {
+        fDir = dir.getAbsoluteFile();
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                delete(child);
+            }
+        }
+        if (file.delete()) {
+            long count = fDeletedFiles.incrementAndGet();
+            if (count % PROGRESS_STEP == 0) {
+                log.info(count + " files are deleted from " + fDir + ".");
+            }
+        } else if (file.exists()) {
+            fFailedFiles.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of files and directories deleted since the start of
+     * this cleaner.
+     * 
+     * @return the number of deleted files
+     */
+    public long getDeletedFiles() {
+        return fDeletedFiles.get();
+    }
+
+    public File getDirectory() {
+        return fDir;
+    }
+
+    /**
+     * Returns the number of files which could not be deleted. They are
+     * deleted again at the next start.
+     * 
+     * @return the number of files which could not be deleted
+     */
+    public long getFailedFiles() {
+        return fFailedFiles.get();
+    }
+
+    /**
+     * Returns all existing trash directories of the repository.
+     * 
+     * @return a list of trash directories
+     */
+    public List<File> getTrashDirectories() {
+        List<File> result = new ArrayList<File>();
+        File parent = fDir.getParentFile();
+        if (parent == null) {
+            return result;
+        }
+        final String prefix = fDir.getName() + TRASH_SUFFIX;
+        File[] files = parent.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix);
+            }
+        });
+        if (files != null) {
+            for (File file : files) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns <code>true</code> if the background deletion is finished (or
+     * was not started).
+     * 
+     * @return <code>true</code> if this cleaner is finished
+     */
+    public synchronized boolean isFinished() {
+        return fThread == null || !fThread.isAlive();
+    }
+
+    /**
+     * Waits the end of the background deletion.
+     * 
+     * @param timeout the maximal time to wait (in milliseconds)
+     * @return <code>true</code> if the deletion is finished
+     * @throws InterruptedException
+     */
+    public boolean join(long timeout) throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = fThread;
+        }
+        if (thread != null) {
+            thread.join(timeout);
+        }
+        return isFinished();
+    }
+
+    /**
+     * Renames the repository directory to a new trash directory. The
+     * repository directory does not exist after this call.
+     * 
+     * @return <code>true</code> if the directory was renamed or if it does
+     *         not exist; <code>false</code> if the directory could not be
+     *         renamed
+     */
+    public boolean moveToTrash() {
+        if (!fDir.exists()) {
+            return true;
+        }
+        long time = System.currentTimeMillis();
+        File trash;
+        int i = 0;
+        do {
+            String suffix = TRASH_SUFFIX + time + (i > 0 ? "-" + i : "");
+            trash = new File(fDir.getParentFile(), fDir.getName() + suffix);
+            i++;
+        } while (trash.exists());
+        return fDir.renameTo(trash);
+    }
+
+    /**
+     * Opens the repository and starts the deletion of trash directories. If
+     * the repository should be reset then its directory is moved to the trash
+     * before. If it can not be renamed then the repository is reset
+     * synchronously.
+     * 
+     * @param reset if it is <code>true</code> then all resources of the
+     *        repository are removed
+     * @return the repository
+     */
+    public IWrfRepository openRepository(boolean reset) {
+        boolean resetNow = false;
+        if (reset && !moveToTrash()) {
+            log.warning("Can not rename the repository "
+                + fDir
+                + ". It is reset synchronously.");
+            resetNow = true;
+        }
+        start();
+        return WrfResourceRepository.newRepository(fDir, resetNow);
+    }
+
+    /**
+     * Starts deleting all trash directories in a background thread.
+     */
+    public synchronized void start() {
+        if (fThread != null && fThread.isAlive()) {
+            return;
+        }
+        final List<File> dirs = getTrashDirectories();
+        if (dirs.isEmpty()) {
+            return;
+        }
+        fThread = new Thread("repository-cleaner") {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                log.info("Deletion of " + dirs + " is started.");
+                try {
+                    for (File dir : dirs) {
+                        if (isInterrupted()) {
+                            break;
+                        }
+                        delete(dir);
+                    }
+                } catch (Throwable t) {
+                    log.log(Level.WARNING, "Can not delete " + dirs + ".", t);
+                }
+                log.info(fDeletedFiles.get()
+                    + " files are deleted from "
+                    + dirs
+                    + " in "
+                    + (System.currentTimeMillis() - start)
+                    + " ms.");
+            }
+        };
+        fThread.setDaemon(true);
+        fThread.setPriority(Thread.MIN_PRIORITY);
+        fThread.start();
+    }
+
+    /**
+     * Stops the background deletion. Remaining files are deleted at the next
+     * start.
+     */
+    public synchronized void stop() {
+        if (fThread != null) {
+            fThread.interrupt();
+            fThread = null;
+        }
+    }
+
+}
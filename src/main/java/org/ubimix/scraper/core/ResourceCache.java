@@ -0,0 +1,305 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.resources.IWrfResource;
+
+/**
+ * A bounded cache of resource handles returned by the
+ * {@link AppContext#getResource(String, Uri, String)} method. It allows to
+ * avoid transformations of URLs into paths and look-ups of stores for URLs
+ * requested several times.
+ * <p>
+ * Entries are split in segments by the hash of their keys; each segment is
+ * an access-ordered map with its own lock, so concurrent threads rarely wait
+ * for each other. The size of each entry is estimated by the length of its
+ * key; when the total size of a segment exceeds its part of the maximal size
+ * of the cache then the least recently used entries of the segment are
+ * removed.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class ResourceCache {
+
+    /**
+     * Keys of cached resources.
+     */
+    private static class Key {
+
+        private final int fHashCode;
+
+        private final String fStoreName;
+
+        private final String fSuffix;
+
+        private final String fUrl;
+
+        public Key(String storeName, String url, String suffix) {
+            fStoreName = storeName;
+            fUrl = url;
+            fSuffix = suffix;
+            int hash = storeName.hashCode();
+            hash = hash * 31 + url.hashCode();
+            if (suffix != null) {
+                hash = hash * 31 + suffix.hashCode();
+            }
+            fHashCode = hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key o = (Key) obj;
+            return fHashCode == o.fHashCode
+                && fUrl.equals(o.fUrl)
+                && fStoreName.equals(o.fStoreName)
+                && (fSuffix != null
+                    ? fSuffix.equals(o.fSuffix)
+                    : o.fSuffix == null);
+        }
+
+        /**
+         * Returns the estimated number of bytes used by the entry with this
+         * key.
+         */
+        public int getSize() {
+            int len = fStoreName.length() + fUrl.length();
+            if (fSuffix != null) {
+                len += fSuffix.length();
+            }
+            return ENTRY_OVERHEAD + len * 2;
+        }
+
+        @Override
+        public int hashCode() {
+            return fHashCode;
+        }
+
+    }
+
+    /**
+     * A part of the cache protected by its own lock.
+     */
+    private static class Segment {
+
+        private Map<Key, IWrfResource> fEntries = new LinkedHashMap<Key, IWrfResource>(
+            16,
+            0.75f,
+            true);
+
+        private long fSize;
+
+        public synchronized void clear() {
+            fEntries.clear();
+            fSize = 0;
+        }
+
+        public synchronized IWrfResource get(Key key) {
+            return fEntries.get(key);
+        }
+
+        public synchronized int getEntryCount() {
+            return fEntries.size();
+        }
+
+        public synchronized long getSize() {
+            return fSize;
+        }
+
+        /**
+         * Adds a new entry and removes the least recently used entries while
+         * the size of this segment is greater than the given maximal size.
+         * 
+         * @return the number of removed entries
+         */
+        public synchronized int put(
+            Key key,
+            IWrfResource resource,
+            long maxSize) {
+            if (fEntries.put(key, resource) == null) {
+                fSize += key.getSize();
+            }
+            int count = 0;
+            Iterator<Key> iterator = fEntries.keySet().iterator();
+            while (fSize > maxSize && iterator.hasNext()) {
+                Key k = iterator.next();
+                iterator.remove();
+                fSize -= k.getSize();
+                count++;
+            }
+            return count;
+        }
+
+    }
+
+    /**
+     * The default maximal size of the cache (in bytes).
+     */
+    public static final long DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The estimated number of bytes used by an entry in addition to its key
+     * (the resource handle, its path and the map entry).
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private final AtomicLong fEvictions = new AtomicLong();
+
+    private final AtomicLong fHits = new AtomicLong();
+
+    private volatile long fMaxSize;
+
+    private final AtomicLong fMisses = new AtomicLong();
+
+    private final Segment[] fSegments = new Segment[SEGMENT_COUNT];
+
+    public ResourceCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public ResourceCache(long maxSize) {
+        for (int i = 0; i < fSegments.length; i++) {
+            fSegments[i] = new Segment();
+        }
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * Removes all entries from this cache. Counters are not changed.
+     */
+    public void clear() {
+        for (Segment segment : fSegments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Returns the cached resource for the specified store, URL and suffix or
+     * <code>null</code> if there is no such a resource in the cache.
+     * 
+     * @param storeName the name of the store
+     * @param url the URL of the resource
+     * @param suffix the suffix of the resource path; it could be
+     *        <code>null</code>
+     * @return the cached resource
+     */
+    public IWrfResource get(String storeName, Uri url, String suffix) {
+        Key key = new Key(storeName, url.toString(), suffix);
+        IWrfResource resource = getSegment(key).get(key);
+        if (resource != null) {
+            fHits.incrementAndGet();
+        } else {
+            fMisses.incrementAndGet();
+        }
+        return resource;
+    }
+
+    /**
+     * Returns the number of cached entries.
+     * 
+     * @return the number of entries in this cache
+     */
+    public int getEntryCount() {
+        int count = 0;
+        for (Segment segment : fSegments) {
+            count += segment.getEntryCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of entries removed from this cache because its size
+     * was exceeded.
+     * 
+     * @return the number of evicted entries
+     */
+    public long getEvictions() {
+        return fEvictions.get();
+    }
+
+    public long getHits() {
+        return fHits.get();
+    }
+
+    public long getMaxSize() {
+        return fMaxSize;
+    }
+
+    public long getMisses() {
+        return fMisses.get();
+    }
+
+    private Segment getSegment(Key key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return fSegments[hash & (fSegments.length - 1)];
+    }
+
+    /**
+     * Returns the estimated size of all cached entries.
+     * 
+     * @return the estimated size of this cache in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : fSegments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * Adds a resource to this cache.
+     * 
+     * @param storeName the name of the store
+     * @param url the URL of the resource
+     * @param suffix the suffix of the resource path; it could be
+     *        <code>null</code>
+     * @param resource the resource to add
+     */
+    public void put(
+        String storeName,
+        Uri url,
+        String suffix,
+        IWrfResource resource) {
+        long maxSize = fMaxSize / fSegments.length;
+        if (maxSize <= 0) {
+            return;
+        }
+        Key key = new Key(storeName, url.toString(), suffix);
+        int evicted = getSegment(key).put(key, resource, maxSize);
+        if (evicted > 0) {
+            fEvictions.addAndGet(evicted);
+        }
+    }
+
+    /**
+     * Sets the maximal size of this cache (in bytes). Entries exceeding the
+     * new size are removed when new entries are added. If the size is 0 then
+     * resources are not cached.
+     * 
+     * @param maxSize the maximal size of the cache
+     */
+    public void setMaxSize(long maxSize) {
+        fMaxSize = Math.max(0, maxSize);
+        if (fMaxSize == 0) {
+            clear();
+        }
+    }
+
+}
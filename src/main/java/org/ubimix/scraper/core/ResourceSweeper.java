@@ -0,0 +1,604 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ubimix.commons.uri.Path;
+import org.ubimix.resources.IWrfResource;
+import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
+import org.ubimix.resources.adapters.cache.DateUtil;
+
+/**
+ * This adapter removes old resources from stores of the repository. Only
+ * stores with defined limits (see {@link #setLimits(String, StoreLimits)})
+ * are swept:
+ * <ul>
+ * <li>resources not downloaded or validated during the maximal age of the
+ * store are removed;</li>
+ * <li>if the size of the store exceeds its quota then the least recently
+ * validated resources are removed.</li>
+ * </ul>
+ * <p>
+ * Stores are walked on the disk; each directory containing files is
+ * considered as a resource. The time of a resource is the time of its last
+ * download or validation recorded in its cache properties (see
+ * {@link CachePolicy#getValidationTime(CachedResourceAdapter)}); the last
+ * modification time of its files is used only if this time is unknown. A
+ * store is walked at most twice per sweep: the first pass
+ * removes too old resources and builds a histogram of resource sizes by time;
+ * the second one (only if the quota is exceeded) removes resources older than
+ * the time found in the histogram. So the memory used by the sweeper does not
+ * depend on the number of resources.
+ * </p>
+ * <p>
+ * Shared content (see {@link ContentStore}) is collected after the sweep of
+ * stores: all stores of the repository are walked to mark blobs referenced by
+ * resources; then blobs and segment records without references are removed
+ * (see {@link #collectContent(File)}). The blob store itself is never swept
+ * by limits. The size of blobs referenced by a resource is counted against
+ * the quota of its store; a blob shared by several resources is counted for
+ * each of them. Unlike sweeps, the collection keeps in memory the digests of
+ * all referenced blobs.
+ * </p>
+ * <p>
+ * The number of files checked per second is limited (see
+ * {@link #setFilesPerSecond(long)}), so sweeps do not disturb downloads. Each
+ * read of resource properties is counted as a checked file.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class ResourceSweeper extends AppContextAdapter {
+
+    /**
+     * Limits of a store.
+     * 
+     * @author kotelnikov
+     */
+    public static class StoreLimits {
+
+        private final long fMaxAge;
+
+        private final long fQuota;
+
+        /**
+         * @param quota the maximal size of the store in bytes; if it is 0
+         *        then the size is not limited
+         * @param maxAge the maximal time (in milliseconds) after the last
+         *        validation of resources; if it is 0 then the age of
+         *        resources is not limited
+         */
+        public StoreLimits(long quota, long maxAge) {
+            fQuota = Math.max(0, quota);
+            fMaxAge = Math.max(0, maxAge);
+        }
+
+        public long getMaxAge() {
+            return fMaxAge;
+        }
+
+        public long getQuota() {
+            return fQuota;
+        }
+
+        @Override
+        public String toString() {
+            return "StoreLimits[quota=" + fQuota + ", maxAge=" + fMaxAge + "]";
+        }
+
+    }
+
+    /**
+     * Visitors of resource directories.
+     */
+    private interface IResourceVisitor {
+
+        void visit(File dir, List<File> files, long size, long time)
+            throws InterruptedIOException;
+
+    }
+
+    /**
+     * The time interval used to group resources in the histogram.
+     */
+    private static final long BUCKET_SIZE = 10 * DateUtil.MIN;
+
+    /**
+     * The default number of files checked per second.
+     */
+    public static final long DEFAULT_FILES_PER_SECOND = 1000;
+
+    private final static Logger log = Logger.getLogger(ResourceSweeper.class
+        .getName());
+
+    private final TokenBucket fLimiter = new TokenBucket(
+        DEFAULT_FILES_PER_SECOND);
+
+    private volatile Map<String, StoreLimits> fLimits = Collections
+        .emptyMap();
+
+    private final AtomicLong fRemovedBytes = new AtomicLong();
+
+    private final AtomicLong fRemovedResources = new AtomicLong();
+
+    private volatile File fRoot;
+
+    private Thread fThread;
+
+    public ResourceSweeper(AppContext appContext) {
+        super(appContext);
+    }
+
+    /**
+     * Removes blobs of the content store which are not referenced by
+     * resources. All stores of the repository (except the blob store and the
+     * directory of segments) are walked to mark referenced blobs. If blobs are
+     * packed in segments then blob resources restored from segments are
+     * removed as well (see
+     * {@link ContentStore#removeRestoredBlob(String, List)}). Blobs stored
+     * during the collection are never removed (see
+     * {@link ContentStore#beginCollection()}).
+     * 
+     * @param root the repository directory
+     * @return the number of removed blobs
+     * @throws InterruptedIOException if the current thread is interrupted
+     */
+    protected long collectContent(File root) throws InterruptedIOException {
+        final ContentStore contentStore = fContext
+            .getAdapter(ContentStore.class);
+        final File blobDir = new File(root, contentStore.getStoreName());
+        SegmentStore segmentStore = contentStore.getSegmentStore();
+        if (!blobDir.isDirectory() && segmentStore == null) {
+            return 0;
+        }
+        if (!contentStore.beginCollection()) {
+            return 0;
+        }
+        try {
+            final Set<String> references = new HashSet<String>();
+            File[] stores = root.listFiles();
+            if (stores == null) {
+                return 0;
+            }
+            for (final File storeDir : stores) {
+                if (!storeDir.isDirectory()
+                    || storeDir.equals(blobDir)
+                    || (segmentStore != null && storeDir
+                        .equals(segmentStore.getDirectory()))) {
+                    continue;
+                }
+                walk(storeDir, new IResourceVisitor() {
+                    @Override
+                    public void visit(
+                        File dir,
+                        List<File> files,
+                        long size,
+                        long time) throws InterruptedIOException {
+                        String reference = contentStore
+                            .getReference(getCache(storeDir, dir));
+                        if (reference != null) {
+                            references.add(reference);
+                        }
+                    }
+                });
+            }
+            final long[] count = { 0 };
+            final boolean segments = segmentStore != null;
+            walk(blobDir, new IResourceVisitor() {
+                @Override
+                public void visit(
+                    File dir,
+                    List<File> files,
+                    long size,
+                    long time) {
+                    String digest = dir.getName();
+                    boolean removed;
+                    if (!references.contains(digest)) {
+                        removed = removeBlob(contentStore, digest, files);
+                    } else {
+                        // Blobs restored from segments are not kept
+                        removed = segments
+                            && contentStore.removeRestoredBlob(digest, files);
+                    }
+                    if (removed) {
+                        dir.delete();
+                        fRemovedResources.incrementAndGet();
+                        fRemovedBytes.addAndGet(size);
+                        count[0]++;
+                    }
+                }
+            });
+            if (segmentStore != null) {
+                List<File> files = Collections.emptyList();
+                for (String digest : segmentStore.getKeys()) {
+                    if (!references.contains(digest)
+                        && removeBlob(contentStore, digest, files)) {
+                        count[0]++;
+                    }
+                }
+            }
+            if (count[0] > 0) {
+                log.info(count[0] + " unused blobs are removed.");
+            }
+            return count[0];
+        } finally {
+            contentStore.endCollection();
+        }
+    }
+
+    /**
+     * Returns the cache adapter of the resource stored in the given directory
+     * or <code>null</code> if there is no application context. The read of
+     * resource properties is counted by the limiter of checked files.
+     */
+    private CachedResourceAdapter getCache(File storeDir, File dir)
+        throws InterruptedIOException {
+        if (fContext == null) {
+            return null;
+        }
+        fLimiter.acquire(1);
+        LinkedList<String> names = new LinkedList<String>();
+        for (File file = dir; !storeDir.equals(file); file = file
+            .getParentFile()) {
+            names.addFirst(file.getName());
+        }
+        StringBuilder buf = new StringBuilder();
+        for (String name : names) {
+            buf.append('/').append(name);
+        }
+        IWrfResource resource = fContext.getResource(
+            storeDir.getName(),
+            new Path(buf.toString()));
+        return resource.getAdapter(CachedResourceAdapter.class);
+    }
+
+    /**
+     * Returns the size of the blob referenced by the resource with the given
+     * cache adapter or 0 if the content store is disabled or if the resource
+     * does not refer to a blob.
+     */
+    private long getContentSize(CachedResourceAdapter cache) {
+        if (cache == null) {
+            return 0;
+        }
+        ContentStore contentStore = fContext.getAdapter(ContentStore.class);
+        if (!contentStore.isEnabled()) {
+            return 0;
+        }
+        return contentStore.getReference(cache) != null ? CacheUtils.getLong(
+            cache,
+            CacheUtils.CONTENT_LENGTH,
+            0) : 0;
+    }
+
+    /**
+     * Returns the current time. This method could be overloaded in subclasses
+     * (for example for tests).
+     * 
+     * @return the current time in milliseconds
+     */
+    protected long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    public long getFilesPerSecond() {
+        return fLimiter.getRate();
+    }
+
+    /**
+     * Returns limits of all swept stores.
+     * 
+     * @return an unmodifiable map of store names and limits
+     */
+    public Map<String, StoreLimits> getLimits() {
+        return fLimits;
+    }
+
+    /**
+     * Returns the time of the last download or validation of the resource
+     * with the given cache adapter. If there is no cache adapter or if this
+     * time is unknown then the given modification time of resource files is
+     * returned.
+     */
+    private long getResourceTime(
+        CachedResourceAdapter cache,
+        long lastModified) {
+        if (cache == null) {
+            return lastModified;
+        }
+        long time = fContext
+            .getAdapter(DownloadAdapter.class)
+            .getCachePolicy()
+            .getValidationTime(cache);
+        return time >= 0 ? time : lastModified;
+    }
+
+    public long getRemovedBytes() {
+        return fRemovedBytes.get();
+    }
+
+    public long getRemovedResources() {
+        return fRemovedResources.get();
+    }
+
+    /**
+     * Returns the root directory of the repository. Stores are
+     * sub-directories of this directory.
+     * 
+     * @return the repository directory
+     */
+    public File getRootDirectory() {
+        return fRoot;
+    }
+
+    private boolean removeBlob(
+        ContentStore contentStore,
+        String digest,
+        List<File> files) {
+        try {
+            return contentStore.removeBlob(digest, files);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Can not remove the blob "
+                + digest
+                + ".", e);
+            return false;
+        }
+    }
+
+    /**
+     * Removes files of the resource directory. The directory itself is
+     * removed if it is empty and if it is not the store directory.
+     */
+    private long remove(File storeDir, File dir, List<File> files) {
+        long size = 0;
+        for (File file : files) {
+            long len = file.length();
+            if (file.delete()) {
+                size += len;
+            }
+        }
+        if (!dir.equals(storeDir)) {
+            dir.delete();
+        }
+        fRemovedResources.incrementAndGet();
+        fRemovedBytes.addAndGet(size);
+        return size;
+    }
+
+    public void setFilesPerSecond(long rate) {
+        fLimiter.setRate(rate);
+    }
+
+    /**
+     * Sets limits of the specified store. If the limits are <code>null</code>
+     * then the store is not swept.
+     * 
+     * @param storeName the name of the store
+     * @param limits the limits of the store
+     */
+    public synchronized void setLimits(String storeName, StoreLimits limits) {
+        Map<String, StoreLimits> map = new HashMap<String, StoreLimits>(
+            fLimits);
+        if (limits != null) {
+            map.put(storeName, limits);
+        } else {
+            map.remove(storeName);
+        }
+        fLimits = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Replaces limits of all stores.
+     * 
+     * @param limits store names with their limits
+     */
+    public synchronized void setLimits(Map<String, StoreLimits> limits) {
+        fLimits = Collections.unmodifiableMap(new HashMap<String, StoreLimits>(
+            limits));
+    }
+
+    public void setRootDirectory(File root) {
+        fRoot = root;
+    }
+
+    /**
+     * Starts a background thread sweeping stores with the specified interval.
+     * 
+     * @param interval the time (in milliseconds) between two sweeps
+     */
+    public synchronized void start(final long interval) {
+        if (fThread != null) {
+            return;
+        }
+        fThread = new Thread("resource-sweeper") {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    try {
+                        Thread.sleep(Math.max(1, interval));
+                        sweep();
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (InterruptedIOException e) {
+                        break;
+                    } catch (Throwable t) {
+                        log.log(Level.WARNING, "Can not sweep resources.", t);
+                    }
+                }
+            }
+        };
+        fThread.setDaemon(true);
+        fThread.setPriority(Thread.MIN_PRIORITY);
+        fThread.start();
+    }
+
+    /**
+     * Stops the background sweeping.
+     */
+    public synchronized void stop() {
+        if (fThread != null) {
+            fThread.interrupt();
+            fThread = null;
+        }
+    }
+
+    /**
+     * Sweeps all stores with defined limits and collects unused blobs of the
+     * content store.
+     * 
+     * @return the number of removed resources and blobs
+     * @throws InterruptedIOException if the current thread is interrupted
+     */
+    public long sweep() throws InterruptedIOException {
+        File root = fRoot;
+        if (root == null) {
+            return 0;
+        }
+        String blobStoreName = fContext != null ? fContext.getAdapter(
+            ContentStore.class).getStoreName() : null;
+        long count = 0;
+        for (Map.Entry<String, StoreLimits> entry : fLimits.entrySet()) {
+            if (entry.getKey().equals(blobStoreName)) {
+                continue;
+            }
+            File storeDir = new File(root, entry.getKey());
+            count += sweep(storeDir, entry.getValue());
+        }
+        if (fContext != null) {
+            count += collectContent(root);
+        }
+        if (count > 0 && fContext != null) {
+            // Cached handles could keep properties of removed resources
+            fContext.getResourceCache().clear();
+        }
+        return count;
+    }
+
+    /**
+     * Sweeps the specified store directory.
+     * 
+     * @param storeDir the directory of the store
+     * @param limits the limits of the store
+     * @return the number of removed resources
+     * @throws InterruptedIOException if the current thread is interrupted
+     */
+    protected long sweep(final File storeDir, final StoreLimits limits)
+        throws InterruptedIOException {
+        if (!storeDir.isDirectory()) {
+            return 0;
+        }
+        final long now = getCurrentTime();
+        final long[] count = { 0 };
+        final long[] total = { 0 };
+        final TreeMap<Long, Long> histogram = new TreeMap<Long, Long>();
+        walk(storeDir, new IResourceVisitor() {
+            @Override
+            public void visit(
+                File dir,
+                List<File> files,
+                long size,
+                long lastModified) throws InterruptedIOException {
+                CachedResourceAdapter cache = getCache(storeDir, dir);
+                long time = getResourceTime(cache, lastModified);
+                long maxAge = limits.getMaxAge();
+                if (maxAge > 0 && now - time > maxAge) {
+                    remove(storeDir, dir, files);
+                    count[0]++;
+                } else {
+                    size += getContentSize(cache);
+                    total[0] += size;
+                    Long bucket = time / BUCKET_SIZE;
+                    Long bytes = histogram.get(bucket);
+                    histogram.put(bucket, (bytes != null ? bytes : 0) + size);
+                }
+            }
+        });
+        long quota = limits.getQuota();
+        if (quota > 0 && total[0] > quota) {
+            long size = total[0];
+            long cutoff = Long.MIN_VALUE;
+            for (Map.Entry<Long, Long> entry : histogram.entrySet()) {
+                size -= entry.getValue();
+                cutoff = (entry.getKey() + 1) * BUCKET_SIZE;
+                if (size <= quota) {
+                    break;
+                }
+            }
+            final long time = cutoff;
+            walk(storeDir, new IResourceVisitor() {
+                @Override
+                public void visit(
+                    File dir,
+                    List<File> files,
+                    long size,
+                    long lastModified) throws InterruptedIOException {
+                    long resourceTime = getResourceTime(
+                        getCache(storeDir, dir),
+                        lastModified);
+                    if (resourceTime < time) {
+                        remove(storeDir, dir, files);
+                        count[0]++;
+                    }
+                }
+            });
+        }
+        if (count[0] > 0) {
+            log.info(count[0]
+                + " resources are removed from "
+                + storeDir
+                + ".");
+        }
+        return count[0];
+    }
+
+    /**
+     * Visits all resource directories starting from the given one.
+     */
+    private void walk(File dir, IResourceVisitor visitor)
+        throws InterruptedIOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        fLimiter.acquire(children.length + 1);
+        List<File> files = new ArrayList<File>();
+        List<File> dirs = new ArrayList<File>();
+        long size = 0;
+        long time = 0;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                dirs.add(child);
+            } else {
+                files.add(child);
+                size += child.length();
+                time = Math.max(time, child.lastModified());
+            }
+        }
+        if (!files.isEmpty()) {
+            visitor.visit(dir, files, size, time);
+        }
+        for (File child : dirs) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException();
+            }
+            walk(child, visitor);
+        }
+    }
+
+}
@@ -0,0 +1,853 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A store packing many small values in a few large append-only segment files.
+ * It avoids one file per value and keeps the number of files (and inodes)
+ * small even for millions of entries.
+ * <p>
+ * Each segment is a sequence of records. A record contains a header (the
+ * length of the key, the length of the value or -1 for removed keys and the
+ * CRC32 checksum of the key and the value), the UTF-8 encoded key and the
+ * value. New records are always appended to the last (active) segment; when
+ * this segment exceeds the maximal size a new segment is started and the
+ * previous one becomes read-only. There is no separate index file: the
+ * in-memory index of keys is rebuilt when the store is opened by scanning
+ * segments in order, so the last record of a key wins. Records of the active
+ * segment are verified by their checksums and an incomplete record at the end
+ * of this segment (after a crash) is discarded.
+ * </p>
+ * <p>
+ * Values of read-only segments are read from memory-mapped files without
+ * copying; values of the active segment are read with positional reads.
+ * Replaced and removed values are left in segments as garbage. Compaction
+ * (see {@link #compact()} and {@link #startCompaction(long)}) copies live
+ * records of read-only segments with too much garbage to the active segment
+ * and removes the old segment files.
+ * </p>
+ * <p>
+ * All methods of this class are thread-safe. Writes are serialized; reads
+ * are done without locks.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class SegmentStore {
+
+    /**
+     * An input stream reading a byte buffer.
+     */
+    private static class BufferInputStream extends InputStream {
+
+        private final ByteBuffer fBuffer;
+
+        public BufferInputStream(ByteBuffer buffer) {
+            fBuffer = buffer;
+        }
+
+        @Override
+        public int available() {
+            return fBuffer.remaining();
+        }
+
+        @Override
+        public int read() {
+            return fBuffer.hasRemaining() ? fBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fBuffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, fBuffer.remaining());
+            fBuffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int len = (int) Math.max(0, Math.min(n, fBuffer.remaining()));
+            fBuffer.position(fBuffer.position() + len);
+            return len;
+        }
+
+    }
+
+    /**
+     * The position of a value in a segment.
+     */
+    private static class Location {
+
+        private final int fLength;
+
+        private final long fOffset;
+
+        private final int fRecordSize;
+
+        private final Segment fSegment;
+
+        public Location(
+            Segment segment,
+            long offset,
+            int length,
+            int recordSize) {
+            fSegment = segment;
+            fOffset = offset;
+            fLength = length;
+            fRecordSize = recordSize;
+        }
+
+    }
+
+    /**
+     * A segment file.
+     */
+    private static class Segment {
+
+        private volatile MappedByteBuffer fBuffer;
+
+        private final FileChannel fChannel;
+
+        private final File fFile;
+
+        private final AtomicLong fGarbage = new AtomicLong();
+
+        private final int fId;
+
+        private volatile boolean fSealed;
+
+        private volatile long fSize;
+
+        public Segment(File file, int id) throws IOException {
+            fFile = file;
+            fId = id;
+            fChannel = new RandomAccessFile(file, "rw").getChannel();
+        }
+
+        public void close() throws IOException {
+            fChannel.close();
+        }
+
+        public double getGarbageRatio() {
+            long size = fSize;
+            return size > 0 ? (double) fGarbage.get() / size : 0;
+        }
+
+        /**
+         * Returns the memory-mapped content of this read-only segment.
+         */
+        public ByteBuffer map() throws IOException {
+            MappedByteBuffer buffer = fBuffer;
+            if (buffer == null) {
+                synchronized (this) {
+                    buffer = fBuffer;
+                    if (buffer == null) {
+                        buffer = fChannel.map(
+                            FileChannel.MapMode.READ_ONLY,
+                            0,
+                            fSize);
+                        fBuffer = buffer;
+                    }
+                }
+            }
+            return buffer.duplicate();
+        }
+
+        public ByteBuffer read(long offset, int length) throws IOException {
+            if (fSealed) {
+                ByteBuffer buffer = map();
+                buffer.position((int) offset);
+                buffer.limit((int) offset + length);
+                return buffer.slice().asReadOnlyBuffer();
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            readFully(fChannel, buffer, offset);
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        }
+
+        public void seal() throws IOException {
+            fChannel.truncate(fSize);
+            fChannel.force(false);
+            fSealed = true;
+        }
+
+        @Override
+        public String toString() {
+            return fFile.getName();
+        }
+
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The default minimal part of garbage in a segment starting its
+     * compaction.
+     */
+    public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+    /**
+     * The default maximal size of segment files.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The size of record headers: the length of the key, the length of the
+     * value and the checksum.
+     */
+    private static final int HEADER_SIZE = 12;
+
+    private final static Logger log = Logger.getLogger(SegmentStore.class
+        .getName());
+
+    /**
+     * The maximal size of a record. A segment could exceed its maximal size by
+     * one record, so the size of segments is always less than 2GB.
+     */
+    private static final long MAX_RECORD_SIZE = 512 * 1024 * 1024;
+
+    /**
+     * The maximal size of a segment. Segments are mapped in memory as a whole,
+     * so their size is limited.
+     */
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static int getSegmentId(File file) {
+        String name = file.getName();
+        name = name.substring(0, name.length() - SEGMENT_SUFFIX.length());
+        try {
+            return Integer.parseInt(name);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void readFully(
+        FileChannel channel,
+        ByteBuffer buffer,
+        long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int len = channel.read(buffer, position);
+            if (len < 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+            position += len;
+        }
+    }
+
+    private static void writeFully(
+        FileChannel channel,
+        ByteBuffer buffer,
+        long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private Segment fActive;
+
+    private final ByteBuffer fBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private boolean fClosed;
+
+    private Thread fCompactionThread;
+
+    private volatile double fCompactionRatio = DEFAULT_COMPACTION_RATIO;
+
+    private final File fDir;
+
+    private final ConcurrentMap<String, Location> fIndex = new ConcurrentHashMap<String, Location>();
+
+    private final long fSegmentSize;
+
+    private final List<Segment> fSegments = new ArrayList<Segment>();
+
+    public SegmentStore(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in the specified directory. Existing segments are
+     * scanned to rebuild the index of keys.
+     * 
+     * @param dir the directory containing segment files
+     * @param segmentSize the maximal size of segment files
+     * @throws IOException if segments can not be opened
+     */
+    public SegmentStore(File dir, long segmentSize) throws IOException {
+        fDir = dir;
+        fSegmentSize = Math.max(
+            HEADER_SIZE,
+            Math.min(MAX_SEGMENT_SIZE, segmentSize));
+        dir.mkdirs();
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        List<File> list = new ArrayList<File>();
+        if (files != null) {
+            for (File file : files) {
+                if (getSegmentId(file) >= 0) {
+                    list.add(file);
+                }
+            }
+        }
+        Collections.sort(list, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                int a = getSegmentId(o1);
+                int b = getSegmentId(o2);
+                return a < b ? -1 : a > b ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < list.size(); i++) {
+            File file = list.get(i);
+            Segment segment = new Segment(file, getSegmentId(file));
+            boolean last = i == list.size() - 1;
+            load(segment, last);
+            fSegments.add(segment);
+            if (last) {
+                fActive = segment;
+            } else {
+                segment.seal();
+            }
+        }
+        if (fActive == null) {
+            fActive = newSegment(0);
+        }
+    }
+
+    private void addGarbage(Location location) {
+        if (location != null) {
+            location.fSegment.fGarbage.addAndGet(location.fRecordSize);
+        }
+    }
+
+    /**
+     * Appends a new record to the active segment. If the value is
+     * <code>null</code> then a record for a removed key is written.
+     */
+    private Location append(byte[] key, ByteBuffer value) throws IOException {
+        int valueLength = value != null ? value.remaining() : -1;
+        int recordSize = HEADER_SIZE + key.length + Math.max(0, valueLength);
+        checkRecordSize(new String(key, UTF8), recordSize);
+        Segment segment = getActiveSegment(recordSize);
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        if (value != null) {
+            updateChecksum(crc, value.duplicate());
+        }
+        long start = segment.fSize;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + key.length);
+        header.putInt(key.length);
+        header.putInt(valueLength);
+        header.putInt((int) crc.getValue());
+        header.put(key);
+        header.flip();
+        writeFully(segment.fChannel, header, start);
+        long offset = start + HEADER_SIZE + key.length;
+        if (value != null) {
+            writeFully(segment.fChannel, value.duplicate(), offset);
+        }
+        segment.fSize = start + recordSize;
+        return new Location(segment, offset, valueLength, recordSize);
+    }
+
+    private void checkRecordSize(String key, long recordSize)
+        throws IOException {
+        if (recordSize > MAX_RECORD_SIZE) {
+            throw new IOException("The value of the key '"
+                + key
+                + "' is too big.");
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (fClosed) {
+            throw new IOException("The store is closed.");
+        }
+    }
+
+    /**
+     * Stops the compaction and closes all segment files.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        stopCompaction();
+        synchronized (this) {
+            if (fClosed) {
+                return;
+            }
+            fClosed = true;
+            fActive.fChannel.truncate(fActive.fSize);
+            fActive.fChannel.force(false);
+            for (Segment segment : fSegments) {
+                segment.close();
+            }
+        }
+    }
+
+    /**
+     * Compacts all read-only segments where the part of garbage is greater
+     * than the compaction ratio (see {@link #setCompactionRatio(double)}).
+     * 
+     * @return the number of compacted segments
+     * @throws IOException
+     */
+    public int compact() throws IOException {
+        int count = 0;
+        for (Segment segment : getSegments()) {
+            if (segment.fSealed
+                && segment.getGarbageRatio() >= fCompactionRatio) {
+                compact(segment);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies all live records of the specified read-only segment to the active
+     * segment and removes the segment. Records of removed keys are kept while
+     * older segments exist, otherwise old values of these keys could be
+     * restored when the store is re-opened.
+     */
+    private void compact(Segment segment) throws IOException {
+        ByteBuffer buffer = segment.map();
+        long size = segment.fSize;
+        long pos = 0;
+        while (pos < size) {
+            buffer.position((int) pos);
+            int keyLength = buffer.getInt();
+            int valueLength = buffer.getInt();
+            buffer.getInt();
+            byte[] k = new byte[keyLength];
+            buffer.get(k);
+            String key = new String(k, UTF8);
+            long offset = pos + HEADER_SIZE + keyLength;
+            pos = offset + Math.max(0, valueLength);
+            synchronized (this) {
+                checkOpen();
+                if (valueLength >= 0) {
+                    Location location = fIndex.get(key);
+                    if (location != null
+                        && location.fSegment == segment
+                        && location.fOffset == offset) {
+                        buffer.position((int) offset);
+                        buffer.limit((int) offset + valueLength);
+                        ByteBuffer value = buffer.slice();
+                        buffer.limit(buffer.capacity());
+                        fIndex.put(key, append(k, value));
+                    }
+                } else if (!fIndex.containsKey(key)
+                    && fSegments.get(0) != segment) {
+                    addGarbage(append(k, null));
+                }
+            }
+        }
+        synchronized (this) {
+            // Copied records should be on the disk before the old segment is
+            // deleted
+            fActive.fChannel.force(false);
+            fSegments.remove(segment);
+            segment.close();
+            if (!segment.fFile.delete()) {
+                log.warning("Can not delete the segment " + segment + ".");
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if this store contains a value for the
+     * specified key.
+     * 
+     * @param key the key to check
+     * @return <code>true</code> if the key exists
+     */
+    public boolean contains(String key) {
+        return fIndex.containsKey(key);
+    }
+
+    /**
+     * Writes all changes to the disk.
+     * 
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        fActive.fChannel.force(false);
+    }
+
+    /**
+     * Returns the value for the specified key or <code>null</code> if there
+     * is no such a key. Values of read-only segments are slices of
+     * memory-mapped files.
+     * 
+     * @param key the key of the value
+     * @return a read-only buffer with the value
+     * @throws IOException
+     */
+    public ByteBuffer get(String key) throws IOException {
+        Location location = fIndex.get(key);
+        if (location == null) {
+            return null;
+        }
+        return location.fSegment.read(location.fOffset, location.fLength);
+    }
+
+    /**
+     * Returns the active segment where a record of the specified size could
+     * be written. A new segment is started if the current one is full.
+     */
+    private Segment getActiveSegment(int recordSize) throws IOException {
+        checkOpen();
+        Segment segment = fActive;
+        if (segment.fSize > 0 && segment.fSize + recordSize > fSegmentSize) {
+            segment.seal();
+            segment = newSegment(segment.fId + 1);
+            fActive = segment;
+        }
+        return segment;
+    }
+
+    public double getCompactionRatio() {
+        return fCompactionRatio;
+    }
+
+    public File getDirectory() {
+        return fDir;
+    }
+
+    public int getEntryCount() {
+        return fIndex.size();
+    }
+
+    /**
+     * Returns the size of replaced and removed records in all segments.
+     * 
+     * @return the size of garbage in bytes
+     */
+    public long getGarbageSize() {
+        long size = 0;
+        for (Segment segment : getSegments()) {
+            size += segment.fGarbage.get();
+        }
+        return size;
+    }
+
+    /**
+     * Returns a stream reading the value for the specified key or
+     * <code>null</code> if there is no such a key.
+     * 
+     * @param key the key of the value
+     * @return a stream reading the value
+     * @throws IOException
+     */
+    public InputStream getInput(String key) throws IOException {
+        ByteBuffer buffer = get(key);
+        return buffer != null ? new BufferInputStream(buffer) : null;
+    }
+
+    /**
+     * Returns keys of all values of this store.
+     * 
+     * @return a new set of keys
+     */
+    public Set<String> getKeys() {
+        return new HashSet<String>(fIndex.keySet());
+    }
+
+    public int getSegmentCount() {
+        return getSegments().size();
+    }
+
+    private synchronized List<Segment> getSegments() {
+        return new ArrayList<Segment>(fSegments);
+    }
+
+    /**
+     * Returns the total size of all segments.
+     * 
+     * @return the size of the store in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : getSegments()) {
+            size += segment.fSize;
+        }
+        return size;
+    }
+
+    /**
+     * Reads all records of the segment and adds them to the index. Checksums
+     * are verified only for the last segment; it is truncated after the last
+     * valid record.
+     */
+    private void load(Segment segment, boolean verify) throws IOException {
+        FileChannel channel = segment.fChannel;
+        long size = channel.size();
+        long pos = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (pos + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, pos);
+            header.flip();
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            int checksum = header.getInt();
+            long recordSize = (long) HEADER_SIZE
+                + keyLength
+                + Math.max(0, valueLength);
+            if (keyLength < 0
+                || valueLength < -1
+                || recordSize > Integer.MAX_VALUE
+                || pos + recordSize > size) {
+                break;
+            }
+            ByteBuffer key = ByteBuffer.allocate(keyLength);
+            readFully(channel, key, pos + HEADER_SIZE);
+            key.flip();
+            long offset = pos + HEADER_SIZE + keyLength;
+            if (verify) {
+                CRC32 crc = new CRC32();
+                crc.update(key.array());
+                long end = offset + Math.max(0, valueLength);
+                for (long p = offset; p < end;) {
+                    fBuffer.clear();
+                    fBuffer.limit((int) Math.min(BUFFER_SIZE, end - p));
+                    readFully(channel, fBuffer, p);
+                    fBuffer.flip();
+                    p += fBuffer.remaining();
+                    updateChecksum(crc, fBuffer);
+                }
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+            }
+            String k = new String(key.array(), UTF8);
+            Location location = new Location(
+                segment,
+                offset,
+                valueLength,
+                (int) recordSize);
+            if (valueLength >= 0) {
+                addGarbage(fIndex.put(k, location));
+            } else {
+                addGarbage(fIndex.remove(k));
+                addGarbage(location);
+            }
+            pos += recordSize;
+        }
+        segment.fSize = pos;
+        if (pos < size) {
+            log.warning("Segment "
+                + segment
+                + " is truncated from "
+                + size
+                + " to "
+                + pos
+                + " bytes.");
+            channel.truncate(pos);
+        }
+    }
+
+    private Segment newSegment(int id) throws IOException {
+        File file = new File(fDir, String.format("%08d", id) + SEGMENT_SUFFIX);
+        Segment segment = new Segment(file, id);
+        segment.fChannel.truncate(0);
+        fSegments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Associates the specified value with the key.
+     * 
+     * @param key the key
+     * @param value the value to store
+     * @throws IOException
+     */
+    public synchronized void put(String key, ByteBuffer value)
+        throws IOException {
+        Location location = append(key.getBytes(UTF8), value);
+        addGarbage(fIndex.put(key, location));
+    }
+
+    /**
+     * Associates the content of the given stream with the key. The content is
+     * copied directly to the active segment; the stream is not closed by this
+     * method.
+     * 
+     * @param key the key
+     * @param input the stream with the value to store
+     * @return the number of stored bytes
+     * @throws IOException
+     */
+    public synchronized long put(String key, InputStream input)
+        throws IOException {
+        byte[] k = key.getBytes(UTF8);
+        Segment segment = getActiveSegment(HEADER_SIZE + k.length);
+        long start = segment.fSize;
+        long offset = start + HEADER_SIZE + k.length;
+        long pos = offset;
+        CRC32 crc = new CRC32();
+        crc.update(k);
+        ReadableByteChannel in = Channels.newChannel(input);
+        fBuffer.clear();
+        while (in.read(fBuffer) >= 0) {
+            fBuffer.flip();
+            int len = fBuffer.remaining();
+            checkRecordSize(key, pos + len - start);
+            updateChecksum(crc, fBuffer.duplicate());
+            writeFully(segment.fChannel, fBuffer, pos);
+            pos += len;
+            fBuffer.clear();
+        }
+        int valueLength = (int) (pos - offset);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + k.length);
+        header.putInt(k.length);
+        header.putInt(valueLength);
+        header.putInt((int) crc.getValue());
+        header.put(k);
+        header.flip();
+        writeFully(segment.fChannel, header, start);
+        segment.fSize = pos;
+        Location location = new Location(
+            segment,
+            offset,
+            valueLength,
+            (int) (pos - start));
+        addGarbage(fIndex.put(key, location));
+        return valueLength;
+    }
+
+    /**
+     * Removes the value for the specified key.
+     * 
+     * @param key the key to remove
+     * @return <code>true</code> if the key existed
+     * @throws IOException
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        checkOpen();
+        Location location = fIndex.get(key);
+        if (location == null) {
+            return false;
+        }
+        Location tombstone = append(key.getBytes(UTF8), null);
+        fIndex.remove(key);
+        addGarbage(location);
+        addGarbage(tombstone);
+        return true;
+    }
+
+    public void setCompactionRatio(double ratio) {
+        fCompactionRatio = ratio;
+    }
+
+    /**
+     * Starts a background thread periodically compacting segments.
+     * 
+     * @param interval the interval between two compactions (in milliseconds)
+     */
+    public synchronized void startCompaction(final long interval) {
+        if (fCompactionThread != null) {
+            return;
+        }
+        fCompactionThread = new Thread("segment-compactor") {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    try {
+                        Thread.sleep(Math.max(1, interval));
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, "Can not compact segments "
+                            + "in "
+                            + fDir
+                            + ".", e);
+                    }
+                }
+            }
+        };
+        fCompactionThread.setDaemon(true);
+        fCompactionThread.start();
+    }
+
+    /**
+     * Stops the compaction thread.
+     */
+    public void stopCompaction() {
+        Thread thread;
+        synchronized (this) {
+            thread = fCompactionThread;
+            fCompactionThread = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void updateChecksum(CRC32 crc, ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            crc.update(
+                buffer.array(),
+                buffer.arrayOffset() + buffer.position(),
+                buffer.remaining());
+        } else {
+            byte[] bytes = new byte[Math.min(BUFFER_SIZE, buffer.remaining())];
+            while (buffer.hasRemaining()) {
+                int len = Math.min(bytes.length, buffer.remaining());
+                buffer.get(bytes, 0, len);
+                crc.update(bytes, 0, len);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,263 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+
+import org.ubimix.commons.xml.XmlException;
+import org.ubimix.commons.xml.XmlWrapper;
+
+/**
+ * This cache keeps compiled XSL stylesheets ({@link Templates}) shared by all
+ * threads of an application context (each {@link DocAdapter} has its own
+ * cache). Stylesheets are identified by their URIs and by the digests of their
+ * content; a stylesheet is compiled again only when its content changes. Each
+ * version of a stylesheet is compiled only once even if it is requested by
+ * several threads at the same time; other threads wait for the compilation.
+ * <p>
+ * Compiled templates are thread-safe but transformers are not, so each entry
+ * gives a separate {@link Transformer} to each thread (see
+ * {@link Entry#getTransformer()}).
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class TemplatesCache {
+
+    /**
+     * A compiled stylesheet.
+     * 
+     * @author kotelnikov
+     */
+    public static class Entry {
+
+        private final String fDigest;
+
+        private final Templates fTemplates;
+
+        private final ThreadLocal<Transformer> fTransformer = new ThreadLocal<Transformer>();
+
+        private final String fUri;
+
+        public Entry(String uri, String digest, Templates templates) {
+            fUri = uri;
+            fDigest = digest;
+            fTemplates = templates;
+        }
+
+        public String getDigest() {
+            return fDigest;
+        }
+
+        public Templates getTemplates() {
+            return fTemplates;
+        }
+
+        /**
+         * Returns the transformer of the current thread. The transformer
+         * should not be shared with other threads; it is reset after each
+         * call of the {@link #release(Transformer)} method.
+         * 
+         * @return the transformer of the current thread
+         * @throws XmlException if a transformer can not be created
+         */
+        public Transformer getTransformer() throws XmlException {
+            Transformer transformer = fTransformer.get();
+            if (transformer == null) {
+                try {
+                    transformer = fTemplates.newTransformer();
+                } catch (TransformerConfigurationException e) {
+                    throw new XmlException("Can not create a transformer for "
+                        + fUri
+                        + ".", e);
+                }
+                fTransformer.set(transformer);
+            }
+            return transformer;
+        }
+
+        public String getUri() {
+            return fUri;
+        }
+
+        /**
+         * Resets the transformer returned by the {@link #getTransformer()}
+         * method, so it could be used again by the same thread.
+         * 
+         * @param transformer the transformer to release
+         */
+        public void release(Transformer transformer) {
+            transformer.reset();
+        }
+
+        @Override
+        public String toString() {
+            return "TemplatesCache.Entry[" + fUri + ", " + fDigest + "]";
+        }
+
+    }
+
+    /**
+     * The compilation of a version of a stylesheet.
+     * 
+     * @author kotelnikov
+     */
+    private static class EntryTask extends FutureTask<Entry> {
+
+        private final String fDigest;
+
+        public EntryTask(String digest, Callable<Entry> callable) {
+            super(callable);
+            fDigest = digest;
+        }
+
+        public String getDigest() {
+            return fDigest;
+        }
+
+    }
+
+    private final ConcurrentMap<String, EntryTask> fEntries = new ConcurrentHashMap<String, EntryTask>();
+
+    private final TransformerFactory fFactory = TransformerFactory
+        .newInstance();
+
+    public void clear() {
+        fEntries.clear();
+    }
+
+    /**
+     * Compiles the specified stylesheet. This method could be overloaded in
+     * subclasses (for example for tests).
+     * 
+     * @param uri the URI of the stylesheet
+     * @param xsl the stylesheet to compile
+     * @return the compiled stylesheet
+     * @throws XmlException if the stylesheet can not be compiled
+     */
+    protected Templates compile(String uri, XmlWrapper xsl)
+        throws XmlException {
+        try {
+            DOMSource source = new DOMSource(xsl.getDocument(), uri);
+            // Factories are not thread-safe
+            synchronized (fFactory) {
+                return fFactory.newTemplates(source);
+            }
+        } catch (TransformerConfigurationException e) {
+            throw new XmlException("Can not compile the stylesheet "
+                + uri
+                + ".", e);
+        }
+    }
+
+    /**
+     * Returns the last compiled version of the stylesheet with the specified
+     * URI or <code>null</code> if this stylesheet is not in the cache.
+     * 
+     * @param uri the URI of the stylesheet
+     * @return the compiled stylesheet
+     */
+    public Entry getEntry(String uri) {
+        EntryTask task = fEntries.get(uri);
+        if (task == null) {
+            return null;
+        }
+        try {
+            return getEntry(uri, task);
+        } catch (XmlException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the end of the compilation and returns its result. Failed
+     * compilations are removed from the cache.
+     */
+    private Entry getEntry(String uri, EntryTask task) throws XmlException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            fEntries.remove(uri, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof XmlException) {
+                throw (XmlException) cause;
+            }
+            throw new XmlException("Can not compile the stylesheet "
+                + uri
+                + ".", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XmlException("The compilation of the stylesheet "
+                + uri
+                + " was interrupted.", e);
+        }
+    }
+
+    /**
+     * Returns the compiled stylesheet with the specified URI and content
+     * digest. If the cache contains another version of this stylesheet then
+     * it is replaced by the given one. If this version is already compiled
+     * (or compiled by another thread) then the existing entry is returned.
+     * 
+     * @param uri the URI of the stylesheet
+     * @param digest the digest of the stylesheet content
+     * @param xsl the stylesheet; it is compiled only if there is no entry
+     *        with the same digest
+     * @return the compiled stylesheet
+     * @throws XmlException if the stylesheet can not be compiled; the failed
+     *         version is removed from the cache
+     */
+    public Entry getEntry(
+        final String uri,
+        final String digest,
+        final XmlWrapper xsl) throws XmlException {
+        while (true) {
+            EntryTask task = fEntries.get(uri);
+            if (task == null || !task.getDigest().equals(digest)) {
+                Callable<Entry> compilation = new Callable<Entry>() {
+                    @Override
+                    public Entry call() throws XmlException {
+                        Templates templates = compile(uri, xsl);
+                        return new Entry(uri, digest, templates);
+                    }
+                };
+                EntryTask newTask = new EntryTask(digest, compilation);
+                boolean added = task == null
+                    ? fEntries.putIfAbsent(uri, newTask) == null
+                    : fEntries.replace(uri, task, newTask);
+                if (!added) {
+                    // Another thread has changed the entry
+                    continue;
+                }
+                task = newTask;
+                task.run();
+            }
+            return getEntry(uri, task);
+        }
+    }
+
+    public int getSize() {
+        return fEntries.size();
+    }
+
+    /**
+     * Removes the stylesheet with the specified URI from the cache.
+     * 
+     * @param uri the URI of the stylesheet
+     */
+    public void remove(String uri) {
+        fEntries.remove(uri);
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.IOException;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.commons.xml.XmlException;
+import org.ubimix.commons.xml.XmlWrapper;
+import org.ubimix.commons.xml.atom.AtomFeed;
+import org.ubimix.scraper.transformer.XslBasedDocumentTransformer;
+
+/**
+ * This transformer applies an XSL stylesheet compiled in a
+ * {@link TemplatesCache}. The last compiled version of the stylesheet is used
+ * for each document, so new content of the stylesheet loaded in the cache is
+ * used without re-registration of this transformer.
+ * <p>
+ * This transformer could write its results directly to a stream (see
+ * {@link IStreamingDocumentTransformer}), so resulting feeds are not kept in
+ * memory. If the stylesheet is not available in the cache (for example if
+ * the cache was cleared) then the stylesheet given to the constructor is
+ * compiled in the cache again.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class TemplatesDocumentTransformer extends XslBasedDocumentTransformer
+    implements
+    IStreamingDocumentTransformer {
+
+    private final TemplatesCache fCache;
+
+    private final String fDigest;
+
+    private final XmlWrapper fXsl;
+
+    private final String fXslUri;
+
+    /**
+     * @param cache the cache of compiled stylesheets
+     * @param xslUri the URI of the stylesheet
+     * @param digest the digest of the given stylesheet
+     * @param xsl the stylesheet compiled if there is no version of this
+     *        stylesheet in the cache
+     */
+    public TemplatesDocumentTransformer(
+        TemplatesCache cache,
+        String xslUri,
+        String digest,
+        XmlWrapper xsl) {
+        super(xsl);
+        fCache = cache;
+        fXslUri = xslUri;
+        fDigest = digest;
+        fXsl = xsl;
+    }
+
+    public String getXslUri() {
+        return fXslUri;
+    }
+
+    @Override
+    public void transformDocument(Uri url, Source input, Result output)
+        throws XmlException,
+        IOException {
+        TemplatesCache.Entry entry = fCache.getEntry(fXslUri);
+        if (entry == null) {
+            entry = fCache.getEntry(fXslUri, fDigest, fXsl);
+        }
+        Transformer transformer = entry.getTransformer();
+        try {
+            transformer.transform(input, output);
+        } catch (TransformerException e) {
+            throw new XmlException("Can not transform the document "
+                + url
+                + " with "
+                + fXslUri
+                + ".", e);
+        } finally {
+            entry.release(transformer);
+        }
+    }
+
+    @Override
+    public AtomFeed transformDocument(Uri url, XmlWrapper doc)
+        throws XmlException,
+        IOException {
+        DOMResult result = new DOMResult();
+        transformDocument(url, new DOMSource(doc.getDocument()), result);
+        return doc.getXmlContext().wrap(result.getNode(), AtomFeed.class);
+    }
+
+}
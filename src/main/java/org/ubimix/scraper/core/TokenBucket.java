@@ -0,0 +1,146 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket limiting the rate of some operations (downloaded bytes,
+ * requests...). The bucket is filled with the configured number of tokens per
+ * second and it can contain at most one second of tokens (the "burst").
+ * Threads acquiring tokens wait until the bucket contains enough tokens.
+ * <p>
+ * The bucket does not use locks. Instead of the number of available tokens it
+ * keeps the time when all tokens already taken will be "paid" by the rate
+ * (the theoretical arrival time of the next token). Each thread moves this
+ * time forward with a compare-and-set operation and then sleeps (if required)
+ * without blocking other threads.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class TokenBucket {
+
+    /**
+     * The theoretical arrival time (in nanoseconds) of the next token.
+     */
+    private final AtomicLong fNextTime = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * The number of nanoseconds required to generate one token. The zero
+     * value means that the rate is not limited.
+     */
+    private volatile double fTokenTime;
+
+    /**
+     * Creates a new bucket without rate limits.
+     */
+    public TokenBucket() {
+        this(0);
+    }
+
+    /**
+     * Creates a new bucket with the given rate.
+     * 
+     * @param rate the maximal number of tokens per second; if this value is
+     *        less or equal to zero then the rate is not limited
+     */
+    public TokenBucket(long rate) {
+        setRate(rate);
+    }
+
+    /**
+     * Takes the specified number of tokens from this bucket. If the bucket
+     * does not contain enough tokens then the current thread waits until
+     * these tokens are available.
+     * 
+     * @param tokens the number of tokens to take
+     * @throws InterruptedIOException if the current thread was interrupted
+     */
+    public void acquire(long tokens) throws InterruptedIOException {
+        long wait = reserve(tokens);
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                InterruptedIOException error = new InterruptedIOException();
+                error.initCause(e);
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Returns the current time in nanoseconds. This method could be overloaded
+     * in subclasses (for example for tests).
+     * 
+     * @return the current time in nanoseconds
+     */
+    protected long getCurrentTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Returns the maximal number of tokens per second.
+     * 
+     * @return the maximal number of tokens per second or zero if the rate is
+     *         not limited
+     */
+    public long getRate() {
+        double time = fTokenTime;
+        return time > 0 ? Math.round(TimeUnit.SECONDS.toNanos(1) / time) : 0;
+    }
+
+    /**
+     * Returns <code>true</code> if this bucket limits the rate of operations.
+     * 
+     * @return <code>true</code> if the rate is limited
+     */
+    public boolean isLimited() {
+        return fTokenTime > 0;
+    }
+
+    /**
+     * Reserves the specified number of tokens and returns the time (in
+     * nanoseconds) the caller should wait before using them. This method does
+     * not block.
+     * 
+     * @param tokens the number of tokens to reserve
+     * @return the time to wait in nanoseconds; zero or a negative value if the
+     *         tokens could be used immediately
+     */
+    public long reserve(long tokens) {
+        double tokenTime = fTokenTime;
+        if (tokenTime <= 0 || tokens <= 0) {
+            return 0;
+        }
+        long burst = TimeUnit.SECONDS.toNanos(1);
+        long cost = (long) (tokens * tokenTime);
+        while (true) {
+            long now = getCurrentTime();
+            long next = fNextTime.get();
+            long start = next == Long.MIN_VALUE || next - now < 0 ? now : next;
+            long newNext = start + cost;
+            if (fNextTime.compareAndSet(next, newNext)) {
+                return newNext - burst - now;
+            }
+        }
+    }
+
+    /**
+     * Sets a new rate for this bucket.
+     * 
+     * @param rate the maximal number of tokens per second; if this value is
+     *        less or equal to zero then the rate is not limited
+     */
+    public void setRate(long rate) {
+        fTokenTime = rate > 0
+            ? (double) TimeUnit.SECONDS.toNanos(1) / rate
+            : 0;
+    }
+
+}
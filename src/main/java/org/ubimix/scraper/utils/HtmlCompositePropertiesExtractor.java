@@ -0,0 +1,149 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ubimix.commons.xml.XHTMLUtils;
+import org.ubimix.commons.xml.XmlException;
+import org.ubimix.commons.xml.XmlTagExtractor.HtmlBlockElementsAcceptor;
+import org.ubimix.commons.xml.XmlTagExtractor.HtmlNamedNodeAcceptor;
+import org.ubimix.commons.xml.XmlTagExtractor.IElementAcceptor;
+import org.ubimix.commons.xml.XmlTagExtractor.SimpleElementAcceptor;
+import org.ubimix.commons.xml.XmlWrapper;
+
+/**
+ * This extractor combines several extractors (for example lists and tables)
+ * and finds property elements of all of them in one walk over the document.
+ * Found elements are dispatched by their names to extractors registered for
+ * these names; if several extractors are registered for the same name then
+ * they are called in the registration order until one of them recognizes the
+ * element.
+ * 
+ * <pre>
+ * HtmlCompositePropertiesExtractor extractor = new HtmlCompositePropertiesExtractor();
+ * extractor.addExtractor(new HtmlListPropertiesExtractor());
+ * extractor.addExtractor(new HtmlTablePropertiesExtractor());
+ * extractor.extractProperties(xml, listener);
+ * </pre>
+ * 
+ * @author kotelnikov
+ */
+public class HtmlCompositePropertiesExtractor extends HtmlPropertiesExtractor {
+
+    /**
+     * Extractors by names of their property elements.
+     */
+    private Map<String, List<HtmlPropertiesExtractor>> fExtractors = new LinkedHashMap<String, List<HtmlPropertiesExtractor>>();
+
+    public HtmlCompositePropertiesExtractor() {
+    }
+
+    public HtmlCompositePropertiesExtractor(
+        HtmlPropertiesExtractor... extractors) {
+        for (HtmlPropertiesExtractor extractor : extractors) {
+            addExtractor(extractor);
+        }
+    }
+
+    /**
+     * Registers the specified extractor for all names returned by its
+     * {@link HtmlPropertiesExtractor#getPropertyElementNames()} method.
+     * 
+     * @param extractor the extractor to add
+     * @return this object
+     */
+    public HtmlCompositePropertiesExtractor addExtractor(
+        HtmlPropertiesExtractor extractor) {
+        return addExtractor(extractor, extractor.getPropertyElementNames());
+    }
+
+    /**
+     * Registers the specified extractor for the given element names.
+     * 
+     * @param extractor the extractor to add
+     * @param names names of HTML elements handled by the extractor
+     * @return this object
+     */
+    public HtmlCompositePropertiesExtractor addExtractor(
+        HtmlPropertiesExtractor extractor,
+        String... names) {
+        for (String name : names) {
+            List<HtmlPropertiesExtractor> list = fExtractors.get(name);
+            if (list == null) {
+                list = new ArrayList<HtmlPropertiesExtractor>();
+                fExtractors.put(name, list);
+            }
+            list.add(extractor);
+        }
+        return this;
+    }
+
+    @Override
+    protected boolean extractNodeProperties(
+        XmlWrapper xml,
+        IPropertyListener listener) throws XmlException {
+        String name = XHTMLUtils.getHTMLName(xml.getRootElement());
+        List<HtmlPropertiesExtractor> list = fExtractors.get(name);
+        if (list == null) {
+            return false;
+        }
+        for (HtmlPropertiesExtractor extractor : list) {
+            if (extractor.extractNodeProperties(xml, listener)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns extractors registered for the specified element name.
+     * 
+     * @param name the name of the element
+     * @return an unmodifiable list of extractors
+     */
+    public List<HtmlPropertiesExtractor> getExtractors(String name) {
+        List<HtmlPropertiesExtractor> list = fExtractors.get(name);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    @Override
+    protected String[] getPropertyElementNames() {
+        Set<String> names = fExtractors.keySet();
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    protected IElementAcceptor newEndElementAcceptor(
+        XmlWrapper xml,
+        XmlWrapper start,
+        XmlWrapper stop) {
+        IElementAcceptor result;
+        if (stop != null) {
+            result = new SimpleElementAcceptor(stop.getRootElement());
+        } else {
+            HtmlBlockElementsAcceptor e = new HtmlBlockElementsAcceptor();
+            e.removeNames(getPropertyElementNames());
+            result = e;
+        }
+        return result;
+    }
+
+    @Override
+    protected IElementAcceptor newPropertyElementAcceptor(
+        XmlWrapper xml,
+        XmlWrapper start,
+        XmlWrapper stop) {
+        return new HtmlNamedNodeAcceptor(getPropertyElementNames());
+    }
+
+}
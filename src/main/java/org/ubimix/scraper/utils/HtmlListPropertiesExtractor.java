@@ -60,6 +60,7 @@ public class HtmlListPropertiesExtractor extends HtmlPropertiesExtractor {
         return result;
     }
 
+    @Override
     protected String[] getPropertyElementNames() {
         return toArray("ul");
     }
@@ -522,6 +522,18 @@ public abstract class HtmlPropertiesExtractor {
         }
     }
 
+    /**
+     * Returns names of HTML elements containing properties recognized by this
+     * extractor. This method is used by the
+     * {@link HtmlCompositePropertiesExtractor} to dispatch found elements to
+     * extractors. By default it returns an empty array.
+     * 
+     * @return names of property elements
+     */
+    protected String[] getPropertyElementNames() {
+        return new String[0];
+    }
+
     /**
      * Returns a node acceptor used to detect the begin of the document segment
      * where property elements could be found
@@ -3,24 +3,78 @@
  */
 package org.ubimix.scraper.utils;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.ubimix.commons.xml.XHTMLUtils;
 import org.ubimix.commons.xml.XmlException;
 import org.ubimix.commons.xml.XmlTagExtractor.HtmlBlockElementsAcceptor;
 import org.ubimix.commons.xml.XmlTagExtractor.HtmlNamedNodeAcceptor;
 import org.ubimix.commons.xml.XmlTagExtractor.IElementAcceptor;
 import org.ubimix.commons.xml.XmlTagExtractor.SimpleElementAcceptor;
 import org.ubimix.commons.xml.XmlWrapper;
+import org.ubimix.commons.xml.XmlWrapper.XmlContext;
 
 /**
  * @author kotelnikov
  */
 public class HtmlTablePropertiesExtractor extends HtmlPropertiesExtractor {
 
+    /**
+     * Names of table sections containing rows.
+     */
+    private static final Set<String> TABLE_SECTIONS = new HashSet<String>(
+        Arrays.asList("thead", "tbody", "tfoot"));
+
+    /**
+     * Adds all rows of the specified table element (or of the table section)
+     * to the given list. Rows of nested tables are not added.
+     */
+    private static void addRows(Element element, List<Element> rows) {
+        Node child = element.getFirstChild();
+        while (child != null) {
+            if (child instanceof Element) {
+                Element e = (Element) child;
+                String name = XHTMLUtils.getHTMLName(e);
+                if ("tr".equals(name)) {
+                    rows.add(e);
+                } else if (TABLE_SECTIONS.contains(name)) {
+                    addRows(e, rows);
+                }
+            }
+            child = child.getNextSibling();
+        }
+    }
+
+    /**
+     * Returns the cell of the row with the specified name and position.
+     * 
+     * @param row the row element
+     * @param name the name of the cell ("td" or "th")
+     * @param pos the position of the cell among cells with the same name
+     * @return the cell element or <code>null</code> if there is no such cell
+     */
+    private static Element getCell(Element row, String name, int pos) {
+        Node child = row.getFirstChild();
+        while (child != null) {
+            if (child instanceof Element
+                && name.equals(XHTMLUtils.getHTMLName((Element) child))) {
+                if (pos == 0) {
+                    return (Element) child;
+                }
+                pos--;
+            }
+            child = child.getNextSibling();
+        }
+        return null;
+    }
+
     /**
      * This set contains names of the column with properties.
      */
@@ -39,14 +93,55 @@ public class HtmlTablePropertiesExtractor extends HtmlPropertiesExtractor {
 
     protected boolean checkTableHeader(XmlWrapper headerRow)
         throws XmlException {
-        String propertyHeader = getCellContent(headerRow, "./html:th[1]");
-        String valueHeader = getCellContent(headerRow, "./html:th[2]");
+        Element row = headerRow.getRootElement();
+        XmlContext context = headerRow.getXmlContext();
+        String propertyHeader = getCellContent(context, getCell(row, "th", 0));
+        String valueHeader = getCellContent(context, getCell(row, "th", 1));
         return fPropertyNameHeaders.contains(propertyHeader.toLowerCase())
             && fPropertyValueHeaders.contains(valueHeader.toLowerCase());
     }
 
+    /**
+     * Extracts properties from rows of the table. Rows and cells are found by
+     * a direct walk over children of the table and of its sections ("thead",
+     * "tbody" and "tfoot"). If the table does not contain such rows then they
+     * are searched with XPath in all descendants of the table.
+     */
     @Override
     protected boolean extractNodeProperties(
+        XmlWrapper xml,
+        IPropertyListener listener) throws XmlException {
+        List<Element> rows = new ArrayList<Element>();
+        addRows(xml.getRootElement(), rows);
+        if (rows.isEmpty()) {
+            return extractNodePropertiesWithXPath(xml, listener);
+        }
+        XmlContext context = xml.getXmlContext();
+        if (!checkTableHeader(context.wrap(rows.get(0)))) {
+            return false;
+        }
+        for (int i = 1; i < rows.size(); i++) {
+            Element row = rows.get(i);
+            String propertyName = getCellContent(
+                context,
+                getCell(row, "td", 0));
+            Element valueCell = getCell(row, "td", 1);
+            XmlWrapper propertyNode = valueCell != null ? context
+                .wrap(valueCell) : null;
+            listener.onPropertyNode(propertyName, propertyNode);
+        }
+        return true;
+    }
+
+    /**
+     * Extracts properties from rows found with XPath expressions.
+     * 
+     * @param xml the table element
+     * @param listener the listener notified about found properties
+     * @return <code>true</code> if properties were extracted
+     * @throws XmlException
+     */
+    protected boolean extractNodePropertiesWithXPath(
         XmlWrapper xml,
         IPropertyListener listener) throws XmlException {
         List<XmlWrapper> rows = xml.evalList(".//html:tr");
@@ -65,6 +160,10 @@ public class HtmlTablePropertiesExtractor extends HtmlPropertiesExtractor {
         return true;
     }
 
+    private String getCellContent(XmlContext context, Element cell) {
+        return cell != null ? getCellContent(context.wrap(cell)) : "";
+    }
+
     private String getCellContent(XmlWrapper cell) {
         if (cell == null) {
             return "";
@@ -80,6 +179,11 @@ public class HtmlTablePropertiesExtractor extends HtmlPropertiesExtractor {
         return getCellContent(cell);
     }
 
+    @Override
+    protected String[] getPropertyElementNames() {
+        return new String[] { "table" };
+    }
+
     @Override
     protected IElementAcceptor newEndElementAcceptor(
         XmlWrapper xml,
@@ -90,7 +194,7 @@ public class HtmlTablePropertiesExtractor extends HtmlPropertiesExtractor {
             result = new SimpleElementAcceptor(stop.getRootElement());
         } else {
             HtmlBlockElementsAcceptor e = new HtmlBlockElementsAcceptor();
-            e.removeNames("table");
+            e.removeNames(getPropertyElementNames());
             result = e;
         }
         return result;
@@ -101,7 +205,7 @@ public class HtmlTablePropertiesExtractor extends HtmlPropertiesExtractor {
         XmlWrapper xml,
         XmlWrapper start,
         XmlWrapper stop) {
-        return new HtmlNamedNodeAcceptor("table");
+        return new HtmlNamedNodeAcceptor(getPropertyElementNames());
     }
 
     /**
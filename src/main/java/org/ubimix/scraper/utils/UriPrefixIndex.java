@@ -0,0 +1,530 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.ubimix.commons.uri.Uri;
+
+/**
+ * An immutable index associating values with URL prefixes. Prefixes are
+ * split in a trie by the scheme, by host labels in the reversed order
+ * ("www.foo.com" gives "com", "foo", "www"), by the port and by path
+ * segments. The {@link #get(String)} method returns the value of the longest
+ * prefix matching the given URL; it does not allocate new objects and its
+ * cost depends only on the number of segments of the URL, not on the number
+ * of indexed prefixes.
+ * <p>
+ * Supported prefixes:
+ * </p>
+ * <ul>
+ * <li>"http://www.foo.com/docs" - all URLs of the "www.foo.com" host with
+ * paths starting with the "docs" segment and without port or with the
+ * default port of their scheme (80 for "http", 443 for "https", 21 for
+ * "ftp").</li>
+ * <li>"http://www.foo.com:8080/" - all URLs of the host with the given
+ * port.</li>
+ * <li>"http://www.foo.com:*&#47;" - all URLs of the host with any
+ * port.</li>
+ * <li>"http://*.foo.com/" - all URLs of sub-domains of the "foo.com" host
+ * (but not of the "foo.com" host itself).</li>
+ * <li>"www.foo.com/docs" - the same as above but for all schemes.</li>
+ * </ul>
+ * <p>
+ * Scheme and host names are compared without case. Instances of this class
+ * are created with the {@link Builder}; new versions of an index should be
+ * built and published as a whole, so readers never see partially updated
+ * data.
+ * </p>
+ * 
+ * @author kotelnikov
+ * @param <T> the type of indexed values
+ */
+public class UriPrefixIndex<T> {
+
+    /**
+     * Builders are used to create new indexes.
+     * 
+     * @author kotelnikov
+     * @param <T> the type of indexed values
+     */
+    public static class Builder<T> {
+
+        private Map<String, T> fEntries = new LinkedHashMap<String, T>();
+
+        public Builder() {
+        }
+
+        public Builder(UriPrefixIndex<T> index) {
+            if (index != null) {
+                fEntries.putAll(index.fEntries);
+            }
+        }
+
+        /**
+         * Creates a new immutable index containing all entries of this
+         * builder.
+         * 
+         * @return a new index
+         */
+        public UriPrefixIndex<T> build() {
+            MutableNode<T> root = new MutableNode<T>();
+            for (Map.Entry<String, T> entry : fEntries.entrySet()) {
+                MutableNode<T> node = root;
+                for (String token : getTokens(entry.getKey())) {
+                    node = node.getChild(token);
+                }
+                node.fValue = entry.getValue();
+            }
+            return new UriPrefixIndex<T>(root.freeze(), fEntries);
+        }
+
+        /**
+         * Associates a value with the specified URL prefix. Values of
+         * existing prefixes are replaced.
+         * 
+         * @param prefix the URL prefix
+         * @param value the value to associate with the prefix
+         * @return this builder
+         */
+        public Builder<T> put(String prefix, T value) {
+            if (value == null) {
+                throw new IllegalArgumentException("Value can not be null");
+            }
+            fEntries.put(prefix, value);
+            return this;
+        }
+
+        public Builder<T> put(Uri prefix, T value) {
+            return put(prefix.toString(), value);
+        }
+
+        /**
+         * Removes the value associated with the specified URL prefix.
+         * 
+         * @param prefix the prefix to remove
+         * @return this builder
+         */
+        public Builder<T> remove(String prefix) {
+            fEntries.remove(prefix);
+            return this;
+        }
+
+    }
+
+    /**
+     * Nodes used by builders.
+     */
+    private static class MutableNode<T> {
+
+        private Map<String, MutableNode<T>> fChildren = new TreeMap<String, MutableNode<T>>();
+
+        private T fValue;
+
+        public Node<T> freeze() {
+            List<String> keys = new ArrayList<String>();
+            List<Node<T>> children = new ArrayList<Node<T>>();
+            Node<T> hostEnd = null;
+            Node<T> wildcard = null;
+            for (Map.Entry<String, MutableNode<T>> entry : fChildren
+                .entrySet()) {
+                String key = entry.getKey();
+                Node<T> child = entry.getValue().freeze();
+                if (HOST_END.equals(key)) {
+                    hostEnd = child;
+                } else if (WILDCARD.equals(key)) {
+                    wildcard = child;
+                } else {
+                    keys.add(key);
+                    children.add(child);
+                }
+            }
+            @SuppressWarnings({ "unchecked", "rawtypes" })
+            Node<T>[] array = children.toArray(new Node[children.size()]);
+            return new Node<T>(
+                keys.toArray(new String[keys.size()]),
+                array,
+                wildcard,
+                hostEnd,
+                fValue);
+        }
+
+        public MutableNode<T> getChild(String token) {
+            MutableNode<T> child = fChildren.get(token);
+            if (child == null) {
+                child = new MutableNode<T>();
+                fChildren.put(token, child);
+            }
+            return child;
+        }
+
+    }
+
+    /**
+     * Immutable trie nodes. Keys of children are sorted, so they are found
+     * with a binary search.
+     */
+    private static class Node<T> {
+
+        private final Node<T>[] fChildren;
+
+        /**
+         * The node after the last host label (or after the port).
+         */
+        private final Node<T> fHostEnd;
+
+        private final String[] fKeys;
+
+        private final T fValue;
+
+        /**
+         * The node matching any number of host labels.
+         */
+        private final Node<T> fWildcard;
+
+        public Node(
+            String[] keys,
+            Node<T>[] children,
+            Node<T> wildcard,
+            Node<T> hostEnd,
+            T value) {
+            fKeys = keys;
+            fChildren = children;
+            fWildcard = wildcard;
+            fHostEnd = hostEnd;
+            fValue = value;
+        }
+
+        public Node<T> getChild(
+            String str,
+            int start,
+            int end,
+            boolean ignoreCase) {
+            int low = 0;
+            int high = fKeys.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(fKeys[mid], str, start, end, ignoreCase);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return fChildren[mid];
+                }
+            }
+            return null;
+        }
+
+    }
+
+    /**
+     * Default ports of schemes. URLs with these ports match prefixes without
+     * ports.
+     */
+    private static final String[][] DEFAULT_PORTS = {
+        { "http", ":80" },
+        { "https", ":443" },
+        { "ftp", ":21" } };
+
+    /**
+     * The token used for the end of the host name.
+     */
+    private static final String HOST_END = "/";
+
+    /**
+     * The token used for ports matching all values.
+     */
+    private static final String PORT_WILDCARD = ":*";
+
+    /**
+     * The token used for schemes and host labels matching all values.
+     */
+    private static final String WILDCARD = "*";
+
+    /**
+     * Compares the key with a region of the given string.
+     */
+    private static int compare(
+        String key,
+        String str,
+        int start,
+        int end,
+        boolean ignoreCase) {
+        int keyLen = key.length();
+        int len = end - start;
+        int n = Math.min(keyLen, len);
+        for (int i = 0; i < n; i++) {
+            char a = key.charAt(i);
+            char b = str.charAt(start + i);
+            if (ignoreCase) {
+                b = Character.toLowerCase(b);
+            }
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return keyLen - len;
+    }
+
+    /**
+     * Returns the default port of the specified scheme (with the leading ':'
+     * character) or <code>null</code> if the default port of the scheme is
+     * unknown.
+     */
+    private static String getDefaultPort(String str, int schemeEnd) {
+        for (String[] entry : DEFAULT_PORTS) {
+            String scheme = entry[0];
+            if (scheme.length() == schemeEnd
+                && str.regionMatches(true, 0, scheme, 0, schemeEnd)) {
+                return entry[1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the position of the port separator in the authority or -1.
+     */
+    private static int getPortIndex(String str, int hostStart, int authEnd) {
+        int start = hostStart;
+        if (start < authEnd && str.charAt(start) == '[') {
+            // IPv6 address
+            int idx = str.indexOf(']', start);
+            start = idx >= 0 && idx < authEnd ? idx : authEnd;
+        }
+        for (int i = authEnd - 1; i >= start; i--) {
+            if (str.charAt(i) == ':') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Splits the specified prefix in trie tokens.
+     */
+    private static List<String> getTokens(String prefix) {
+        List<String> tokens = new ArrayList<String>();
+        int len = prefix.length();
+        int schemeEnd = prefix.indexOf("://");
+        int authStart;
+        if (schemeEnd >= 0) {
+            tokens.add(prefix.substring(0, schemeEnd).toLowerCase());
+            authStart = schemeEnd + 3;
+        } else {
+            tokens.add(WILDCARD);
+            authStart = 0;
+        }
+        int authEnd = indexOf(prefix, authStart, len, "/?#");
+        int hostStart = prefix.lastIndexOf('@', authEnd - 1) + 1;
+        hostStart = Math.max(hostStart, authStart);
+        int portIdx = getPortIndex(prefix, hostStart, authEnd);
+        int hostEnd = portIdx >= 0 ? portIdx : authEnd;
+        String host = prefix.substring(hostStart, hostEnd).toLowerCase();
+        String[] labels = host.split("\\.");
+        for (int i = labels.length - 1; i >= 0; i--) {
+            if (labels[i].length() > 0) {
+                tokens.add(labels[i]);
+            }
+        }
+        if (portIdx >= 0) {
+            // The default port of the scheme is the same as no port
+            String port = prefix.substring(portIdx, authEnd);
+            String defaultPort = schemeEnd >= 0 ? getDefaultPort(
+                prefix,
+                schemeEnd) : null;
+            if (port.length() > 1 && !port.equals(defaultPort)) {
+                tokens.add(port);
+            }
+        }
+        tokens.add(HOST_END);
+        int pathEnd = indexOf(prefix, authEnd, len, "?#");
+        for (String segment : prefix.substring(authEnd, pathEnd).split("/")) {
+            if (segment.length() > 0) {
+                tokens.add(segment);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Returns the position of the first character of the given set in the
+     * specified region of the string or the end of the region.
+     */
+    private static int indexOf(String str, int start, int end, String chars) {
+        for (int i = start; i < end; i++) {
+            if (chars.indexOf(str.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private final Map<String, T> fEntries;
+
+    private final Node<T> fRoot;
+
+    private UriPrefixIndex(Node<T> root, Map<String, T> entries) {
+        fRoot = root;
+        fEntries = Collections.unmodifiableMap(new LinkedHashMap<String, T>(
+            entries));
+    }
+
+    /**
+     * Returns the value associated with the longest prefix of the given URL
+     * or <code>null</code> if there is no such prefix.
+     * 
+     * @param url the URL to check
+     * @return the value of the longest prefix of the URL
+     */
+    public T get(String url) {
+        if (url == null) {
+            return null;
+        }
+        int len = url.length();
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd < 0) {
+            return null;
+        }
+        int authStart = schemeEnd + 3;
+        int authEnd = indexOf(url, authStart, len, "/?#");
+        T result = null;
+        Node<T> node = fRoot.getChild(url, 0, schemeEnd, true);
+        if (node != null) {
+            result = getHostValue(node, url, schemeEnd, authEnd);
+        }
+        if (result == null && fRoot.fWildcard != null) {
+            result = getHostValue(fRoot.fWildcard, url, schemeEnd, authEnd);
+        }
+        return result;
+    }
+
+    public T get(Uri url) {
+        return url != null ? get(url.toString()) : null;
+    }
+
+    /**
+     * Returns all entries of this index.
+     * 
+     * @return an unmodifiable map of prefixes and values
+     */
+    public Map<String, T> getEntries() {
+        return fEntries;
+    }
+
+    private T getHostValue(
+        Node<T> node,
+        String url,
+        int schemeEnd,
+        int authEnd) {
+        int authStart = schemeEnd + 3;
+        int hostStart = url.lastIndexOf('@', authEnd - 1) + 1;
+        hostStart = Math.max(hostStart, authStart);
+        int portIdx = getPortIndex(url, hostStart, authEnd);
+        int end = portIdx >= 0 ? portIdx : authEnd;
+        Node<T> wildcard = null;
+        Node<T> current = node;
+        while (current != null && end > hostStart) {
+            if (current.fWildcard != null) {
+                wildcard = current.fWildcard;
+            }
+            int labelStart = url.lastIndexOf('.', end - 1) + 1;
+            labelStart = Math.max(labelStart, hostStart);
+            current = current.getChild(url, labelStart, end, true);
+            end = labelStart - 1;
+        }
+        T result = null;
+        if (current != null) {
+            result = getPortValue(current, url, schemeEnd, portIdx, authEnd);
+        }
+        if (result == null && wildcard != null) {
+            result = getPortValue(wildcard, url, schemeEnd, portIdx, authEnd);
+        }
+        return result;
+    }
+
+    private T getPathValue(Node<T> node, String url, int authEnd) {
+        Node<T> current = node != null ? node.fHostEnd : null;
+        if (current == null) {
+            return null;
+        }
+        T result = current.fValue;
+        int len = url.length();
+        int pathEnd = indexOf(url, authEnd, len, "?#");
+        int start = authEnd;
+        while (start < pathEnd) {
+            if (url.charAt(start) == '/') {
+                start++;
+                continue;
+            }
+            int end = indexOf(url, start, pathEnd, "/");
+            current = current.getChild(url, start, end, false);
+            if (current == null) {
+                break;
+            }
+            if (current.fValue != null) {
+                result = current.fValue;
+            }
+            start = end;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the value for the port and the path of the URL. URLs with an
+     * explicit port match prefixes with the same port. URLs without port or
+     * with the default port of their scheme match prefixes without port.
+     * Prefixes with the wildcard port match all ports.
+     */
+    private T getPortValue(
+        Node<T> node,
+        String url,
+        int schemeEnd,
+        int portIdx,
+        int authEnd) {
+        boolean defaultPort = portIdx < 0 || portIdx + 1 == authEnd;
+        if (!defaultPort) {
+            String port = getDefaultPort(url, schemeEnd);
+            defaultPort = port != null
+                && compare(port, url, portIdx, authEnd, false) == 0;
+        }
+        T result = null;
+        if (defaultPort) {
+            result = getPathValue(node, url, authEnd);
+        } else {
+            Node<T> port = node.getChild(url, portIdx, authEnd, false);
+            result = getPathValue(port, url, authEnd);
+        }
+        if (result == null) {
+            Node<T> port = node.getChild(
+                PORT_WILDCARD,
+                0,
+                PORT_WILDCARD.length(),
+                false);
+            result = getPathValue(port, url, authEnd);
+        }
+        return result;
+    }
+
+    /**
+     * Returns <code>true</code> if this index does not contain any prefixes.
+     * 
+     * @return <code>true</code> if this index is empty
+     */
+    public boolean isEmpty() {
+        return fEntries.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return fEntries.keySet().toString();
+    }
+
+}
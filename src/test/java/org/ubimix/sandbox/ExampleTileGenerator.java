@@ -22,10 +22,11 @@ import org.ubimix.commons.uri.Path;
 import org.ubimix.commons.uri.Uri;
 import org.ubimix.commons.xml.XmlException;
 import org.ubimix.resources.IWrfResource;
-import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
 import org.ubimix.resources.adapters.cache.DateUtil;
 import org.ubimix.resources.adapters.zip.ZipAdapter;
 import org.ubimix.scraper.core.AppContext;
+import org.ubimix.scraper.core.CachePolicy;
+import org.ubimix.scraper.core.CachePolicy.CacheRule;
 import org.ubimix.scraper.core.MapAdapter.MapTilesLoaderListener;
 
 /**
@@ -34,8 +35,6 @@ import org.ubimix.scraper.core.MapAdapter.MapTilesLoaderListener;
 public class ExampleTileGenerator {
 
     public static void main(String[] args) throws IOException, XmlException {
-        CachedResourceAdapter.setRefreshTimeout(DateUtil.MIN * 10);
-        CachedResourceAdapter.setExpirationTimeout(DateUtil.DAY * 2);
         new ExampleTileGenerator().exportTiles();
         System.exit(0);
     }
@@ -46,6 +45,9 @@ public class ExampleTileGenerator {
      * 
      */
     public ExampleTileGenerator() {
+        fAppContext.getAdapter(CachePolicy.class).setStoreRule(
+            "maps",
+            new CacheRule(DateUtil.MIN * 10, DateUtil.MIN * 10));
     }
 
     private void exportTiles() throws IOException {
@@ -4,6 +4,9 @@
 package org.ubimix.scraper.app;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import junit.framework.TestCase;
 
@@ -24,10 +27,31 @@ public abstract class AbstractResourceTest extends TestCase {
 
     protected WrfResourceRepository fResourceRepository;
 
+    /**
+     * Temporary directories removed after each test.
+     */
+    private final List<File> fTempDirectories = new ArrayList<File>();
+
     public AbstractResourceTest(String name) {
         super(name);
     }
 
+    /**
+     * Creates a new empty temporary directory. This directory is removed
+     * after the test.
+     * 
+     * @param prefix the prefix of the directory name
+     * @return a new temporary directory
+     * @throws IOException
+     */
+    protected File newTempDirectory(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        dir.delete();
+        dir.mkdirs();
+        fTempDirectories.add(dir);
+        return dir;
+    }
+
     @Override
     protected void setUp() throws Exception {
         super.setUp();
@@ -39,4 +63,14 @@ public abstract class AbstractResourceTest extends TestCase {
             "test",
             true);
     }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File dir : fTempDirectories) {
+            IOUtil.delete(dir);
+        }
+        fTempDirectories.clear();
+        super.tearDown();
+    }
+
 }
@@ -3,12 +3,18 @@
  */
 package org.ubimix.scraper.core;
 
-import junit.framework.TestCase;
+import java.io.File;
+import java.util.Collection;
+
+import org.ubimix.commons.uri.Path;
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.resources.IWrfResource;
+import org.ubimix.scraper.app.AbstractResourceTest;
 
 /**
  * @author kotelnikov
  */
-public class AppContextTest extends TestCase {
+public class AppContextTest extends AbstractResourceTest {
 
     /**
      * @param name
@@ -24,4 +30,50 @@ public class AppContextTest extends TestCase {
         assertNotNull(downloadAdapter);
     }
 
+    public void testShutdown() throws Exception {
+        File dir = newTempDirectory("context");
+        AppContext appContext = new AppContext(dir.getPath(), false);
+        ConfigWatcher.IConfigListener listener = new ConfigWatcher.IConfigListener() {
+            @Override
+            public void onConfigChanged(Collection<File> files) {
+            }
+        };
+        ConfigWatcher first = new ConfigWatcher(listener);
+        first.start();
+        appContext.setConfigWatcher(first);
+        assertSame(first, appContext.getConfigWatcher());
+
+        // The replaced watcher is stopped
+        ConfigWatcher second = new ConfigWatcher(listener);
+        second.start();
+        appContext.setConfigWatcher(second);
+        assertFalse(first.isStarted());
+        assertTrue(second.isStarted());
+
+        appContext.shutdown();
+        assertFalse(second.isStarted());
+        assertNull(appContext.getConfigWatcher());
+    }
+
+    public void testStoreName() throws Exception {
+        File dir = newTempDirectory("context");
+        AppContext appContext = new AppContext(dir.getPath(), false);
+        IWrfResource a = appContext.getResource("a", new Path("x/y"));
+        IWrfResource b = appContext.getResource(
+            "b",
+            new Uri("http://www.foo.bar/"));
+        IWrfResource c = appContext.getResource(
+            "c",
+            new Uri("http://www.foo.bar/"),
+            "xml");
+        assertEquals("a", appContext.getStoreName(a));
+        assertEquals("b", appContext.getStoreName(b));
+        assertEquals("c", appContext.getStoreName(c));
+
+        AppContext other = new AppContext(dir.getPath(), false);
+        assertNull(appContext.getStoreName(other.getResource(
+            "d",
+            new Path("x/y"))));
+    }
+
 }
@@ -0,0 +1,112 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ubimix.commons.uri.Path;
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
+import org.ubimix.resources.adapters.cache.DateUtil;
+import org.ubimix.scraper.app.AbstractResourceTest;
+import org.ubimix.scraper.core.CachePolicy.CacheRule;
+import org.ubimix.scraper.core.CachePolicy.RuleSet;
+
+/**
+ * @author kotelnikov
+ */
+public class CachePolicyTest extends AbstractResourceTest {
+
+    /**
+     * @param name
+     */
+    public CachePolicyTest(String name) {
+        super(name);
+    }
+
+    public void testCacheRule() {
+        CacheRule rule = new CacheRule(100, 50);
+        assertEquals(100, rule.getRefreshTimeout());
+        assertEquals(100, rule.getExpirationTimeout());
+        assertEquals(0, rule.getStaleTimeout());
+
+        rule = new CacheRule(100, 300);
+        assertEquals(200, rule.getStaleTimeout());
+    }
+
+    public void testPolicyUpdates() {
+        CachePolicy policy = new CachePolicy(null);
+        Uri url = new Uri("http://www.foo.bar/a/b");
+        assertSame(CachePolicy.DEFAULT_RULE, policy.getRule("maps", url));
+
+        CacheRule storeRule = new CacheRule(10, 10);
+        policy.setStoreRule("maps", storeRule);
+        RuleSet rules = policy.getRules();
+        assertSame(storeRule, policy.getRule("maps", url));
+        assertSame(CachePolicy.DEFAULT_RULE, policy.getRule("other", url));
+
+        CacheRule defaultRule = new CacheRule(20, 20);
+        policy.setDefaultRule(defaultRule);
+        assertSame(defaultRule, policy.getRule("other", url));
+        assertSame(storeRule, policy.getRule("maps", url));
+        // Old rule sets are not changed
+        assertSame(CachePolicy.DEFAULT_RULE, rules.getRule("other", url));
+    }
+
+    public void testRulePrecedence() {
+        CacheRule defaultRule = new CacheRule(1, 1);
+        CacheRule storeRule = new CacheRule(2, 2);
+        CacheRule urlRule = new CacheRule(3, 3);
+        CacheRule storeUrlRule = new CacheRule(4, 4);
+        RuleSet rules = new RuleSet.Builder()
+            .setDefaultRule(defaultRule)
+            .setStoreRule("maps", storeRule)
+            .setUrlRule(null, "http://www.foo.bar/", urlRule)
+            .setUrlRule("maps", "http://www.foo.bar/tiles", storeUrlRule)
+            .build();
+
+        Uri tile = new Uri("http://www.foo.bar/tiles/1/2/3.png");
+        Uri page = new Uri("http://www.foo.bar/index.html");
+        Uri other = new Uri("http://www.other.org/index.html");
+        assertSame(storeUrlRule, rules.getRule("maps", tile));
+        assertSame(urlRule, rules.getRule("maps", page));
+        assertSame(storeRule, rules.getRule("maps", other));
+        assertSame(urlRule, rules.getRule("pages", tile));
+        assertSame(urlRule, rules.getRule(null, page));
+        assertSame(defaultRule, rules.getRule("pages", other));
+        assertSame(defaultRule, rules.getRule(null, other));
+
+        RuleSet copy = new RuleSet.Builder(rules)
+            .setStoreRule("maps", defaultRule)
+            .build();
+        assertSame(defaultRule, copy.getRule("maps", other));
+        assertSame(storeUrlRule, copy.getRule("maps", tile));
+        assertSame(storeRule, rules.getRule("maps", other));
+    }
+
+    public void testValidationTime() throws Exception {
+        AppContext context = new AppContext(
+            newTempDirectory("policy").getPath(),
+            false);
+        CachedResourceAdapter cache = context
+            .getResource("test", new Path("page.html"))
+            .getAdapter(CachedResourceAdapter.class);
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(CacheUtils.ETAG, "\"v1\"");
+        cache.setProperties(properties);
+
+        // Resources without validation time use the time of their properties
+        CachePolicy policy = new CachePolicy(null);
+        CacheRule rule = new CacheRule(DateUtil.HOUR, DateUtil.HOUR);
+        assertEquals(cache.getLastModified(), policy.getValidationTime(cache));
+        assertFalse(policy.isExpired(rule, cache));
+
+        long time = System.currentTimeMillis() - DateUtil.HOUR * 2;
+        CacheUtils.setValidationTime(cache, time);
+        assertEquals(time, policy.getValidationTime(cache));
+        assertTrue(policy.isExpired(rule, cache));
+    }
+
+}
@@ -0,0 +1,66 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @author kotelnikov
+ */
+public class ConfigWatcherTest extends TestCase {
+
+    /**
+     * @param name
+     */
+    public ConfigWatcherTest(String name) {
+        super(name);
+    }
+
+    private void write(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testChanges() throws Exception {
+        File file = File.createTempFile("config", ".json");
+        try {
+            write(file, "{}");
+            final List<File> changes = new ArrayList<File>();
+            ConfigWatcher watcher = new ConfigWatcher(
+                new ConfigWatcher.IConfigListener() {
+                    @Override
+                    public void onConfigChanged(Collection<File> files) {
+                        changes.addAll(files);
+                    }
+                });
+            watcher.addFile(file);
+            assertFalse(watcher.checkFiles());
+
+            write(file, "{\"a\":\"b\"}");
+            assertTrue(watcher.checkFiles());
+            assertEquals(1, changes.size());
+            assertEquals(file.getAbsoluteFile(), changes.get(0));
+            // The same change is reported only once
+            assertFalse(watcher.checkFiles());
+
+            file.delete();
+            assertTrue(watcher.checkFiles());
+            assertEquals(2, changes.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+}
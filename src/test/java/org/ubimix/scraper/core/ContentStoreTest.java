@@ -0,0 +1,197 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.ubimix.commons.uri.Path;
+import org.ubimix.resources.IContentAdapter;
+import org.ubimix.resources.IWrfResource;
+import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
+import org.ubimix.scraper.app.AbstractResourceTest;
+
+/**
+ * @author kotelnikov
+ */
+public class ContentStoreTest extends AbstractResourceTest {
+
+    private AppContext fContext;
+
+    private File fDir;
+
+    private ContentStore fStore;
+
+    /**
+     * @param name
+     */
+    public ContentStoreTest(String name) {
+        super(name);
+    }
+
+    private int countFiles(File dir, String name) {
+        int count = 0;
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    count += countFiles(child, name);
+                } else if (name.equals(child.getName())) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private CachedResourceAdapter getCache(IWrfResource resource) {
+        return resource.getAdapter(CachedResourceAdapter.class);
+    }
+
+    private String getContent(IWrfResource resource) throws IOException {
+        InputStream input = resource
+            .getAdapter(IContentAdapter.class)
+            .getContentInput();
+        return read(input);
+    }
+
+    private IWrfResource newResource(String path, String str)
+        throws IOException {
+        IWrfResource resource = fContext.getResource("test", new Path(path));
+        write(resource, str);
+        return resource;
+    }
+
+    private String read(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ContentStreamer.copy(input, out);
+            return new String(out.toByteArray(), "UTF-8");
+        } finally {
+            input.close();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        fDir = newTempDirectory("content");
+        fContext = new AppContext(fDir.getPath(), false);
+        fStore = fContext.getAdapter(ContentStore.class);
+        fStore.setEnabled(true);
+    }
+
+    public void testDeduplication() throws Exception {
+        IWrfResource a = newResource("a", "Hello, world");
+        IWrfResource b = newResource("b", "Hello, world");
+        IWrfResource c = newResource("c", "Another content");
+        assertTrue(fStore.storeContent(a));
+        assertTrue(fStore.storeContent(b));
+        assertTrue(fStore.storeContent(c));
+
+        IWrfResource blobA = fContext.getContentResource(a);
+        IWrfResource blobB = fContext.getContentResource(b);
+        IWrfResource blobC = fContext.getContentResource(c);
+        assertEquals(blobA.getPath(), blobB.getPath());
+        assertFalse(blobA.getPath().equals(blobC.getPath()));
+        assertEquals("Hello, world", getContent(blobA));
+        assertEquals("Another content", getContent(blobC));
+
+        // Only two blobs are written
+        File blobs = new File(fDir, fStore.getStoreName());
+        assertEquals(2, countFiles(blobs, "content"));
+    }
+
+    public void testDisabled() throws Exception {
+        fStore.setEnabled(false);
+        IWrfResource resource = newResource("a", "Hello, world");
+        assertFalse(fStore.storeContent(resource));
+        assertNull(fStore.getReference(getCache(resource)));
+        assertSame(resource, fContext.getContentResource(resource));
+    }
+
+    public void testKeepContent() throws Exception {
+        fStore.setReleaseContent(false);
+        IWrfResource resource = newResource("a", "Hello, world");
+        assertTrue(fStore.storeContent(resource));
+        assertNotNull(fStore.getReference(getCache(resource)));
+        assertEquals("Hello, world", getContent(resource));
+        assertEquals("Hello, world", getContent(fContext
+            .getContentResource(resource)));
+        assertEquals("Hello, world", read(fStore.getContentInput(resource)));
+    }
+
+    public void testMissingReference() throws Exception {
+        IWrfResource resource = newResource("a", "Hello, world");
+        assertTrue(fStore.storeContent(resource));
+        assertNotNull(fStore.getReference(getCache(resource)));
+
+        // The reference is ignored when the resource gets a new content
+        write(resource, "New content");
+        assertNull(fStore.getReference(getCache(resource)));
+        assertSame(resource, fContext.getContentResource(resource));
+        assertEquals("New content", read(fStore.getContentInput(resource)));
+    }
+
+    public void testSegments() throws Exception {
+        SegmentStore segments = new SegmentStore(new File(fDir, "segments"));
+        try {
+            fStore.setSegmentStore(segments);
+            IWrfResource resource = newResource("a", "Hello, world");
+            assertTrue(fStore.storeContent(resource));
+            CachedResourceAdapter cache = getCache(resource);
+            String digest = fStore.getReference(cache);
+            assertNotNull(digest);
+            assertTrue(segments.contains(digest));
+            assertEquals(
+                "Hello, world",
+                read(fStore.getContentInput(resource)));
+
+            // The resource keeps only its properties; blobs are not written
+            assertEquals("", getContent(resource));
+            File blobs = new File(fDir, fStore.getStoreName());
+            assertEquals(0, countFiles(blobs, "content"));
+
+            // The blob is restored from segments when a resource is required
+            IWrfResource blob = fContext.getContentResource(resource);
+            assertEquals(fStore.getBlob(digest).getPath(), blob.getPath());
+            assertEquals("Hello, world", getContent(blob));
+            assertEquals(1, countFiles(blobs, "content"));
+        } finally {
+            segments.close();
+        }
+    }
+
+    public void testStoreContent() throws Exception {
+        IWrfResource resource = newResource("a", "Hello, world");
+        assertTrue(fStore.storeContent(resource));
+        CachedResourceAdapter cache = getCache(resource);
+        assertEquals(
+            CacheUtils.getContentDigest(cache),
+            fStore.getReference(cache));
+
+        // The resource releases its own content by default
+        assertTrue(fStore.isReleaseContent());
+        assertEquals("", getContent(resource));
+        IWrfResource blob = fContext.getContentResource(resource);
+        assertFalse(resource.getPath().equals(blob.getPath()));
+        assertEquals("Hello, world", getContent(blob));
+        assertEquals("Hello, world", read(fStore.getContentInput(resource)));
+
+        // Stored resources are not stored again
+        assertTrue(fStore.storeContent(resource));
+    }
+
+    private void write(IWrfResource resource, String str) throws IOException {
+        IContentAdapter content = resource.getAdapter(IContentAdapter.class);
+        content.writeContent(new ByteArrayInputStream(str.getBytes("UTF-8")));
+        CacheUtils.setContentInfo(
+            getCache(resource),
+            ContentStreamer.digest(content));
+    }
+
+}
@@ -0,0 +1,74 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.ubimix.scraper.core.ContentStreamer.ContentInfo;
+import org.ubimix.scraper.core.ContentStreamer.MeteredOutputStream;
+
+/**
+ * @author kotelnikov
+ */
+public class ContentStreamerTest extends TestCase {
+
+    /**
+     * @param name
+     */
+    public ContentStreamerTest(String name) {
+        super(name);
+    }
+
+    public void testCopy() throws Exception {
+        byte[] data = "abc".getBytes("UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ContentInfo info = ContentStreamer.copy(
+            new ByteArrayInputStream(data),
+            out);
+        assertEquals(3, info.getLength());
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", info
+            .getDigest());
+        assertEquals("abc", new String(out.toByteArray(), "UTF-8"));
+    }
+
+    public void testLargeContent() throws Exception {
+        byte[] data = new byte[ContentStreamer.BUFFER_SIZE * 3 + 17];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ContentInfo info = ContentStreamer.copy(
+            new ByteArrayInputStream(data),
+            out);
+        assertEquals(data.length, info.getLength());
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+
+        // Digests do not depend on the output
+        ContentInfo control = ContentStreamer.copy(
+            new ByteArrayInputStream(data),
+            null);
+        assertEquals(control.getDigest(), info.getDigest());
+    }
+
+    public void testMeteredOutput() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TokenBucket limiter = new TokenBucket(10);
+        MeteredOutputStream output = new MeteredOutputStream(out, limiter);
+        output.write('a');
+        output.write("bc".getBytes("UTF-8"));
+        output.close();
+        ContentInfo info = output.getContentInfo();
+        assertEquals(3, info.getLength());
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", info
+            .getDigest());
+        assertEquals("abc", new String(out.toByteArray(), "UTF-8"));
+        // Written bytes are taken from the bucket
+        assertTrue(limiter.reserve(10) > 0);
+    }
+
+}
@@ -0,0 +1,234 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamResult;
+
+import org.ubimix.commons.uri.Path;
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.commons.xml.XmlException;
+import org.ubimix.commons.xml.XmlWrapper;
+import org.ubimix.commons.xml.XmlWrapper.XmlContext;
+import org.ubimix.commons.xml.atom.AtomFeed;
+import org.ubimix.resources.IContentAdapter;
+import org.ubimix.resources.IWrfResource;
+import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
+import org.ubimix.scraper.app.AbstractResourceTest;
+import org.ubimix.scraper.core.DocAdapter.TransformItem;
+import org.ubimix.scraper.transformer.IDocumentTransformer;
+
+/**
+ * @author kotelnikov
+ */
+public class DocAdapterTest extends AbstractResourceTest {
+
+    /**
+     * @param name
+     */
+    public DocAdapterTest(String name) {
+        super(name);
+    }
+
+    private IDocumentTransformer newTransformer() {
+        return new IDocumentTransformer() {
+            @Override
+            public AtomFeed transformDocument(Uri url, XmlWrapper doc) {
+                return null;
+            }
+        };
+    }
+
+    public void testBatchTransformation() throws Exception {
+        final Set<String> transformed = Collections
+            .synchronizedSet(new HashSet<String>());
+        final Set<String> threads = Collections
+            .synchronizedSet(new HashSet<String>());
+        DocAdapter adapter = new DocAdapter(null) {
+            @Override
+            public void transformToAtom(
+                Uri resourceUri,
+                IWrfResource rawResource,
+                IWrfResource atomResource) throws IOException, XmlException {
+                threads.add(Thread.currentThread().getName());
+                String url = resourceUri.toString();
+                if (url.endsWith("7")) {
+                    throw new XmlException("Bad document " + url);
+                }
+                transformed.add(url);
+            }
+        };
+        List<TransformItem> items = new ArrayList<TransformItem>();
+        for (int i = 0; i < 100; i++) {
+            Uri url = new Uri("http://www.foo.bar/page-" + i);
+            items.add(new TransformItem(url, null, null));
+        }
+        Map<TransformItem, Exception> errors = adapter.transformToAtom(
+            items,
+            4);
+        assertEquals(10, errors.size());
+        assertEquals(90, transformed.size());
+        for (Map.Entry<TransformItem, Exception> entry : errors.entrySet()) {
+            assertTrue(entry.getKey().getUrl().toString().endsWith("7"));
+            assertTrue(entry.getValue() instanceof XmlException);
+        }
+        assertTrue(threads.size() <= 5);
+    }
+
+    public void testFailedTransformation() throws Exception {
+        File dir = newTempDirectory("doc");
+        AppContext context = new AppContext(dir.getPath(), false);
+        IWrfResource raw = context.getResource("raw", new Path("page"));
+        IWrfResource atom = context.getResource("atom", new Path("page"));
+        write(raw, "<html><body><p>Hello</p></body></html>");
+        final boolean[] failure = { false };
+        DocAdapter adapter = new DocAdapter(context);
+        IStreamingDocumentTransformer transformer = new IStreamingDocumentTransformer() {
+            @Override
+            public void transformDocument(
+                Uri url,
+                Source input,
+                Result output) throws XmlException, IOException {
+                OutputStream out = ((StreamResult) output)
+                    .getOutputStream();
+                if (failure[0]) {
+                    out.write("<feed>".getBytes("UTF-8"));
+                    throw new XmlException("Bad document " + url);
+                }
+                out.write("<feed/>".getBytes("UTF-8"));
+            }
+
+            @Override
+            public AtomFeed transformDocument(Uri url, XmlWrapper doc) {
+                return null;
+            }
+        };
+        adapter.setDefaultDocumentTransformer(transformer);
+        Uri url = new Uri("http://www.foo.bar/page");
+        String id = adapter.getAtomTransformationId(url);
+        CachedResourceAdapter atomCache = atom
+            .getAdapter(CachedResourceAdapter.class);
+        adapter.transformToAtom(url, raw, atom);
+        assertEquals(id, CacheUtils.getProperty(
+            atomCache,
+            CacheUtils.TRANSFORMATION));
+        assertNotNull(CacheUtils.getProperty(
+            atomCache,
+            CacheUtils.SOURCE_DIGEST));
+
+        // A partially written resource does not keep the identifiers
+        write(raw, "<html><body><p>Changed</p></body></html>");
+        failure[0] = true;
+        try {
+            adapter.transformToAtom(url, raw, atom);
+            fail();
+        } catch (XmlException e) {
+        }
+        assertNull(CacheUtils.getProperty(
+            atomCache,
+            CacheUtils.TRANSFORMATION));
+        assertNull(CacheUtils.getProperty(
+            atomCache,
+            CacheUtils.SOURCE_DIGEST));
+
+        failure[0] = false;
+        adapter.transformToAtom(url, raw, atom);
+        assertEquals(id, CacheUtils.getProperty(
+            atomCache,
+            CacheUtils.TRANSFORMATION));
+    }
+
+    public void testMissingTransformer() throws Exception {
+        Uri url = new Uri("http://www.foo.bar/page");
+        XmlWrapper xhtml = XmlContext.build().readXML("<html/>");
+        try {
+            new DocAdapter(null).transformToAtom(url, xhtml);
+            fail();
+        } catch (XmlException e) {
+        }
+
+        File dir = newTempDirectory("doc");
+        AppContext context = new AppContext(dir.getPath(), false);
+        IWrfResource raw = context.getResource("raw", new Path("page"));
+        IWrfResource atom = context.getResource("atom", new Path("page"));
+        write(raw, "<html><body><p>Hello</p></body></html>");
+        DocAdapter adapter = new DocAdapter(context);
+        try {
+            adapter.transformToAtom(url, raw, atom);
+            fail();
+        } catch (XmlException e) {
+        }
+        assertFalse(atom.getAdapter(IContentAdapter.class).exists());
+
+        // Transformers without results are not reported as successful
+        adapter.setDefaultDocumentTransformer(newTransformer());
+        try {
+            adapter.transformToAtom(url, raw, atom);
+            fail();
+        } catch (XmlException e) {
+        }
+        assertFalse(atom.getAdapter(IContentAdapter.class).exists());
+        assertNull(CacheUtils.getProperty(
+            atom.getAdapter(CachedResourceAdapter.class),
+            CacheUtils.TRANSFORMATION));
+    }
+
+    public void testTransformationId() throws Exception {
+        Uri url = new Uri("http://www.foo.bar/page.html");
+        Uri otherUrl = new Uri("http://www.bar.com/page.html");
+        DocAdapter adapter = new DocAdapter(null);
+        String first = adapter.getAtomTransformationId(url);
+        assertEquals(first, adapter.getAtomTransformationId(url));
+        IDocumentTransformer transformer = newTransformer();
+        adapter.setDocumentTransformer(
+            new Uri("http://www.foo.bar/"),
+            transformer);
+        String second = adapter.getAtomTransformationId(url);
+        assertFalse(first.equals(second));
+        assertEquals(first, adapter.getAtomTransformationId(otherUrl));
+
+        DocAdapter other = new DocAdapter(null);
+        other.setDocumentTransformer(
+            new Uri("http://www.foo.bar/"),
+            transformer);
+        assertEquals(second, other.getAtomTransformationId(url));
+    }
+
+    public void testTransformerSelection() throws Exception {
+        DocAdapter adapter = new DocAdapter(null);
+        IDocumentTransformer a = newTransformer();
+        IDocumentTransformer b = newTransformer();
+        IDocumentTransformer c = newTransformer();
+        adapter.setDefaultDocumentTransformer(a);
+        adapter.setDocumentTransformer(new Uri("http://www.foo.bar/"), b);
+        adapter.setDocumentTransformer(new Uri("http://www.foo.bar/x/"), c);
+        assertSame(a, adapter.getDocumentTransformer(new Uri(
+            "http://www.bar.com/")));
+        assertSame(b, adapter.getDocumentTransformer(new Uri(
+            "http://www.foo.bar/y/z.html")));
+        assertSame(c, adapter.getDocumentTransformer(new Uri(
+            "http://www.foo.bar/x/z.html")));
+    }
+
+    private void write(IWrfResource resource, String str) throws IOException {
+        IContentAdapter content = resource.getAdapter(IContentAdapter.class);
+        content.writeContent(new ByteArrayInputStream(str.getBytes("UTF-8")));
+        CacheUtils.setContentInfo(
+            resource.getAdapter(CachedResourceAdapter.class),
+            ContentStreamer.digest(content));
+    }
+
+}
@@ -0,0 +1,395 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ubimix.commons.uri.Path;
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.resources.IContentAdapter;
+import org.ubimix.resources.IWrfResource;
+import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
+import org.ubimix.resources.adapters.cache.DateUtil;
+import org.ubimix.scraper.app.AbstractResourceTest;
+import org.ubimix.scraper.core.DownloadAdapter.IDownloadListener;
+import org.ubimix.scraper.core.DownloadMetrics.HostSnapshot;
+import org.ubimix.scraper.protocol.HttpStatusCode;
+
+/**
+ * @author kotelnikov
+ */
+public class DownloadAdapterTest extends AbstractResourceTest {
+
+    private static class TestListener implements IDownloadListener {
+
+        private final List<String> fErrors = Collections
+            .synchronizedList(new ArrayList<String>());
+
+        private final CountDownLatch fLatch;
+
+        private final List<String> fLoaded = Collections
+            .synchronizedList(new ArrayList<String>());
+
+        public TestListener(int count) {
+            fLatch = new CountDownLatch(count);
+        }
+
+        public void await() throws InterruptedException {
+            assertTrue(fLatch.await(10, TimeUnit.SECONDS));
+        }
+
+        @Override
+        public void onError(Uri url, IWrfResource resource, Throwable error) {
+            fErrors.add(url.toString());
+            fLatch.countDown();
+        }
+
+        @Override
+        public void onLoad(
+            Uri url,
+            IWrfResource resource,
+            HttpStatusCode statusCode) {
+            fLoaded.add(url.toString());
+            fLatch.countDown();
+        }
+
+    }
+
+    private AppContext fContext;
+
+    private File fDir;
+
+    /**
+     * @param name
+     */
+    public DownloadAdapterTest(String name) {
+        super(name);
+    }
+
+    private List<Uri> getUrls(String... urls) {
+        List<Uri> result = new ArrayList<Uri>();
+        for (String url : urls) {
+            result.add(new Uri(url));
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new downloader refreshing resources in background. Each
+     * download waits until the given latch is released.
+     */
+    private DownloadAdapter newRefreshingAdapter(
+        final List<String> threads,
+        final CountDownLatch started,
+        final CountDownLatch release) {
+        DownloadAdapter adapter = new DownloadAdapter(fContext) {
+            @Override
+            protected HttpStatusCode doLoadResource(
+                Uri url,
+                IWrfResource resource) throws IOException {
+                threads.add(Thread.currentThread().getName());
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return HttpStatusCode.STATUS_200;
+            }
+        };
+        adapter.setRefreshTimeout(DateUtil.MIN);
+        adapter.setStaleTimeout(DateUtil.DAY);
+        return adapter;
+    }
+
+    /**
+     * Creates a resource with existing content validated at the specified
+     * time.
+     */
+    private IWrfResource newResource(String path, long validationTime)
+        throws IOException {
+        IWrfResource resource = fContext.getResource("test", new Path(path));
+        IContentAdapter content = resource.getAdapter(IContentAdapter.class);
+        content.writeContent(new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+        CachedResourceAdapter cacheAdapter = resource
+            .getAdapter(CachedResourceAdapter.class);
+        cacheAdapter.setStatusCode(HttpStatusCode.STATUS_200.getStatusCode());
+        CacheUtils.setValidationTime(cacheAdapter, validationTime);
+        return resource;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        fDir = newTempDirectory("download");
+        fContext = new AppContext(fDir.getPath(), false);
+    }
+
+    public void testCancelBatch() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> loaded = Collections
+            .synchronizedList(new ArrayList<String>());
+        DownloadAdapter adapter = new DownloadAdapter(fContext) {
+            @Override
+            protected HttpStatusCode doLoadResource(
+                Uri url,
+                IWrfResource resource) throws IOException {
+                loaded.add(url.toString());
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return HttpStatusCode.STATUS_200;
+            }
+        };
+        adapter.setDownloadThreads(1);
+        adapter.setMaxHostConnections(1);
+        List<Uri> urls = getUrls(
+            "http://www.foo.bar/a",
+            "http://www.foo.bar/b",
+            "http://www.foo.bar/c");
+        TestListener listener = new TestListener(urls.size());
+        Map<Uri, Future<HttpStatusCode>> results = adapter.loadResources(
+            "test",
+            urls,
+            listener);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // Queued downloads are cancelled, the running one is finished
+        adapter.shutdown();
+        release.countDown();
+        listener.await();
+
+        Future<HttpStatusCode> first = results.get(urls.get(0));
+        assertSame(HttpStatusCode.STATUS_200, first.get());
+        for (Uri url : urls.subList(1, urls.size())) {
+            assertTrue(results.get(url).isCancelled());
+        }
+        assertEquals(1, loaded.size());
+        assertEquals(1, listener.fLoaded.size());
+        assertEquals(2, listener.fErrors.size());
+    }
+
+    public void testLoadResources() throws Exception {
+        DownloadAdapter adapter = new DownloadAdapter(fContext) {
+            @Override
+            protected HttpStatusCode doLoadResource(
+                Uri url,
+                IWrfResource resource) throws IOException {
+                if (url.toString().endsWith("/error")) {
+                    throw new IOException("Can not load " + url);
+                }
+                return HttpStatusCode.STATUS_200;
+            }
+        };
+        adapter.setDownloadThreads(2);
+        try {
+            List<Uri> urls = getUrls(
+                "http://www.foo.bar/a",
+                "http://www.bar.com/a",
+                "http://www.foo.bar/error",
+                "http://www.bar.com/b",
+                "http://www.foo.bar/b");
+            TestListener listener = new TestListener(urls.size());
+            Map<Uri, Future<HttpStatusCode>> results = adapter
+                .loadResources("test", urls, listener);
+
+            // Results are returned in the order of URLs
+            assertEquals(urls, new ArrayList<Uri>(results.keySet()));
+            for (Uri url : urls) {
+                Future<HttpStatusCode> future = results.get(url);
+                if (url.toString().endsWith("/error")) {
+                    try {
+                        future.get();
+                        fail();
+                    } catch (ExecutionException e) {
+                        assertTrue(e.getCause() instanceof IOException);
+                    }
+                } else {
+                    assertSame(HttpStatusCode.STATUS_200, future.get());
+                }
+            }
+
+            // One failed download does not stop others
+            listener.await();
+            assertEquals(4, listener.fLoaded.size());
+            assertEquals(
+                Collections.singletonList("http://www.foo.bar/error"),
+                listener.fErrors);
+        } finally {
+            adapter.shutdown();
+        }
+    }
+
+    public void testSettings() throws Exception {
+        DownloadAdapter adapter = new DownloadAdapter(fContext);
+        DownloadAdapter.Settings settings = new DownloadAdapter.Settings.Builder()
+            .setDownloadExistingResources(true)
+            .setHostDelay(100)
+            .setMaxBytesPerSecond(1000)
+            .setHostFailures(3)
+            .build();
+        adapter.setSettings(settings);
+        assertSame(settings, adapter.getSettings());
+        assertTrue(adapter.downloadExistingResources());
+        assertEquals(100, adapter.getHostDelay());
+        assertEquals(1000, adapter.getMaxBytesPerSecond());
+        assertEquals(3, adapter.getFailurePolicy().getHostFailures());
+
+        // Each setter publishes a copy of the current settings
+        adapter.setHostDelay(200);
+        assertNotSame(settings, adapter.getSettings());
+        assertEquals(100, settings.getHostDelay());
+        assertEquals(200, adapter.getHostDelay());
+        assertTrue(adapter.downloadExistingResources());
+        assertEquals(1000, adapter.getMaxBytesPerSecond());
+    }
+
+    public void testSharedLoad() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DownloadAdapter adapter = new DownloadAdapter(fContext) {
+            @Override
+            protected HttpStatusCode doLoadResource(
+                Uri url,
+                IWrfResource resource) throws IOException {
+                count.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return HttpStatusCode.STATUS_200;
+            }
+        };
+        final Uri url = new Uri("http://www.foo.bar/page.html");
+        final Path path = new Path("page.html");
+        final List<HttpStatusCode> results = Collections
+            .synchronizedList(new ArrayList<HttpStatusCode>());
+        // Failures of other threads are checked by the test thread
+        final List<Throwable> errors = Collections
+            .synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 5; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    // Each thread uses its own handle of the resource
+                    IWrfResource resource = fContext.getResource("test", path);
+                    try {
+                        results.add(adapter.loadResource(url, resource));
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+            if (i == 0) {
+                assertTrue(started.await(10, TimeUnit.SECONDS));
+            }
+        }
+        // Wait until all other threads are blocked by the running download
+        for (Thread thread : threads.subList(1, threads.size())) {
+            while (thread.getState() != Thread.State.WAITING) {
+                assertTrue(thread.isAlive());
+                Thread.sleep(10);
+            }
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+        assertEquals(Collections.<Throwable> emptyList(), errors);
+        assertEquals(1, count.get());
+        assertEquals(threads.size(), results.size());
+        for (HttpStatusCode statusCode : results) {
+            assertSame(HttpStatusCode.STATUS_200, statusCode);
+        }
+    }
+
+    public void testStaleResource() throws Exception {
+        List<String> threads = Collections
+            .synchronizedList(new ArrayList<String>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        DownloadAdapter adapter = newRefreshingAdapter(
+            threads,
+            started,
+            release);
+        adapter.downloadExistingResources(true);
+        try {
+            Uri url = new Uri("http://www.foo.bar/page.html");
+            long time = System.currentTimeMillis() - DateUtil.HOUR;
+            IWrfResource resource = newResource("page.html", time);
+
+            // The stored status is returned before the end of the refresh
+            assertSame(HttpStatusCode.STATUS_200, adapter.loadResource(
+                url,
+                resource));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            assertSame(HttpStatusCode.STATUS_200, adapter.loadResource(
+                url,
+                resource));
+            release.countDown();
+
+            // Only one refresh is started in a download thread
+            assertEquals(1, threads.size());
+            assertFalse(Thread.currentThread().getName().equals(
+                threads.get(0)));
+
+            // Stale responses are not counted as cache hits
+            HostSnapshot host = adapter.getMetrics().getSnapshot().get(
+                "www.foo.bar");
+            assertEquals(2, host.getStale());
+            assertEquals(0, host.getHits());
+        } finally {
+            adapter.shutdown();
+        }
+    }
+
+    public void testStaleResourceNotDownloaded() throws Exception {
+        List<String> threads = Collections
+            .synchronizedList(new ArrayList<String>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(0);
+        DownloadAdapter adapter = newRefreshingAdapter(
+            threads,
+            started,
+            release);
+        adapter.downloadExistingResources(false);
+        try {
+            Uri url = new Uri("http://www.foo.bar/page.html");
+            long time = System.currentTimeMillis() - DateUtil.HOUR;
+            IWrfResource resource = newResource("page.html", time);
+
+            // Stale resources are not refreshed in background
+            assertSame(HttpStatusCode.STATUS_200, adapter.loadResource(
+                url,
+                resource));
+            assertEquals(
+                Collections.singletonList(Thread.currentThread().getName()),
+                threads);
+        } finally {
+            adapter.shutdown();
+        }
+    }
+
+}
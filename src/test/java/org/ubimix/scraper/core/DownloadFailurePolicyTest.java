@@ -0,0 +1,151 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.scraper.protocol.HttpStatusCode;
+
+/**
+ * @author kotelnikov
+ */
+public class DownloadFailurePolicyTest extends TestCase {
+
+    private static class TestPolicy extends DownloadFailurePolicy {
+
+        private long fTime = 1000;
+
+        @Override
+        protected long getCurrentTime() {
+            return fTime;
+        }
+
+        public void shift(long delta) {
+            fTime += delta;
+        }
+    }
+
+    /**
+     * @param name
+     */
+    public DownloadFailurePolicyTest(String name) {
+        super(name);
+    }
+
+    private void checkStatus(TestPolicy policy, Uri url, int control) {
+        HttpStatusCode status = policy.getBlockedStatus(url);
+        if (control < 0) {
+            assertNull(status);
+        } else {
+            assertNotNull(status);
+            assertEquals(control, status.getStatusCode());
+        }
+    }
+
+    public void testBackoff() {
+        TestPolicy policy = new TestPolicy();
+        policy.setServerErrorDelay(100);
+        policy.setMaxDelay(300);
+        Uri url = new Uri("http://www.foo.bar/a");
+        checkStatus(policy, url, -1);
+
+        policy.onStatus(url, 500);
+        checkStatus(policy, url, 500);
+        policy.shift(100);
+        checkStatus(policy, url, -1);
+
+        // The second failure doubles the delay
+        policy.onStatus(url, 500);
+        policy.shift(100);
+        checkStatus(policy, url, 500);
+        policy.shift(100);
+        checkStatus(policy, url, -1);
+
+        // The delay is limited by the maximal value
+        policy.onStatus(url, 500);
+        policy.shift(300);
+        checkStatus(policy, url, -1);
+
+        // A successful download resets the URL
+        policy.onStatus(url, 200);
+        policy.onStatus(url, 500);
+        policy.shift(100);
+        checkStatus(policy, url, -1);
+    }
+
+    public void testConcurrentFailures() throws Exception {
+        final TestPolicy policy = new TestPolicy();
+        final int threadCount = 8;
+        final int failureCount = 1000;
+        policy.setHostFailures(threadCount * failureCount);
+        final List<Throwable> errors = Collections
+            .synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            final Uri url = new Uri("http://www.foo.bar/" + i);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < failureCount; j++) {
+                            policy.onError(url);
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+        assertEquals(Collections.<Throwable> emptyList(), errors);
+        // The host is blocked only if no failures were lost
+        checkStatus(
+            policy,
+            new Uri("http://www.foo.bar/other"),
+            DownloadFailurePolicy.SERVICE_UNAVAILABLE);
+    }
+
+    public void testHostCircuit() {
+        TestPolicy policy = new TestPolicy();
+        policy.setHostFailures(3);
+        policy.setHostBlockTime(1000);
+        Uri a = new Uri("http://www.foo.bar/a");
+        Uri b = new Uri("http://www.foo.bar/b");
+        Uri c = new Uri("http://www.foo.bar/c");
+        Uri other = new Uri("http://www.other.org/c");
+        policy.onError(a);
+        policy.onStatus(b, 502);
+        checkStatus(policy, c, -1);
+        policy.onStatus(a, 500);
+        checkStatus(policy, c, DownloadFailurePolicy.SERVICE_UNAVAILABLE);
+        checkStatus(policy, other, -1);
+        policy.shift(1000);
+        checkStatus(policy, c, -1);
+    }
+
+    public void testNotFound() {
+        TestPolicy policy = new TestPolicy();
+        policy.setClientErrorDelay(100);
+        policy.setHostFailures(1);
+        Uri a = new Uri("http://www.foo.bar/a");
+        Uri b = new Uri("http://www.foo.bar/b");
+        policy.onStatus(a, 404);
+        checkStatus(policy, a, 404);
+        // Client errors do not block the host
+        checkStatus(policy, b, -1);
+        policy.shift(100);
+        checkStatus(policy, a, -1);
+    }
+
+}
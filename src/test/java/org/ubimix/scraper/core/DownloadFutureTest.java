@@ -0,0 +1,89 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.resources.IWrfResource;
+import org.ubimix.scraper.core.DownloadAdapter.IDownloadListener;
+import org.ubimix.scraper.protocol.HttpStatusCode;
+
+/**
+ * @author kotelnikov
+ */
+public class DownloadFutureTest extends TestCase {
+
+    private static class TestListener implements IDownloadListener {
+
+        private List<Object> fResults = new ArrayList<Object>();
+
+        @Override
+        public void onError(Uri url, IWrfResource resource, Throwable error) {
+            fResults.add(error);
+        }
+
+        @Override
+        public void onLoad(
+            Uri url,
+            IWrfResource resource,
+            HttpStatusCode statusCode) {
+            fResults.add(statusCode);
+        }
+    }
+
+    /**
+     * @param name
+     */
+    public DownloadFutureTest(String name) {
+        super(name);
+    }
+
+    public void testError() throws Exception {
+        final Exception error = new Exception("Test");
+        DownloadFuture future = new DownloadFuture(
+            new Uri("http://www.foo.bar/"),
+            null,
+            new Callable<HttpStatusCode>() {
+                @Override
+                public HttpStatusCode call() throws Exception {
+                    throw error;
+                }
+            });
+        TestListener listener = new TestListener();
+        future.addListener(listener);
+        future.run();
+        assertEquals(1, listener.fResults.size());
+        assertSame(error, listener.fResults.get(0));
+    }
+
+    public void testListeners() throws Exception {
+        DownloadFuture future = new DownloadFuture(
+            new Uri("http://www.foo.bar/"),
+            null,
+            new Callable<HttpStatusCode>() {
+                @Override
+                public HttpStatusCode call() throws Exception {
+                    return HttpStatusCode.STATUS_404;
+                }
+            });
+        TestListener first = new TestListener();
+        future.addListener(first);
+        assertEquals(0, first.fResults.size());
+        future.run();
+        assertEquals(1, first.fResults.size());
+        assertSame(HttpStatusCode.STATUS_404, first.fResults.get(0));
+
+        // Listeners added after the end are notified immediately
+        TestListener second = new TestListener();
+        future.addListener(second);
+        assertEquals(1, second.fResults.size());
+        assertSame(HttpStatusCode.STATUS_404, second.fResults.get(0));
+    }
+
+}
@@ -0,0 +1,85 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.scraper.core.DownloadMetrics.HostSnapshot;
+import org.ubimix.scraper.core.DownloadMetrics.LatencySnapshot;
+
+/**
+ * @author kotelnikov
+ */
+public class DownloadMetricsTest extends TestCase {
+
+    /**
+     * @param name
+     */
+    public DownloadMetricsTest(String name) {
+        super(name);
+    }
+
+    public void testCounters() {
+        DownloadMetrics metrics = new DownloadMetrics(null);
+        Uri a = new Uri("http://www.foo.bar/a");
+        Uri b = new Uri("http://www.foo.bar/b");
+        Uri c = new Uri("http://WWW.other.org/c");
+        metrics.onCacheHit(a);
+        long start = metrics.onDownloadStart(b);
+        long other = metrics.onDownloadStart(c);
+        Map<String, HostSnapshot> snapshot = metrics.getSnapshot();
+        assertEquals(2, snapshot.size());
+        assertEquals(1, snapshot.get("www.foo.bar").getInFlight());
+
+        metrics.onDownloadEnd(b, start, 200, 100);
+        metrics.onDownloadEnd(c, other, -1, 0);
+        start = metrics.onDownloadStart(a);
+        metrics.onDownloadEnd(a, start, 304, 0);
+        metrics.onBlocked(a);
+        // A stale response followed by its background refresh
+        metrics.onStaleHit(b);
+        start = metrics.onDownloadStart(b);
+        metrics.onDownloadEnd(b, start, 304, 0);
+
+        snapshot = metrics.getSnapshot();
+        HostSnapshot host = snapshot.get("www.foo.bar");
+        assertEquals(0, host.getInFlight());
+        assertEquals(1, host.getHits());
+        assertEquals(1, host.getStale());
+        assertEquals(2, host.getNotModified());
+        assertEquals(1, host.getMisses());
+        assertEquals(1, host.getBlocked());
+        assertEquals(100, host.getBytes());
+        assertEquals(1.0 / 4, host.getHitRatio(), 0.0001);
+        assertEquals(1, host.getLatency().get("2xx").getCount());
+        assertEquals(2, host.getLatency().get("3xx").getCount());
+
+        host = snapshot.get("www.other.org");
+        assertEquals(1, host.getLatency().get("error").getCount());
+    }
+
+    public void testPercentiles() {
+        long[] bounds = new LatencySnapshot(new long[0], 0, 0).getBounds();
+        long[] counts = new long[bounds.length + 1];
+        // 90 fast downloads and 10 slow ones
+        counts[0] = 90;
+        counts[9] = 10;
+        LatencySnapshot latency = new LatencySnapshot(counts, 0, 700);
+        assertEquals(100, latency.getCount());
+        assertEquals(bounds[0], latency.getPercentile(0.5));
+        assertEquals(bounds[0], latency.getPercentile(0.9));
+        assertEquals(700, latency.getPercentile(0.99));
+    }
+
+    public void testStatusClass() {
+        assertEquals("2xx", DownloadMetrics.getStatusClass(200));
+        assertEquals("3xx", DownloadMetrics.getStatusClass(304));
+        assertEquals("5xx", DownloadMetrics.getStatusClass(503));
+        assertEquals("error", DownloadMetrics.getStatusClass(-1));
+    }
+
+}
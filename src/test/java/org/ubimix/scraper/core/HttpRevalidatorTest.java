@@ -0,0 +1,182 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ubimix.commons.uri.Path;
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.resources.IContentAdapter;
+import org.ubimix.resources.IWrfResource;
+import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
+import org.ubimix.scraper.app.AbstractResourceTest;
+import org.ubimix.scraper.protocol.CompositeProtocolHandler;
+import org.ubimix.scraper.protocol.HttpStatusCode;
+
+/**
+ * @author kotelnikov
+ */
+public class HttpRevalidatorTest extends AbstractResourceTest {
+
+    private AppContext fContext;
+
+    private File fDir;
+
+    private String fIfNoneMatch;
+
+    private int fRequests;
+
+    private IWrfResource fResource;
+
+    /**
+     * @param name
+     */
+    public HttpRevalidatorTest(String name) {
+        super(name);
+    }
+
+    private CachedResourceAdapter getCache() {
+        return fResource.getAdapter(CachedResourceAdapter.class);
+    }
+
+    private String getContent() throws IOException {
+        IContentAdapter content = fResource.getAdapter(IContentAdapter.class);
+        InputStream input = content.getContentInput();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ContentStreamer.copy(input, out);
+            return new String(out.toByteArray(), "UTF-8");
+        } finally {
+            input.close();
+        }
+    }
+
+    private HttpStatusCode revalidate(String path) throws IOException {
+        // This handler replaces cache properties by response headers, like
+        // the HTTP protocol handler does
+        CompositeProtocolHandler handler = new CompositeProtocolHandler() {
+            @Override
+            public HttpStatusCode handleRequest(
+                Uri url,
+                String login,
+                String password,
+                IWrfResource resource) throws IOException {
+                fRequests++;
+                CachedResourceAdapter cache = resource
+                    .getAdapter(CachedResourceAdapter.class);
+                fIfNoneMatch = CacheUtils.getProperty(cache, CacheUtils.ETAG);
+                String str = url.toString();
+                Map<String, String> headers = new HashMap<String, String>();
+                if (str.endsWith("/same")) {
+                    headers.put("ETag", "\"v2\"");
+                    headers.put("X-New", "new");
+                    headers.put("Content-Length", "0");
+                    cache.setProperties(headers);
+                    cache.setStatusCode(304);
+                    return HttpStatusCode.STATUS_304;
+                } else if (str.endsWith("/changed")) {
+                    IContentAdapter content = resource
+                        .getAdapter(IContentAdapter.class);
+                    content.writeContent(new ByteArrayInputStream(
+                        "new content".getBytes("UTF-8")));
+                    headers.put("ETag", "\"v3\"");
+                    headers.put("Content-Length", "11");
+                    cache.setProperties(headers);
+                    return HttpStatusCode.STATUS_200;
+                } else if (str.endsWith("/broken")) {
+                    throw new IOException("Connection reset");
+                }
+                return HttpStatusCode.STATUS_500;
+            }
+        };
+        HttpRevalidator revalidator = new HttpRevalidator(handler);
+        return revalidator.revalidate(getUrl(path), null, null, fResource);
+    }
+
+    private Uri getUrl(String path) {
+        return new Uri("http://localhost" + path);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        fDir = newTempDirectory("revalidator");
+        fContext = new AppContext(fDir.getPath(), false);
+        fResource = fContext.getResource("test", new Path("page.html"));
+        IContentAdapter content = fResource.getAdapter(IContentAdapter.class);
+        content.writeContent(new ByteArrayInputStream("old".getBytes("UTF-8")));
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(CacheUtils.ETAG, "\"v1\"");
+        properties.put("Content-Length", "3");
+        properties.put("X-Old", "old");
+        getCache().setProperties(properties);
+        getCache().setStatusCode(200);
+    }
+
+    public void testChanged() throws Exception {
+        assertSame(HttpStatusCode.STATUS_200, revalidate("/changed"));
+        assertEquals("\"v1\"", fIfNoneMatch);
+        assertEquals(1, fRequests);
+        assertEquals("new content", getContent());
+
+        // All properties are replaced by the new headers
+        CachedResourceAdapter cache = getCache();
+        assertEquals("\"v3\"", CacheUtils.getProperty(cache, CacheUtils.ETAG));
+        assertNull(CacheUtils.getProperty(cache, "X-Old"));
+        assertEquals("11", CacheUtils.getProperty(cache, "Content-Length"));
+    }
+
+    public void testError() throws Exception {
+        assertSame(HttpStatusCode.STATUS_500, revalidate("/error"));
+        assertEquals(1, fRequests);
+        assertEquals("old", getContent());
+        assertEquals("old", CacheUtils.getProperty(getCache(), "X-Old"));
+        assertEquals(-1, CacheUtils.getValidationTime(getCache()));
+    }
+
+    public void testIncompleteContent() throws Exception {
+        try {
+            revalidate("/broken");
+            fail();
+        } catch (IOException e) {
+        }
+        // The resource is not changed
+        assertEquals("old", getContent());
+        CachedResourceAdapter cache = getCache();
+        assertEquals("\"v1\"", CacheUtils.getProperty(cache, CacheUtils.ETAG));
+        assertEquals("old", CacheUtils.getProperty(cache, "X-Old"));
+        assertEquals(-1, CacheUtils.getValidationTime(cache));
+    }
+
+    public void testNotModified() throws Exception {
+        assertSame(HttpStatusCode.STATUS_304, revalidate("/same"));
+        assertEquals(1, fRequests);
+        assertEquals("old", getContent());
+
+        // New headers are merged with stored properties
+        CachedResourceAdapter cache = getCache();
+        assertEquals("\"v2\"", CacheUtils.getProperty(cache, CacheUtils.ETAG));
+        assertEquals("new", CacheUtils.getProperty(cache, "X-New"));
+        assertEquals("old", CacheUtils.getProperty(cache, "X-Old"));
+        assertEquals("3", CacheUtils.getProperty(cache, "Content-Length"));
+        assertTrue(CacheUtils.getValidationTime(cache) > 0);
+        assertEquals(200, cache.getStatusCode());
+    }
+
+    public void testWithoutValidators() throws Exception {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("X-Old", "old");
+        getCache().setProperties(properties);
+        assertNull(revalidate("/changed"));
+        assertEquals(0, fRequests);
+        assertEquals("old", getContent());
+    }
+
+}
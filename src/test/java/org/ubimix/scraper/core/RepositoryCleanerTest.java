@@ -0,0 +1,79 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.ubimix.scraper.app.AbstractResourceTest;
+
+/**
+ * @author kotelnikov
+ */
+public class RepositoryCleanerTest extends AbstractResourceTest {
+
+    private File fRoot;
+
+    /**
+     * @param name
+     */
+    public RepositoryCleanerTest(String name) {
+        super(name);
+    }
+
+    private void fill(File dir, int count) throws IOException {
+        dir.mkdirs();
+        for (int i = 0; i < count; i++) {
+            FileWriter writer = new FileWriter(new File(dir, "file-" + i));
+            try {
+                writer.write("content " + i);
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        fRoot = newTempDirectory("repository");
+    }
+
+    public void testMoveToTrash() throws Exception {
+        File dir = new File(fRoot, "data");
+        fill(new File(dir, "a"), 10);
+        fill(new File(dir, "b"), 5);
+        RepositoryCleaner cleaner = new RepositoryCleaner(dir);
+        assertTrue(cleaner.isFinished());
+        assertTrue(cleaner.moveToTrash());
+        assertFalse(dir.exists());
+        assertEquals(1, cleaner.getTrashDirectories().size());
+
+        cleaner.start();
+        assertTrue(cleaner.join(10000));
+        // 15 files, 2 sub-directories and the trash directory itself
+        assertEquals(18, cleaner.getDeletedFiles());
+        assertEquals(0, cleaner.getFailedFiles());
+        assertTrue(cleaner.getTrashDirectories().isEmpty());
+    }
+
+    public void testResume() throws Exception {
+        File dir = new File(fRoot, "data");
+        fill(dir, 3);
+        // Trash directories left by previous runs
+        fill(new File(fRoot, "data" + RepositoryCleaner.TRASH_SUFFIX + "1"), 2);
+        fill(new File(fRoot, "data" + RepositoryCleaner.TRASH_SUFFIX + "2"), 2);
+        fill(new File(fRoot, "other"), 1);
+
+        RepositoryCleaner cleaner = new RepositoryCleaner(dir);
+        assertEquals(2, cleaner.getTrashDirectories().size());
+        cleaner.start();
+        assertTrue(cleaner.join(10000));
+        assertTrue(cleaner.getTrashDirectories().isEmpty());
+        assertEquals(3, dir.list().length);
+        assertTrue(new File(fRoot, "other").exists());
+    }
+
+}
@@ -0,0 +1,86 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import junit.framework.TestCase;
+
+import org.ubimix.commons.uri.Uri;
+import org.ubimix.resources.IWrfResource;
+
+/**
+ * @author kotelnikov
+ */
+public class ResourceCacheTest extends TestCase {
+
+    /**
+     * @param name
+     */
+    public ResourceCacheTest(String name) {
+        super(name);
+    }
+
+    private IWrfResource newResource() {
+        return (IWrfResource) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { IWrfResource.class },
+            new InvocationHandler() {
+                public Object invoke(
+                    Object proxy,
+                    Method method,
+                    Object[] args) throws Throwable {
+                    if ("equals".equals(method.getName())) {
+                        return proxy == args[0];
+                    }
+                    if ("hashCode".equals(method.getName())) {
+                        return System.identityHashCode(proxy);
+                    }
+                    return null;
+                }
+            });
+    }
+
+    public void testEviction() {
+        ResourceCache cache = new ResourceCache(16 * 1024);
+        IWrfResource first = newResource();
+        cache.put("maps", new Uri("http://www.foo.bar/0"), null, first);
+        for (int i = 1; i < 1000; i++) {
+            Uri url = new Uri("http://www.foo.bar/" + i);
+            cache.put("maps", url, null, newResource());
+        }
+        assertTrue(cache.getSize() <= cache.getMaxSize());
+        assertTrue(cache.getEntryCount() < 1000);
+        assertEquals(1000 - cache.getEntryCount(), cache.getEvictions());
+        assertNull(cache.get("maps", new Uri("http://www.foo.bar/0"), null));
+
+        cache.setMaxSize(0);
+        assertEquals(0, cache.getEntryCount());
+        cache.put("maps", new Uri("http://www.foo.bar/0"), null, first);
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void testHitsAndMisses() {
+        ResourceCache cache = new ResourceCache();
+        Uri url = new Uri("http://www.foo.bar/a");
+        IWrfResource resource = newResource();
+        IWrfResource doc = newResource();
+        assertNull(cache.get("maps", url, null));
+        cache.put("maps", url, null, resource);
+        cache.put("maps", url, "doc", doc);
+        assertSame(resource, cache.get("maps", url, null));
+        assertSame(doc, cache.get("maps", url, "doc"));
+        assertNull(cache.get("pages", url, null));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getEntryCount());
+
+        cache.clear();
+        assertNull(cache.get("maps", url, null));
+        assertEquals(0, cache.getSize());
+    }
+
+}
@@ -0,0 +1,270 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.ubimix.commons.uri.Path;
+import org.ubimix.resources.IContentAdapter;
+import org.ubimix.resources.IWrfResource;
+import org.ubimix.resources.adapters.cache.CachedResourceAdapter;
+import org.ubimix.resources.adapters.cache.DateUtil;
+import org.ubimix.scraper.app.AbstractResourceTest;
+import org.ubimix.scraper.core.ResourceSweeper.StoreLimits;
+
+/**
+ * @author kotelnikov
+ */
+public class ResourceSweeperTest extends AbstractResourceTest {
+
+    private File fDir;
+
+    private long fNow;
+
+    /**
+     * @param name
+     */
+    public ResourceSweeperTest(String name) {
+        super(name);
+    }
+
+    private String getReference(AppContext context, IWrfResource resource) {
+        return context.getAdapter(ContentStore.class).getReference(
+            resource.getAdapter(CachedResourceAdapter.class));
+    }
+
+    private long getSize(File file) {
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += getSize(child);
+            }
+        } else {
+            size = file.length();
+        }
+        return size;
+    }
+
+    private AppContext newContext() {
+        AppContext context = new AppContext(fDir.getPath(), false);
+        context.getAdapter(ContentStore.class).setEnabled(true);
+        return context;
+    }
+
+    private IWrfResource newResource(
+        AppContext context,
+        String path,
+        String str) throws IOException {
+        IWrfResource resource = context.getResource("store", new Path(path));
+        write(resource, str);
+        return resource;
+    }
+
+    private ResourceSweeper newSweeper() {
+        return newSweeper(null);
+    }
+
+    private ResourceSweeper newSweeper(AppContext context) {
+        ResourceSweeper sweeper = new ResourceSweeper(context) {
+            @Override
+            protected long getCurrentTime() {
+                return fNow;
+            }
+        };
+        sweeper.setRootDirectory(fDir);
+        return sweeper;
+    }
+
+    private File newResource(String path, int size, long time)
+        throws IOException {
+        File dir = new File(fDir, path);
+        dir.mkdirs();
+        File file = new File(dir, "content");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        file.setLastModified(time);
+        return dir;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        fDir = newTempDirectory("sweeper");
+        fNow = (System.currentTimeMillis() / 1000) * 1000;
+    }
+
+    public void testCollectBlobs() throws Exception {
+        AppContext context = newContext();
+        ContentStore store = context.getAdapter(ContentStore.class);
+        IWrfResource a = newResource(context, "a", "First content");
+        IWrfResource b = newResource(context, "b", "Second content");
+        assertTrue(store.storeContent(a));
+        assertTrue(store.storeContent(b));
+        String first = getReference(context, a);
+        String second = getReference(context, b);
+
+        // The second blob is not referenced anymore
+        write(b, "New content");
+        ResourceSweeper sweeper = newSweeper(context);
+        assertEquals(1, sweeper.sweep());
+        assertEquals(first, getReference(context, a));
+        File blobs = new File(fDir, store.getStoreName());
+        assertTrue(new File(blobs, store.getBlob(first).getPath().toString())
+            .exists());
+        assertFalse(new File(blobs, store.getBlob(second).getPath().toString())
+            .exists());
+        assertEquals(0, sweeper.sweep());
+
+        // Blobs stored during a collection are not removed
+        assertTrue(store.storeContent(b));
+        String third = getReference(context, b);
+        write(b, "Another content");
+        assertTrue(store.beginCollection());
+        try {
+            assertFalse(store.beginCollection());
+            assertTrue(store.storeContent(a));
+            assertFalse(store.removeBlob(
+                first,
+                Collections.<File> emptyList()));
+            assertTrue(store.removeBlob(
+                third,
+                Collections.<File> emptyList()));
+        } finally {
+            store.endCollection();
+        }
+    }
+
+    public void testCollectSegments() throws Exception {
+        AppContext context = newContext();
+        ContentStore store = context.getAdapter(ContentStore.class);
+        SegmentStore segments = new SegmentStore(new File(fDir, "segments"));
+        try {
+            store.setSegmentStore(segments);
+            IWrfResource a = newResource(context, "a", "First content");
+            IWrfResource b = newResource(context, "b", "Second content");
+            assertTrue(store.storeContent(a));
+            assertTrue(store.storeContent(b));
+            String first = getReference(context, a);
+            String second = getReference(context, b);
+            assertEquals(2, segments.getEntryCount());
+
+            // Restores the blob of the first resource
+            IWrfResource blob = context.getContentResource(a);
+            assertEquals(store.getBlob(first).getPath(), blob.getPath());
+
+            write(b, "New content");
+            ResourceSweeper sweeper = newSweeper(context);
+            assertEquals(2, sweeper.sweep());
+            assertTrue(segments.contains(first));
+            assertFalse(segments.contains(second));
+            assertFalse(blob.getAdapter(IContentAdapter.class).exists());
+            assertEquals(0, sweeper.sweep());
+        } finally {
+            segments.close();
+        }
+    }
+
+    public void testContentQuota() throws Exception {
+        AppContext context = newContext();
+        ContentStore store = context.getAdapter(ContentStore.class);
+        store.setReleaseContent(true);
+        char[] chars = new char[1000];
+        IWrfResource[] resources = new IWrfResource[2];
+        for (int i = 0; i < resources.length; i++) {
+            Arrays.fill(chars, (char) ('a' + i));
+            resources[i] = newResource(context, "r" + i, new String(chars));
+            assertTrue(store.storeContent(resources[i]));
+        }
+        File storeDir = new File(fDir, "store");
+        long time = fNow - 2 * DateUtil.DAY;
+        for (File file : new File(storeDir, "r0").listFiles()) {
+            file.setLastModified(time);
+        }
+
+        // Released resources are small but their blobs are counted
+        long size = getSize(storeDir);
+        String reference = getReference(context, resources[0]);
+        ResourceSweeper sweeper = newSweeper(context);
+        sweeper.setLimits("store", new StoreLimits(size + 1000, 0));
+        // The removed resource and its blob
+        assertEquals(2, sweeper.sweep());
+        assertFalse(new File(storeDir, "r0").exists());
+        assertTrue(new File(storeDir, "r1").exists());
+        File blobs = new File(fDir, store.getStoreName());
+        assertFalse(new File(blobs, store
+            .getBlob(reference)
+            .getPath()
+            .toString()).exists());
+    }
+
+    public void testMaxAge() throws Exception {
+        File a = newResource("store/a", 10, fNow - 3 * DateUtil.DAY);
+        File b = newResource("store/b/c", 10, fNow - DateUtil.MIN);
+        File other = newResource("other/a", 10, fNow - 3 * DateUtil.DAY);
+        ResourceSweeper sweeper = newSweeper();
+        sweeper.setLimits("store", new StoreLimits(0, DateUtil.DAY));
+        assertEquals(1, sweeper.sweep());
+        assertFalse(a.exists());
+        assertTrue(b.exists());
+        assertTrue(other.exists());
+        assertEquals(10, sweeper.getRemovedBytes());
+        assertEquals(0, sweeper.sweep());
+    }
+
+    public void testQuota() throws Exception {
+        File[] dirs = new File[5];
+        for (int i = 0; i < dirs.length; i++) {
+            long time = fNow - (dirs.length - i) * DateUtil.DAY;
+            dirs[i] = newResource("store/r" + i, 100, time);
+        }
+        ResourceSweeper sweeper = newSweeper();
+        sweeper.setLimits("store", new StoreLimits(250, 0));
+        assertEquals(3, sweeper.sweep());
+        assertFalse(dirs[0].exists());
+        assertFalse(dirs[1].exists());
+        assertFalse(dirs[2].exists());
+        assertTrue(dirs[3].exists());
+        assertTrue(dirs[4].exists());
+        assertEquals(300, sweeper.getRemovedBytes());
+        assertEquals(0, sweeper.sweep());
+    }
+
+    public void testValidationTime() throws Exception {
+        AppContext context = newContext();
+        IWrfResource a = newResource(context, "a", "First content");
+        IWrfResource b = newResource(context, "b", "Second content");
+        // Files are recent but the first resource was validated long ago
+        CacheUtils.setValidationTime(
+            a.getAdapter(CachedResourceAdapter.class),
+            fNow - 3 * DateUtil.DAY);
+        CacheUtils.setValidationTime(
+            b.getAdapter(CachedResourceAdapter.class),
+            fNow - DateUtil.MIN);
+        ResourceSweeper sweeper = newSweeper(context);
+        sweeper.setLimits("store", new StoreLimits(0, DateUtil.DAY));
+        assertEquals(1, sweeper.sweep());
+        File storeDir = new File(fDir, "store");
+        assertFalse(new File(storeDir, "a").exists());
+        assertTrue(new File(storeDir, "b").exists());
+    }
+
+    private void write(IWrfResource resource, String str) throws IOException {
+        IContentAdapter content = resource.getAdapter(IContentAdapter.class);
+        content.writeContent(new ByteArrayInputStream(str.getBytes("UTF-8")));
+        CacheUtils.setContentInfo(
+            resource.getAdapter(CachedResourceAdapter.class),
+            ContentStreamer.digest(content));
+    }
+
+}
@@ -0,0 +1,130 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.ubimix.scraper.app.AbstractResourceTest;
+
+/**
+ * @author kotelnikov
+ */
+public class SegmentStoreTest extends AbstractResourceTest {
+
+    private File fDir;
+
+    /**
+     * @param name
+     */
+    public SegmentStoreTest(String name) {
+        super(name);
+    }
+
+    private String getString(SegmentStore store, String key)
+        throws IOException {
+        ByteBuffer buffer = store.get(key);
+        if (buffer == null) {
+            return null;
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private void put(SegmentStore store, String key, String value)
+        throws IOException {
+        store.put(key, ByteBuffer.wrap(value.getBytes("UTF-8")));
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        fDir = newTempDirectory("segments");
+    }
+
+    public void testCompaction() throws Exception {
+        SegmentStore store = new SegmentStore(fDir, 1024);
+        for (int i = 0; i < 100; i++) {
+            put(store, "key-" + (i % 10), "value-" + i);
+        }
+        put(store, "removed", "xxx");
+        store.remove("removed");
+        int segments = store.getSegmentCount();
+        assertTrue(segments > 1);
+        assertTrue(store.getGarbageSize() > 0);
+
+        assertTrue(store.compact() > 0);
+        assertTrue(store.getSegmentCount() < segments);
+        for (int i = 90; i < 100; i++) {
+            assertEquals("value-" + i, getString(store, "key-" + (i % 10)));
+        }
+        assertNull(store.get("removed"));
+        store.close();
+
+        store = new SegmentStore(fDir, 1024);
+        assertEquals(10, store.getEntryCount());
+        assertEquals("value-95", getString(store, "key-5"));
+        assertNull(store.get("removed"));
+        store.close();
+    }
+
+    public void testPutAndGet() throws Exception {
+        SegmentStore store = new SegmentStore(fDir);
+        put(store, "a", "Hello");
+        long len = store.put("b", new ByteArrayInputStream("World"
+            .getBytes("UTF-8")));
+        assertEquals(5, len);
+        put(store, "empty", "");
+        assertEquals("Hello", getString(store, "a"));
+        assertEquals("World", getString(store, "b"));
+        assertEquals("", getString(store, "empty"));
+        assertNull(store.get("c"));
+
+        put(store, "a", "Bonjour");
+        assertTrue(store.remove("b"));
+        assertFalse(store.remove("b"));
+        assertEquals("Bonjour", getString(store, "a"));
+        assertFalse(store.contains("b"));
+        store.close();
+
+        store = new SegmentStore(fDir);
+        assertEquals(2, store.getEntryCount());
+        assertEquals("Bonjour", getString(store, "a"));
+        assertNull(store.get("b"));
+        store.close();
+    }
+
+    public void testRecovery() throws Exception {
+        SegmentStore store = new SegmentStore(fDir);
+        put(store, "a", "Hello");
+        put(store, "b", "World");
+        long size = store.getSize();
+        store.close();
+
+        // Simulates an incomplete write of the last record
+        File file = fDir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size - 2);
+        } finally {
+            raf.close();
+        }
+
+        store = new SegmentStore(fDir);
+        assertEquals("Hello", getString(store, "a"));
+        assertNull(store.get("b"));
+        put(store, "c", "!");
+        store.close();
+
+        store = new SegmentStore(fDir);
+        assertEquals("Hello", getString(store, "a"));
+        assertEquals("!", getString(store, "c"));
+        store.close();
+    }
+
+}
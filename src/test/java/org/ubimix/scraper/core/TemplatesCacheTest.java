@@ -0,0 +1,217 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.TestCase;
+
+import org.ubimix.commons.xml.XmlException;
+import org.ubimix.commons.xml.XmlWrapper;
+import org.ubimix.commons.xml.XmlWrapper.XmlContext;
+
+/**
+ * @author kotelnikov
+ */
+public class TemplatesCacheTest extends TestCase {
+
+    /**
+     * @param name
+     */
+    public TemplatesCacheTest(String name) {
+        super(name);
+    }
+
+    private XmlWrapper newXsl(String select) throws Exception {
+        String str = ""
+            + "<xsl:stylesheet version='1.0' "
+            + "xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+            + "<xsl:output method='text'/>"
+            + "<xsl:template match='/'>"
+            + "<xsl:value-of select=\""
+            + select
+            + "\"/>"
+            + "</xsl:template>"
+            + "</xsl:stylesheet>";
+        return XmlContext.build().readXML(str);
+    }
+
+    public void testChangedDigest() throws Exception {
+        TemplatesCache cache = new TemplatesCache();
+        TemplatesCache.Entry first = cache.getEntry(
+            "a",
+            "1",
+            newXsl("'first'"));
+        assertEquals("first", transform(first, "<doc/>"));
+        TemplatesCache.Entry second = cache.getEntry(
+            "a",
+            "2",
+            newXsl("'second'"));
+        assertNotSame(first, second);
+        assertEquals("2", second.getDigest());
+        assertEquals("second", transform(second, "<doc/>"));
+        assertSame(second, cache.getEntry("a"));
+        assertEquals(1, cache.getSize());
+    }
+
+    public void testClearedCache() throws Exception {
+        TemplatesCache cache = new TemplatesCache();
+        XmlWrapper xsl = newXsl("'a'");
+        TemplatesCache.Entry entry = cache.getEntry("a", "1", xsl);
+        TemplatesDocumentTransformer transformer = new TemplatesDocumentTransformer(
+            cache,
+            "a",
+            entry.getDigest(),
+            xsl);
+        cache.clear();
+
+        // The stylesheet of the transformer is compiled again
+        StringWriter writer = new StringWriter();
+        transformer.transformDocument(null, new StreamSource(
+            new StringReader("<doc/>")), new StreamResult(writer));
+        assertEquals("a", writer.toString());
+        assertNotNull(cache.getEntry("a"));
+        assertEquals("1", cache.getEntry("a").getDigest());
+    }
+
+    public void testCompilationError() throws Exception {
+        TemplatesCache cache = new TemplatesCache();
+        try {
+            cache.getEntry("a", "1", newXsl("(("));
+            fail();
+        } catch (XmlException e) {
+        }
+        assertNull(cache.getEntry("a"));
+        assertEquals(0, cache.getSize());
+
+        // The stylesheet could be compiled again
+        TemplatesCache.Entry entry = cache.getEntry("a", "2", newXsl("'ok'"));
+        assertEquals("ok", transform(entry, "<doc/>"));
+    }
+
+    public void testHit() throws Exception {
+        final AtomicInteger counter = new AtomicInteger();
+        TemplatesCache cache = new TemplatesCache() {
+            @Override
+            protected Templates compile(String uri, XmlWrapper xsl)
+                throws XmlException {
+                counter.incrementAndGet();
+                return super.compile(uri, xsl);
+            }
+        };
+        XmlWrapper xsl = newXsl("name(*)");
+        TemplatesCache.Entry entry = cache.getEntry("a", "1", xsl);
+        assertSame(entry, cache.getEntry("a", "1", xsl));
+        assertSame(entry, cache.getEntry("a"));
+        assertEquals(1, counter.get());
+        assertEquals("doc", transform(entry, "<doc/>"));
+    }
+
+    public void testMiss() throws Exception {
+        TemplatesCache cache = new TemplatesCache();
+        assertNull(cache.getEntry("a"));
+        cache.getEntry("a", "1", newXsl("'a'"));
+        assertNull(cache.getEntry("b"));
+        cache.remove("a");
+        assertNull(cache.getEntry("a"));
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testSingleCompilation() throws Exception {
+        final AtomicInteger counter = new AtomicInteger();
+        final TemplatesCache cache = new TemplatesCache() {
+            @Override
+            protected Templates compile(String uri, XmlWrapper xsl)
+                throws XmlException {
+                counter.incrementAndGet();
+                return super.compile(uri, xsl);
+            }
+        };
+        final XmlWrapper xsl = newXsl("'a'");
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = Collections
+            .synchronizedList(new ArrayList<Throwable>());
+        final TemplatesCache.Entry[] entries = new TemplatesCache.Entry[8];
+        Thread[] threads = new Thread[entries.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int idx = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        entries[idx] = cache.getEntry("a", "1", xsl);
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.<Throwable> emptyList(), errors);
+        assertEquals(1, counter.get());
+        for (TemplatesCache.Entry entry : entries) {
+            assertNotNull(entry);
+            assertSame(entries[0], entry);
+        }
+    }
+
+    public void testTransformers() throws Exception {
+        TemplatesCache cache = new TemplatesCache();
+        final TemplatesCache.Entry entry = cache.getEntry(
+            "a",
+            "1",
+            newXsl("'a'"));
+        Transformer transformer = entry.getTransformer();
+        assertSame(transformer, entry.getTransformer());
+        final Transformer[] other = { null };
+        final List<Throwable> errors = Collections
+            .synchronizedList(new ArrayList<Throwable>());
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    other[0] = entry.getTransformer();
+                } catch (Throwable t) {
+                    errors.add(t);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertEquals(Collections.<Throwable> emptyList(), errors);
+        assertNotNull(other[0]);
+        assertNotSame(transformer, other[0]);
+    }
+
+    private String transform(TemplatesCache.Entry entry, String xml)
+        throws Exception {
+        Transformer transformer = entry.getTransformer();
+        try {
+            StringWriter writer = new StringWriter();
+            transformer.transform(
+                new StreamSource(new StringReader(xml)),
+                new StreamResult(writer));
+            return writer.toString();
+        } finally {
+            entry.release(transformer);
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+/**
+ * 
+ */
+package org.ubimix.scraper.core;
+
+import junit.framework.TestCase;
+
+/**
+ * @author kotelnikov
+ */
+public class TokenBucketTest extends TestCase {
+
+    private static class TestBucket extends TokenBucket {
+
+        private long fTime = 1000;
+
+        public TestBucket(long rate) {
+            super(rate);
+        }
+
+        @Override
+        protected long getCurrentTime() {
+            return fTime;
+        }
+
+        public void shift(long delta) {
+            fTime += delta;
+        }
+    }
+
+    private static final long SECOND = 1000L * 1000 * 1000;
+
+    /**
+     * @param name
+     */
+    public TokenBucketTest(String name) {
+        super(name);
+    }
+
+    public void testBurst() {
+        TestBucket bucket = new TestBucket(10);
+        // The bucket contains one second of tokens
+        assertTrue(bucket.reserve(10) <= 0);
+        assertEquals(SECOND / 10, bucket.reserve(1));
+        assertEquals(SECOND * 3 / 10, bucket.reserve(2));
+
+        // Tokens are restored with time
+        bucket.shift(SECOND * 2);
+        assertTrue(bucket.reserve(10) <= 0);
+        assertTrue(bucket.reserve(1) > 0);
+    }
+
+    public void testRate() {
+        TestBucket bucket = new TestBucket(0);
+        assertFalse(bucket.isLimited());
+        assertEquals(0, bucket.reserve(Long.MAX_VALUE / 2));
+        bucket.setRate(1000);
+        assertTrue(bucket.isLimited());
+        assertEquals(1000, bucket.getRate());
+        assertEquals(SECOND, bucket.reserve(2000));
+    }
+
+}
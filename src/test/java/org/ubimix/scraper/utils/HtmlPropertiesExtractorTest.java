@@ -121,6 +121,36 @@ public class HtmlPropertiesExtractorTest extends TestCase {
             "A short description of this guide.");
     }
 
+    public void testCompositeProperties() throws Exception {
+        HtmlCompositePropertiesExtractor extractor = new HtmlCompositePropertiesExtractor(
+            new HtmlListPropertiesExtractor(),
+            new HtmlTablePropertiesExtractor());
+        testPropertiesExtraction(
+            extractor,
+            "<div xmlns='http://www.w3.org/1999/xhtml'>"
+                + "<p>before</p>"
+                + "<ul>"
+                + "<li>a: A</li>"
+                + "<li>b: B</li>"
+                + "</ul>"
+                + "<table>"
+                + "<tr><th>Property</th><th>Value</th></tr>"
+                + "<tr><td>firstName</td><td>John</td></tr>"
+                + "<tr><td>lastName</td><td>Smith</td></tr>"
+                + "</table>"
+                + "<p>after</p>"
+                + "</div>",
+            "<div xmlns='http://www.w3.org/1999/xhtml'><p>before</p><p>after</p></div>",
+            "a",
+            "A",
+            "b",
+            "B",
+            "firstName",
+            "John",
+            "lastName",
+            "Smith");
+    }
+
     public void testListProperties() throws Exception {
         HtmlListPropertiesExtractor extractor = new HtmlListPropertiesExtractor();
         testPropertiesExtraction(
@@ -280,6 +310,31 @@ public class HtmlPropertiesExtractorTest extends TestCase {
             "http://www.foo.bar/index.html");
     }
 
+    public void testTableSections() throws XmlException, IOException {
+        HtmlPropertiesExtractor extractor = new HtmlTablePropertiesExtractor();
+        testPropertiesExtraction(
+            extractor,
+            "<div xmlns='http://www.w3.org/1999/xhtml'>"
+                + "<p>before</p>"
+                + "<table>"
+                + "<thead><tr><th>Property</th><th>Value</th></tr></thead>"
+                + "<tbody>"
+                + "<tr><td>firstName</td><td>John</td></tr>"
+                + "<tr><td>lastName</td><td>Smith</td></tr>"
+                + "</tbody>"
+                + "<tfoot><tr><td>age</td><td>38</td></tr></tfoot>"
+                + "</table>"
+                + "<p>after</p>"
+                + "</div>",
+            "<div xmlns='http://www.w3.org/1999/xhtml'><p>before</p><p>after</p></div>",
+            "firstName",
+            "John",
+            "lastName",
+            "Smith",
+            "age",
+            "38");
+    }
+
     private Map<String, String> toMap(String... pairs) {
         Map<String, String> map = new HashMap<String, String>();
         for (int i = 0; i < pairs.length;) {